@@ -0,0 +1,86 @@
+package com.attivio.transformer.benchmark.GenericQTJ;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryFeedback;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.transformer.benchmark.GenericQTJ.JoinerFixtures.QueryComplexity;
+import com.attivio.transformer.query.GenericQTJ.GenericCompositeJoiner;
+
+/**
+ * Measures the sustained transform rate of the Generic Composite Joiner, in
+ * requests per second, for a batch of {@value #BATCH_SIZE} requests that share
+ * their facet filters, as a report generator sends them. The batch goes through
+ * {@code processQueries} in one call, or through {@code processQuery} one
+ * request at a time. Building the requests is included in both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchTransformBenchmark {
+
+	static final int BATCH_SIZE = 100;
+
+	@Param({ "2", "8" })
+	public int childTables;
+
+	@Param({ "0", "10", "30" })
+	public int facetFilters;
+
+	@Param({ "TERM", "NESTED" })
+	public QueryComplexity queryComplexity;
+
+	private GenericCompositeJoiner joiner;
+	private List<FacetFilter> requestFacetFilters;
+
+	@Setup
+	public void setup() {
+		joiner = JoinerFixtures.compositeJoiner(childTables, false);
+		requestFacetFilters = JoinerFixtures.facetFilters(childTables, facetFilters);
+	}
+
+	private List<QueryRequest> requests() {
+		List<QueryRequest> requests = new ArrayList<QueryRequest>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			requests.add(JoinerFixtures.request(queryComplexity, requestFacetFilters));
+		}
+		return requests;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public List<List<QueryFeedback>> batch() throws AttivioException {
+		return joiner.processQueries(this.requests());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public List<List<QueryFeedback>> oneAtATime() throws AttivioException {
+		List<QueryRequest> requests = this.requests();
+		List<List<QueryFeedback>> feedback = new ArrayList<List<QueryFeedback>>(BATCH_SIZE);
+		for (QueryRequest qr : requests) {
+			feedback.add(joiner.processQuery(qr));
+		}
+		return feedback;
+	}
+}
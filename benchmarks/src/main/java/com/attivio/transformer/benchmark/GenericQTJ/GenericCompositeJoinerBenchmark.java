@@ -0,0 +1,75 @@
+package com.attivio.transformer.benchmark.GenericQTJ;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryFeedback;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.transformer.benchmark.GenericQTJ.JoinerFixtures.QueryComplexity;
+import com.attivio.transformer.query.GenericQTJ.GenericCompositeJoiner;
+
+/**
+ * Measures {@code GenericCompositeJoiner.processQuery} for the composite join
+ * and for the strict OR-of-joins built by {@code buildStrictChildMatchingJoin}.
+ * Each invocation transforms a freshly built request, so request construction is
+ * included in the measurement; compare against {@link #buildRequestOnly()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenericCompositeJoinerBenchmark {
+
+	@Param({ "2", "4", "8" })
+	public int childTables;
+
+	@Param({ "0", "10", "30" })
+	public int facetFilters;
+
+	@Param({ "TERM", "FIELDED_AND", "NESTED" })
+	public QueryComplexity queryComplexity;
+
+	private GenericCompositeJoiner compositeJoiner;
+	private GenericCompositeJoiner strictJoiner;
+	private List<FacetFilter> requestFacetFilters;
+
+	@Setup
+	public void setup() {
+		compositeJoiner = JoinerFixtures.compositeJoiner(childTables, false);
+		strictJoiner = JoinerFixtures.compositeJoiner(childTables, true);
+		requestFacetFilters = JoinerFixtures.facetFilters(childTables, facetFilters);
+	}
+
+	@Benchmark
+	public QueryRequest buildRequestOnly() {
+		return JoinerFixtures.request(queryComplexity, requestFacetFilters);
+	}
+
+	@Benchmark
+	public List<QueryFeedback> compositeJoin() throws AttivioException {
+		QueryRequest qr = JoinerFixtures.request(queryComplexity, requestFacetFilters);
+		return compositeJoiner.processQuery(qr);
+	}
+
+	@Benchmark
+	public List<QueryFeedback> strictJoin() throws AttivioException {
+		QueryRequest qr = JoinerFixtures.request(queryComplexity, requestFacetFilters);
+		return strictJoiner.processQuery(qr);
+	}
+}
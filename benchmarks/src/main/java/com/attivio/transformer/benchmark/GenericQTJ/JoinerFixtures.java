@@ -0,0 +1,129 @@
+package com.attivio.transformer.benchmark.GenericQTJ;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.sdk.search.query.FacetQuery;
+import com.attivio.transformer.query.GenericQTJ.GenericCompositeJoiner;
+import com.attivio.transformer.query.GenericQTJ.MultiFieldJoiner;
+
+/**
+ * Builds the joiner configurations and requests shared by the benchmarks. Child
+ * table {@code i} is named {@code child_i}, joins {@code INNER} for even and
+ * {@code OUTER} for odd {@code i}, and has two facet fields, {@code child_i_topic}
+ * and {@code child_i_date}.
+ */
+final class JoinerFixtures {
+
+	/**
+	 * Shapes of user query used by the benchmarks.
+	 */
+	enum QueryComplexity {
+		/** A single unfielded term */
+		TERM("electronic"),
+		/** A conjunction of fielded terms */
+		FIELDED_AND("content:electronic AND title:invoice AND author:smith"),
+		/** A nested boolean query with phrases and a range */
+		NESTED("(content:\"electronic invoice\" OR title:receipt) AND (author:smith OR author:jones)"
+				+ " AND NOT status:draft AND amount:[100 TO 5000]");
+
+		private final String query;
+
+		private QueryComplexity(String query) {
+			this.query = query;
+		}
+
+		String getQuery() {
+			return query;
+		}
+	}
+
+	private JoinerFixtures() {
+	}
+
+	static String childTable(int i) {
+		return "child_" + i;
+	}
+
+	static void configure(GenericCompositeJoiner joiner, int childTables) {
+		joiner.setJoinField("parentId");
+		List<String> primaryTables = new ArrayList<String>();
+		primaryTables.add("parent");
+		joiner.setPrimaryTables(primaryTables);
+
+		Map<String, String> tables = new HashMap<String, String>();
+		Map<String, Integer> maxDocs = new HashMap<String, Integer>();
+		Map<String, Integer> boosts = new HashMap<String, Integer>();
+		Map<String, String> facetFields = new HashMap<String, String>();
+		List<String> facetTables = new ArrayList<String>();
+		for (int i = 0; i < childTables; i++) {
+			String table = childTable(i);
+			tables.put(table, i % 2 == 0 ? "INNER" : "OUTER");
+			maxDocs.put(table, 5);
+			boosts.put(table, i);
+			facetFields.put(table, table + "_topic, " + table + "_date");
+			facetTables.add(table);
+		}
+		joiner.setChildTables(tables);
+		joiner.setMaxChildDocs(maxDocs);
+		joiner.setTableBoosts(boosts);
+		joiner.setChildTableFacetFields(facetFields);
+		joiner.setTablesToIncludeInFacetCounts(facetTables);
+	}
+
+	static GenericCompositeJoiner compositeJoiner(int childTables, boolean strictChildMatching) {
+		GenericCompositeJoiner joiner = new GenericCompositeJoiner();
+		configure(joiner, childTables);
+		joiner.setStrictChildMatching(strictChildMatching);
+		return joiner;
+	}
+
+	static MultiFieldJoiner multiFieldJoiner(int childTables, boolean mimickComposite) {
+		MultiFieldJoiner joiner = new MultiFieldJoiner();
+		configure(joiner, childTables);
+		Map<String, String> joinFields = new HashMap<String, String>();
+		for (int i = 1; i < childTables; i += 2) {
+			joinFields.put(childTable(i), "altParentId");
+		}
+		joiner.setJoinFields(joinFields);
+		joiner.setMimickComposite(mimickComposite);
+		return joiner;
+	}
+
+	/**
+	 * Builds the facet filters for a request, spread round robin over the child
+	 * tables' facet fields.
+	 */
+	static List<FacetFilter> facetFilters(int childTables, int facetFilters) {
+		List<FacetFilter> filters = new ArrayList<FacetFilter>(facetFilters);
+		for (int i = 0; i < facetFilters; i++) {
+			String table = childTable(i % childTables);
+			FacetFilter filter = new FacetFilter();
+			if (i % 2 == 0) {
+				filter.setFilter(new FacetQuery(table + "_topic", "topic " + i));
+			} else {
+				filter.setFilter(new FacetQuery(table + "_date",
+						"RANGE(2007-01-01T00:00:00, 2008-01-01T00:00:00, upper=exclusive)"));
+			}
+			filters.add(filter);
+		}
+		return filters;
+	}
+
+	/**
+	 * Builds a fresh request, since the joiners modify the request they transform.
+	 */
+	static QueryRequest request(QueryComplexity complexity, List<FacetFilter> facetFilters) {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery(complexity.getQuery(), "SIMPLE");
+		for (FacetFilter filter : facetFilters) {
+			qr.addFacetFilter(filter);
+		}
+		qr.setMaxResubmits(1);
+		return qr;
+	}
+}
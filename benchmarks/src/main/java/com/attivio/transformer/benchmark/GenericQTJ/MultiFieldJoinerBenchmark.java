@@ -0,0 +1,63 @@
+package com.attivio.transformer.benchmark.GenericQTJ;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryFeedback;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.transformer.benchmark.GenericQTJ.JoinerFixtures.QueryComplexity;
+import com.attivio.transformer.query.GenericQTJ.MultiFieldJoiner;
+
+/**
+ * Measures {@code MultiFieldJoiner.processQuery}, which builds its join with
+ * {@code buildCompositeJoinQuery}, with composite mimicry turned on and off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiFieldJoinerBenchmark {
+
+	@Param({ "2", "4", "8" })
+	public int childTables;
+
+	@Param({ "0", "10", "30" })
+	public int facetFilters;
+
+	@Param({ "TERM", "FIELDED_AND", "NESTED" })
+	public QueryComplexity queryComplexity;
+
+	@Param({ "false", "true" })
+	public boolean mimickComposite;
+
+	private MultiFieldJoiner joiner;
+	private List<FacetFilter> requestFacetFilters;
+
+	@Setup
+	public void setup() {
+		joiner = JoinerFixtures.multiFieldJoiner(childTables, mimickComposite);
+		requestFacetFilters = JoinerFixtures.facetFilters(childTables, facetFilters);
+	}
+
+	@Benchmark
+	public List<QueryFeedback> buildCompositeJoinQuery() throws AttivioException {
+		QueryRequest qr = JoinerFixtures.request(queryComplexity, requestFacetFilters);
+		return joiner.processQuery(qr);
+	}
+}
@@ -0,0 +1,67 @@
+package com.attivio.transformer.benchmark.GenericQTJ;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.SearchDocumentList;
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.transformer.benchmark.GenericQTJ.JoinerFixtures.QueryComplexity;
+import com.attivio.transformer.query.GenericQTJ.GenericCompositeJoiner;
+import com.attivio.transformer.response.GenericQTJ.ResubmitRelaxedJoin;
+
+/**
+ * Measures {@code ResubmitRelaxedJoin.getRoutingKey} for an empty response to a
+ * composite join, which rewrites the request into the relaxed OR form. The join
+ * is built once; each invocation routes a fresh request holding that join.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResubmitRelaxedJoinBenchmark {
+
+	@Param({ "2", "8" })
+	public int childTables;
+
+	@Param({ "TERM", "FIELDED_AND", "NESTED" })
+	public QueryComplexity queryComplexity;
+
+	private ResubmitRelaxedJoin resubmitter;
+	private QueryRequest joinedRequest;
+
+	@Setup
+	public void setup() throws AttivioException {
+		resubmitter = new ResubmitRelaxedJoin();
+		resubmitter.setResubmitWorkflow("search");
+		GenericCompositeJoiner joiner = JoinerFixtures.compositeJoiner(childTables, false);
+		joinedRequest = JoinerFixtures.request(queryComplexity, Collections.<FacetFilter>emptyList());
+		joiner.processQuery(joinedRequest);
+	}
+
+	@Benchmark
+	public String getRoutingKey() {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery(joinedRequest.getQuery());
+		qr.setMaxResubmits(1);
+		QueryResponse response = new QueryResponse(qr);
+		response.setDocuments(new SearchDocumentList());
+		return resubmitter.getRoutingKey(response);
+	}
+}
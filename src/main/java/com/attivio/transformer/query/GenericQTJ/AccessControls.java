@@ -0,0 +1,107 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.query.AccessControlQuery;
+import com.attivio.sdk.search.query.BooleanQuery;
+import com.attivio.sdk.search.query.BoostQuery;
+import com.attivio.sdk.search.query.CompositeJoinQuery;
+import com.attivio.sdk.search.query.JoinClause;
+import com.attivio.sdk.search.query.JoinQuery;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.SubQuery;
+import com.attivio.sdk.security.AttivioPrincipal;
+
+/**
+ * Finds out whom a request is searched for. The caches and the search
+ * coalescing of the joiners key on the request's principal, so users never share
+ * what they find, even where security is only applied after the joiner. Requests
+ * with an {@code AccessControlQuery} anywhere in their query or filters when the
+ * joiner sees them are left alone entirely, since the access control query may
+ * name principals other than the request's.
+ */
+final class AccessControls {
+
+	private AccessControls() {
+	}
+
+	/**
+	 * @param qr The request
+	 * @return whether the request's query or one of its filters is access
+	 *         controlled
+	 */
+	static boolean isAccessControlled(QueryRequest qr) {
+		if (isAccessControlled(qr.getQuery())) {
+			return true;
+		}
+		for (Query filter : qr.getFilters()) {
+			if (isAccessControlled(filter)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param qr The request
+	 * @return the realm and id of the request's principal, or an empty string if
+	 *         it has none, for the keys of the caches
+	 */
+	static String principalKey(QueryRequest qr) {
+		AttivioPrincipal principal = qr.getPrincipal();
+		if (principal == null) {
+			return "";
+		}
+		return principal.getRealmId() + '\u0000' + principal.getPrincipalId();
+	}
+
+	/**
+	 * @param query The query, which may be {@code null}
+	 * @return whether the query contains an {@code AccessControlQuery}
+	 */
+	static boolean isAccessControlled(Query query) {
+		if (query == null) {
+			return false;
+		}
+		if (query instanceof AccessControlQuery) {
+			return true;
+		}
+		if (query instanceof BoostQuery) {
+			return isAccessControlled(((BoostQuery) query).getQuery());
+		}
+		if (query instanceof SubQuery) {
+			return isAccessControlled(((SubQuery) query).getQuery());
+		}
+		if (query instanceof BooleanQuery) {
+			for (Query clause : ((BooleanQuery) query).getClauses()) {
+				if (isAccessControlled(clause)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (query instanceof JoinQuery) {
+			JoinQuery join = (JoinQuery) query;
+			if (isAccessControlled(join.getQuery())) {
+				return true;
+			}
+			for (JoinClause clause : join.getClauses()) {
+				if (isAccessControlled(clause.getQuery())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (query instanceof CompositeJoinQuery) {
+			CompositeJoinQuery join = (CompositeJoinQuery) query;
+			if (isAccessControlled(join.getQuery()) || isAccessControlled(join.getFromQuery())) {
+				return true;
+			}
+			for (CompositeJoinQuery.Clause clause : join.getClauses()) {
+				if (isAccessControlled(clause.getQuery())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,62 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small thread-safe cache that evicts its least recently used entry once it
+ * holds more than a fixed number of entries.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class BoundedLruCache<K, V> {
+
+	private final int maxEntries;
+	private final LinkedHashMap<K, V> entries;
+
+	/**
+	 * @param maxEntries The maximum number of entries to keep. Must be positive.
+	 */
+	public BoundedLruCache(final int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive but was " + maxEntries);
+		}
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached value for the key, or {@code null} if there is none
+	 */
+	public synchronized V get(K key) {
+		return entries.get(key);
+	}
+
+	public synchronized void put(K key, V value) {
+		entries.put(key, value);
+	}
+
+	public synchronized void remove(K key) {
+		entries.remove(key);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+}
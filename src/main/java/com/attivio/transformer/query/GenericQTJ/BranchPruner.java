@@ -0,0 +1,214 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.attivio.sdk.search.query.Query;
+
+/**
+ * Decides which child tables a user query can match in, from the fields each
+ * table's documents have, so the strict and mimicked composite joins can skip
+ * the branches that search the query in the other tables. <br>
+ * <br>
+ * The user query is scanned for the fields it references and for unfielded
+ * terms. A table can match if it has any of the referenced fields, or if the
+ * query has unfielded terms and the table is text-bearing, which is written as
+ * {@code *} in its list of fields. Tables without a list of fields can always
+ * match. Pruning is conservative: queries with negations, escapes, nested
+ * fields or operators other than {@code AND}, {@code OR}, {@code PHRASE},
+ * {@code NEAR} and {@code ONEAR} are assumed to match in every table.
+ */
+final class BranchPruner {
+
+	/** The entry in a table's fields marking it as having the default text fields */
+	static final String TEXT_FIELDS = "*";
+
+	private static final Set<String> OPERATORS = new HashSet<String>(Arrays.asList("AND", "OR", "&&", "||"));
+	private static final Set<String> FUNCTIONS = new HashSet<String>(
+			Arrays.asList("AND", "OR", "PHRASE", "NEAR", "ONEAR"));
+
+	private final FieldTableIndex fieldTables;
+	private final Set<String> textTables = new HashSet<String>();
+	private final Set<String> describedTables;
+
+	/**
+	 * @param tableSchemaFields Map of child table name to the fields its documents
+	 *                          have
+	 */
+	BranchPruner(Map<String, List<String>> tableSchemaFields) {
+		this.fieldTables = new FieldTableIndex(tableSchemaFields);
+		this.describedTables = new HashSet<String>(tableSchemaFields.keySet());
+		for (Map.Entry<String, List<String>> entry : tableSchemaFields.entrySet()) {
+			if (entry.getValue().contains(TEXT_FIELDS)) {
+				this.textTables.add(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * @return whether any table has a list of fields
+	 */
+	boolean isEnabled() {
+		return !describedTables.isEmpty();
+	}
+
+	/**
+	 * @param table The child table
+	 * @param fields The analyzed user query, or {@code null} if it couldn't be
+	 *               analyzed
+	 * @return whether the user query can match documents in the table
+	 */
+	boolean canMatch(String table, QueryFields fields) {
+		if (fields == null || !describedTables.contains(table)) {
+			return true;
+		}
+		if (fields.unfielded && textTables.contains(table)) {
+			return true;
+		}
+		for (String field : fields.fields) {
+			if (fieldTables.getTables(field).contains(table)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The fields a query references, and whether it has unfielded terms.
+	 */
+	static final class QueryFields {
+		final Set<String> fields;
+		final boolean unfielded;
+
+		QueryFields(Set<String> fields, boolean unfielded) {
+			this.fields = fields;
+			this.unfielded = unfielded;
+		}
+	}
+
+	/**
+	 * @return the fields the user query references, or {@code null} if the query
+	 *         can't be analyzed safely
+	 */
+	static QueryFields analyze(Query userQuery) {
+		return analyze(userQuery.toString());
+	}
+
+	static QueryFields analyze(String query) {
+		if (query.indexOf('\\') >= 0) {
+			return null;
+		}
+		Set<String> fields = new LinkedHashSet<String>();
+		boolean unfielded = false;
+		int n = query.length();
+		int i = 0;
+		while (i < n) {
+			char c = query.charAt(i);
+			if (Character.isWhitespace(c) || c == '(' || c == ')' || c == ',' || c == '+') {
+				i++;
+				continue;
+			}
+			if (c == '-' || c == '!') {
+				// Negations match documents without the field too
+				return null;
+			}
+			if (c == '"') {
+				int end = query.indexOf('"', i + 1);
+				if (end < 0) {
+					return null;
+				}
+				unfielded = true;
+				i = end + 1;
+				continue;
+			}
+			int start = i;
+			while (i < n && !isDelimiter(query.charAt(i))) {
+				i++;
+			}
+			String token = query.substring(start, i);
+			if (i < n && query.charAt(i) == ':') {
+				if (token.isEmpty()) {
+					return null;
+				}
+				if (token.equals("*")) {
+					unfielded = true;
+				} else {
+					fields.add(token);
+				}
+				i = skipValue(query, i + 1);
+				if (i < 0) {
+					return null;
+				}
+			} else if (i < n && query.charAt(i) == '(') {
+				if (!FUNCTIONS.contains(token)) {
+					return null;
+				}
+			} else if (token.equals("NOT")) {
+				return null;
+			} else if (!OPERATORS.contains(token)) {
+				unfielded = true;
+			}
+		}
+		return new QueryFields(fields, unfielded);
+	}
+
+	private static boolean isDelimiter(char c) {
+		return Character.isWhitespace(c) || c == '(' || c == ')' || c == ',' || c == '"' || c == ':';
+	}
+
+	/**
+	 * Skips the value of a fielded term: a word, a quoted phrase, a range, or a
+	 * group or function in parentheses.
+	 *
+	 * @return the index after the value, or -1 if it can't be analyzed safely
+	 */
+	private static int skipValue(String query, int i) {
+		int n = query.length();
+		if (i >= n) {
+			return i;
+		}
+		char c = query.charAt(i);
+		if (c == '"') {
+			int end = query.indexOf('"', i + 1);
+			return end < 0 ? -1 : end + 1;
+		}
+		if (c == '[' || c == '{') {
+			while (i < n && query.charAt(i) != ']' && query.charAt(i) != '}') {
+				i++;
+			}
+			return i < n ? i + 1 : -1;
+		}
+		int valueStart = i;
+		while (i < n && !Character.isWhitespace(query.charAt(i)) && query.charAt(i) != ')'
+				&& query.charAt(i) != ',' && query.charAt(i) != '(') {
+			i++;
+		}
+		if (i < n && query.charAt(i) == '(') {
+			// A group like field:(a OR b), or a function like field:RANGE(1, 2)
+			boolean function = i > valueStart;
+			int depth = 0;
+			for (; i < n; i++) {
+				char g = query.charAt(i);
+				if (g == '"') {
+					i = query.indexOf('"', i + 1);
+					if (i < 0) {
+						return -1;
+					}
+				} else if (g == ':' && !function) {
+					// A field inside the group
+					return -1;
+				} else if (g == '(') {
+					depth++;
+				} else if (g == ')' && --depth == 0) {
+					return i + 1;
+				}
+			}
+			return -1;
+		}
+		return i;
+	}
+}
@@ -0,0 +1,243 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.attivio.sdk.search.FacetResponse;
+import com.attivio.sdk.search.QueryRequest;
+
+/**
+ * Remembers the child table facet counts of recent composite joins that include
+ * child tables in their facet counts, so requests that only change the page or
+ * the sort don't pay for counting the facets across the joined children again.
+ * <br>
+ * <br>
+ * When the cache is turned on for a joiner, the joiner stores the request's key
+ * in the {@link #KEY_PROPERTY_NAME} property once the join is built, and the
+ * names of the facets on child table fields in {@link #FACET_NAMES_PROPERTY_NAME}.
+ * The key covers the joiner's configuration, the {@link QueryFingerprint} of the
+ * join, its filters and facet filters, the facets requested, and the request's
+ * principal. Requests with an access control query aren't cached (see
+ * {@link AccessControls}). On
+ * a hit the joiner pins the cached facets in {@link #HIT_PROPERTY_NAME}, so they
+ * can't be evicted or expire before the response comes back, and only then
+ * turns off facet counting for the child table clauses. The
+ * {@code CachedChildFacets} response transformer replaces the child table facets
+ * of the response with the pinned ones, keeping the facets the engine counted on
+ * the parents. On a miss it
+ * stores the response's child table facets. Entries are evicted least recently
+ * used first once the cache is full, and are ignored once they're older than the
+ * TTL the joiner is configured with. <br>
+ * <br>
+ * The facets are stored serialized, and every response gets its own copy, so
+ * later response transformers can modify them.
+ */
+public final class ChildFacetCache {
+
+	/** Name of the request property holding the request's key */
+	public static final String KEY_PROPERTY_NAME = "genericqtj.facetCacheKey";
+
+	/** Name of the request property holding the names of the child table facets */
+	public static final String FACET_NAMES_PROPERTY_NAME = "genericqtj.facetCacheNames";
+
+	/**
+	 * Holds the pinned child table facets of requests whose child facet counts come
+	 * from the cache
+	 */
+	public static final String HIT_PROPERTY_NAME = "genericqtj.facetCacheHit";
+
+	static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	private static final Logger log = LoggerFactory.getLogger(ChildFacetCache.class);
+
+	private static final ChildFacetCache INSTANCE = new ChildFacetCache(DEFAULT_MAX_ENTRIES);
+
+	private final BoundedLruCache<String, CachedFacets> facets;
+	private final LongSupplier nanoClock;
+
+	ChildFacetCache(int maxEntries) {
+		this(maxEntries, System::nanoTime);
+	}
+
+	ChildFacetCache(int maxEntries, LongSupplier nanoClock) {
+		this.facets = new BoundedLruCache<String, CachedFacets>(maxEntries);
+		this.nanoClock = nanoClock;
+	}
+
+	public static ChildFacetCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Builds the key of a request once the joiner has set its join query and
+	 * fingerprint.
+	 *
+	 * @param configurationKey Identifies the configuration of the joiner
+	 * @param qr               The transformed request
+	 * @return the request's key
+	 */
+	static String key(String configurationKey, QueryRequest qr) {
+		StringBuilder key = new StringBuilder(configurationKey);
+		key.append('\u0000').append(qr.getProperty(QueryFingerprint.PROPERTY_NAME, ""));
+		key.append('\u0000').append(AccessControls.principalKey(qr));
+		List<?> requestedFacets = qr.getFacets();
+		if (requestedFacets != null) {
+			for (Object facet : requestedFacets) {
+				key.append('\u0000').append(facet);
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @param key        The request's key
+	 * @param ttlSeconds How long facets are cached for
+	 * @return the serialized facets stored for the key within the TTL, for the
+	 *         joiner to pin in {@link #HIT_PROPERTY_NAME}, or {@code null} if
+	 *         there are none
+	 */
+	byte[] getIfFresh(String key, long ttlSeconds) {
+		CachedFacets cached = facets.get(key);
+		if (cached == null) {
+			return null;
+		}
+		if (nanoClock.getAsLong() - cached.storedAt > TimeUnit.SECONDS.toNanos(ttlSeconds)) {
+			facets.remove(key);
+			return null;
+		}
+		return cached.serialized;
+	}
+
+	/**
+	 * Returns a copy of the child table facets the joiner pinned on a request when
+	 * it found them cached, whether or not they are still in the cache.
+	 *
+	 * @return the cached facets, or {@code null} if the joiner didn't find any
+	 */
+	public List<FacetResponse> get(QueryRequest qr) {
+		Object pinned = qr.getProperty(HIT_PROPERTY_NAME);
+		return pinned instanceof byte[] ? deserialize((byte[]) pinned) : null;
+	}
+
+	/**
+	 * Stores the child table facets of a response, if the joiner stored a key on
+	 * its request.
+	 */
+	public void put(QueryRequest qr, List<FacetResponse> responseFacets) {
+		if (!qr.hasProperty(KEY_PROPERTY_NAME) || responseFacets == null) {
+			return;
+		}
+		Set<String> facetNames = decodeFacetNames(qr.getProperty(FACET_NAMES_PROPERTY_NAME, ""));
+		List<FacetResponse> childFacets = new ArrayList<FacetResponse>();
+		for (FacetResponse facet : responseFacets) {
+			if (facetNames.contains(facet.getName())) {
+				childFacets.add(facet);
+			}
+		}
+		this.put(qr.getProperty(KEY_PROPERTY_NAME, ""), childFacets);
+	}
+
+	void put(String key, List<FacetResponse> childFacets) {
+		byte[] serialized;
+		try {
+			serialized = serialize(childFacets);
+		} catch (IOException e) {
+			log.warn("Not caching facets that can't be serialized", e);
+			return;
+		}
+		facets.put(key, new CachedFacets(serialized, nanoClock.getAsLong()));
+	}
+
+	/**
+	 * Puts cached child table facets into the facets of a response, in place of
+	 * the facets with the same names. Cached facets the response doesn't have are
+	 * added at the end.
+	 *
+	 * @param responseFacets The facets of the response, which may be {@code null}
+	 * @param cachedFacets   The cached child table facets
+	 * @return the spliced facets
+	 */
+	public static List<FacetResponse> splice(List<FacetResponse> responseFacets, List<FacetResponse> cachedFacets) {
+		Map<String, FacetResponse> cachedByName = new LinkedHashMap<String, FacetResponse>();
+		for (FacetResponse facet : cachedFacets) {
+			cachedByName.put(facet.getName(), facet);
+		}
+		List<FacetResponse> spliced = new ArrayList<FacetResponse>();
+		if (responseFacets != null) {
+			for (FacetResponse facet : responseFacets) {
+				FacetResponse cached = cachedByName.remove(facet.getName());
+				spliced.add(cached != null ? cached : facet);
+			}
+		}
+		spliced.addAll(cachedByName.values());
+		return spliced;
+	}
+
+	/**
+	 * @return the facet names, encoded for {@link #FACET_NAMES_PROPERTY_NAME}
+	 */
+	static String encodeFacetNames(Collection<String> facetNames) {
+		return String.join(",", facetNames);
+	}
+
+	static Set<String> decodeFacetNames(String encoded) {
+		Set<String> facetNames = new LinkedHashSet<String>();
+		for (String name : encoded.split(",")) {
+			if (!name.isEmpty()) {
+				facetNames.add(name);
+			}
+		}
+		return facetNames;
+	}
+
+	private static byte[] serialize(List<FacetResponse> childFacets) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(new ArrayList<FacetResponse>(childFacets));
+		}
+		return bytes.toByteArray();
+	}
+
+	int size() {
+		return facets.size();
+	}
+
+	void clear() {
+		facets.clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<FacetResponse> deserialize(byte[] serialized) {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+			return (List<FacetResponse>) in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			log.warn("Cached facets can't be read back", e);
+			return null;
+		}
+	}
+
+	private static final class CachedFacets {
+		private final byte[] serialized;
+		private final long storedAt;
+
+		CachedFacets(byte[] serialized, long storedAt) {
+			this.serialized = serialized;
+			this.storedAt = storedAt;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
+import com.attivio.sdk.search.query.SubQuery;
+
+/**
+ * Compiles {@code FacetFilter}s on child table facet fields into the subqueries
+ * that get added to the child table's join clause. The patterns used to pull the
+ * facet value out of a filter are compiled once per configured field, and the
+ * extracted field queries are cached by the filter's string form so that
+ * repeated facet filters (the common case on navigation pages) aren't matched
+ * against the patterns again. Only the query text is cached: query nodes are
+ * mutable, so every request gets its own subquery.
+ */
+final class FacetFilterCompiler {
+
+	static final int DEFAULT_CACHE_SIZE = 1024;
+
+	private static final Pattern NUMERIC_RANGE_PATTERN = Pattern
+			.compile("RANGE\\((.*),\\s{0,1}(.*),\\s{0,1}upper=(\\w*)\\)");
+
+	private static final Logger log = LoggerFactory.getLogger(FacetFilterCompiler.class);
+
+	// Field names are matched as whole tokens so that a filter on update_date
+	// doesn't compile into a filter on date
+	private final Map<String, Pattern> fieldPatterns = new LinkedHashMap<String, Pattern>();
+	private final BoundedLruCache<String, List<CompiledFacetFilter>> cache;
+
+	/**
+	 * @param fieldNames The child table facet fields that filters can be compiled
+	 *                   for
+	 * @param cacheSize  The maximum number of distinct facet filters to cache
+	 */
+	FacetFilterCompiler(Collection<String> fieldNames, int cacheSize) {
+		for (String fieldName : fieldNames) {
+			if (!fieldPatterns.containsKey(fieldName)) {
+				fieldPatterns.put(fieldName,
+						Pattern.compile("(?<![\\w.-])" + Pattern.quote(fieldName) + ":FACET.{1}(.*).{1},{0,1}"));
+			}
+		}
+		this.cache = new BoundedLruCache<String, List<CompiledFacetFilter>>(cacheSize);
+	}
+
+	/**
+	 * Compiles a facet filter into a subquery for each configured field it filters
+	 * on.
+	 *
+	 * @param facetFilter The facet filter to compile
+	 * @return the compiled filters, which is empty if the filter isn't on any of
+	 *         the configured fields. The returned list is shared and must not be
+	 *         modified.
+	 */
+	List<CompiledFacetFilter> compile(FacetFilter facetFilter) {
+		String facetFilterString = facetFilter.toString();
+		List<CompiledFacetFilter> compiled = cache.get(facetFilterString);
+		if (compiled == null) {
+			compiled = this.compile(facetFilterString);
+			cache.put(facetFilterString, compiled);
+		}
+		return compiled;
+	}
+
+	private List<CompiledFacetFilter> compile(String facetFilterString) {
+		List<CompiledFacetFilter> compiled = null;
+		for (Map.Entry<String, Pattern> fieldPattern : fieldPatterns.entrySet()) {
+			Matcher m = fieldPattern.getValue().matcher(facetFilterString);
+			if (m.find() && m.groupCount() >= 1) {
+				String fieldValue = m.group(1);
+				fieldValue = fieldValue.substring(0, fieldValue.length() - 1);
+				fieldValue = handleRangeFacetFilters(fieldValue);
+				if (compiled == null) {
+					compiled = new ArrayList<CompiledFacetFilter>(1);
+				}
+				compiled.add(new CompiledFacetFilter(fieldPattern.getKey(), fieldPattern.getKey() + ":" + fieldValue));
+			}
+		}
+		if (compiled == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(compiled);
+	}
+
+	/**
+	 * For facet filters coming from Range Facets, we need to extract the RANGE
+	 * query and rewrite it to the standard range syntax from simple query language
+	 * (like [], [}, etc.)
+	 *
+	 * @param fieldValue The field value to conditionally rewrite into a proper
+	 *                   range query if necessary
+	 */
+	static String handleRangeFacetFilters(String fieldValue) {
+		String returnValue = fieldValue;
+		Matcher mForNumRanges = NUMERIC_RANGE_PATTERN.matcher(fieldValue);
+		if (mForNumRanges.find() && mForNumRanges.groupCount() >= 3) {
+			// We found a range
+			String rangeStart = mForNumRanges.group(1);
+			String rangeEnd = mForNumRanges.group(2);
+			String upperBoundryType = mForNumRanges.group(3);
+			if (upperBoundryType.equals("exclusive")) {
+				returnValue = String.format("[%s TO %s}", rangeStart, rangeEnd);
+			} else if (upperBoundryType.equals("inclusive")) {
+				returnValue = String.format("[%s TO %s]", rangeStart, rangeEnd);
+			}
+		}
+		log.trace("Rewrote field value from facet filter query from {} to {}", fieldValue, returnValue);
+		return returnValue;
+	}
+
+	/**
+	 * A facet filter compiled into the query text for one child table facet field.
+	 */
+	static final class CompiledFacetFilter {
+		private final String field;
+		private final String queryString;
+
+		CompiledFacetFilter(String field, String queryString) {
+			this.field = field;
+			this.queryString = queryString;
+		}
+
+		/**
+		 * @return the facet field the filter is on
+		 */
+		String getField() {
+			return field;
+		}
+
+		/**
+		 * @return the query text of the filter
+		 */
+		String getQueryString() {
+			return queryString;
+		}
+
+		/**
+		 * @return a new subquery to add to the field's join clause
+		 */
+		Query newQuery() {
+			SubQuery query = new SubQuery(new QueryString(queryString));
+			// This is so the facet filter queries don't show up in Search Analytics
+			query.setParameter("abc.userquery", false);
+			return query;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Index from child table facet field to the child table(s) that the field
+ * belongs to. It is built once per configuration so that the filters of a
+ * request can be routed to their tables in a single pass. Fields are matched as
+ * whole tokens, so a filter on {@code update_date} or {@code my-date} is not
+ * mistaken for a filter on {@code date}, and text inside quoted phrases is
+ * never taken for a field.
+ */
+final class FieldTableIndex {
+
+	// A field name directly followed by a colon, not preceded by part of a longer
+	// name, or a quoted phrase, which is matched only to skip over it
+	private static final Pattern FIELD_TOKEN = Pattern
+			.compile("\"(?:[^\"\\\\]|\\\\.)*\"|(?<![\\w.-])([A-Za-z_][\\w.-]*)\\s*:");
+
+	private final Map<String, List<String>> tablesByField = new HashMap<String, List<String>>();
+
+	/**
+	 * @param tableFields Map of child table name to the facet fields of that table
+	 */
+	FieldTableIndex(Map<String, List<String>> tableFields) {
+		for (Map.Entry<String, List<String>> entry : tableFields.entrySet()) {
+			for (String field : entry.getValue()) {
+				List<String> tables = tablesByField.get(field);
+				if (tables == null) {
+					tables = new ArrayList<String>(1);
+					tablesByField.put(field, tables);
+				}
+				if (!tables.contains(entry.getKey())) {
+					tables.add(entry.getKey());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param field A field name
+	 * @return the child tables the field belongs to, which is empty if it isn't a
+	 *         child table facet field
+	 */
+	List<String> getTables(String field) {
+		List<String> tables = tablesByField.get(field);
+		return tables != null ? tables : Collections.<String>emptyList();
+	}
+
+	/**
+	 * Finds the child tables that a filter query applies to, based on the fields
+	 * it references.
+	 *
+	 * @param queryString The string form of the filter query
+	 * @return the child tables whose facet fields are referenced by the query,
+	 *         which is empty if it doesn't reference any
+	 */
+	Set<String> route(String queryString) {
+		Set<String> tables = null;
+		Matcher m = FIELD_TOKEN.matcher(queryString);
+		while (m.find()) {
+			if (m.group(1) == null) {
+				continue;
+			}
+			List<String> fieldTables = tablesByField.get(m.group(1));
+			if (fieldTables != null) {
+				if (tables == null) {
+					tables = new LinkedHashSet<String>();
+				}
+				tables.addAll(fieldTables);
+			}
+		}
+		return tables != null ? tables : Collections.<String>emptySet();
+	}
+}
@@ -2,19 +2,19 @@ package com.attivio.transformer.query.GenericQTJ;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.attivio.sdk.AttivioException;
-import com.attivio.sdk.schema.FieldNames;
 import com.attivio.sdk.search.QueryFeedback;
 import com.attivio.sdk.search.QueryLanguages;
 import com.attivio.sdk.search.QueryRequest;
@@ -22,6 +22,7 @@ import com.attivio.sdk.search.facet.FacetFilter;
 import com.attivio.sdk.search.query.BooleanAndQuery;
 import com.attivio.sdk.search.query.BooleanNotQuery;
 import com.attivio.sdk.search.query.BooleanOrQuery;
+import com.attivio.sdk.search.query.BoostQuery;
 import com.attivio.sdk.search.query.CompositeJoinQuery;
 import com.attivio.sdk.search.query.JoinClause;
 import com.attivio.sdk.search.query.CompositeJoinQuery.Clause;
@@ -29,13 +30,16 @@ import com.attivio.sdk.search.query.JoinMode;
 import com.attivio.sdk.search.query.JoinQuery;
 import com.attivio.sdk.search.query.PhraseQuery;
 import com.attivio.sdk.search.query.Query;
-import com.attivio.sdk.search.query.QueryString;
 import com.attivio.sdk.search.query.SubQuery;
 import com.attivio.sdk.server.annotation.ConfigurationOption;
 import com.attivio.sdk.server.annotation.ConfigurationOption.OptionLevel;
 import com.attivio.sdk.server.annotation.ConfigurationOptionInfo;
 import com.attivio.sdk.server.component.query.QueryTransformer;
-import com.attivio.sdk.util.BaseTypesList;
+import com.attivio.transformer.query.GenericQTJ.FacetFilterCompiler.CompiledFacetFilter;
+import com.attivio.transformer.query.GenericQTJ.JoinDiagnostics.Event;
+import com.attivio.transformer.query.GenericQTJ.JoinPlanTemplate.TableClause;
+import com.attivio.transformer.query.GenericQTJ.TableStatisticsRegistry.TableCounters;
+import com.attivio.transformer.query.GenericQTJ.NegativeResultCache.EmptyPass;
 
 /**
  * @author brandon.bogan
@@ -47,55 +51,77 @@ import com.attivio.sdk.util.BaseTypesList;
 				"childTableFacetFields", "tablesToIncludeInFacetCounts" }),
 		@ConfigurationOptionInfo.Group(path = ConfigurationOptionInfo.ADVANCED, propertyNames = {
 				"ignoreAdvancedQueries", "provideFeedback", "collectionFieldName", "strictChildMatching",
-				"allowChildDocOnlySearch", "tableBoosts" }) })
+				"allowChildDocOnlySearch", "singlePassStrictJoin", "tieredRelaxation", "tierBoost", "maxUnboostedScore",
+				"relaxedMinimumMatch", "tableBoosts",
+				"feedbackSamplePercent", "maxFeedbackEvents", "negativeCacheTtlSeconds", "facetCacheTtlSeconds",
+				"storeFingerprint", "tableStatistics", "adaptiveRollup", "adaptiveRollupFloor",
+				"adaptiveRollupCeiling", "tableSchemaFields" }) })
 public class GenericCompositeJoiner implements QueryTransformer {
 
 	private Logger log = LoggerFactory.getLogger(this.getClass());
 
-	protected List<String> primaryTables;
-	protected List<String> nonPrimaryTables;
-	protected Map<String, String> childTables;
-	protected String joinField;
-	protected Map<String, Integer> maxChildDocs;
-	protected boolean provideFeedback;
-	protected Map<String, List<String>> childTableFacetFields = new HashMap<String, List<String>>();
-	protected String collectionFieldName = FieldNames.TABLE;
-	protected boolean ignoreAdvancedQueries;
-	private List<String> tablesToIncludeInFacetCounts = new ArrayList<String>();
-	private Map<String, Integer> tableBoosts;
-	private boolean strictChildMatching;
-	private boolean allowChildDocOnlySearch;
+	// Held while a setter derives the next configuration from the current one
+	private final Object configurationLock = new Object();
+	// Swapped atomically by the setters, and read once by each request
+	private volatile JoinerConfiguration configuration = JoinerConfiguration.DEFAULT;
+	// Compiled lazily from the current configuration
+	private volatile JoinPlanTemplate planTemplate;
+
+	// Shared by all joiners of the same class
+	private final JoinerMetrics metrics = JoinerMetrics.forJoiner(this.getClass().getSimpleName());
 
 	public static String STRICT_QUERY_PROPERTY_NAME = "wasStrictJoin";
 	public static String CHILD_DOC_MATCH_MESSAGE_NAME = "matchInChildDocument";
 
-	private static String FACET_FILTER_PROPERTY_NAME = "facetFilters";
-	private static String FILTER_PROPERTY_NAME = "filters";
-	private static String ORIGINAL_QUERY_PROPERTY_NAME = "original_query";
-	private static String ORIGINAL_QUERY_LANGUAGE_NAME = "original_language";
+	/** Set on single pass strict joins, to the boost of the parent match tier */
+	public static final String PARENT_TIER_BOOST_PROPERTY_NAME = "genericqtj.parentTierBoost";
+
+	/**
+	 * Applies a change to a copy of the current configuration, and swaps the copy
+	 * in once it's validated. Requests that already started keep the snapshot they
+	 * read.
+	 * 
+	 * @param change Sets the changed options on the copy
+	 * @throws IllegalArgumentException if the changed configuration is invalid, in
+	 *                                  which case the current one is kept
+	 */
+	void reconfigure(Consumer<JoinerConfiguration.Builder> change) {
+		synchronized (this.configurationLock) {
+			JoinerConfiguration.Builder builder = this.configuration.toBuilder();
+			change.accept(builder);
+			this.configuration = builder.build();
+		}
+	}
+
+	/**
+	 * @return the current configuration snapshot
+	 */
+	JoinerConfiguration getConfiguration() {
+		return this.configuration;
+	}
 
 	/**
 	 * @return the primaryTable
 	 */
 	@ConfigurationOption(displayName = "Primary Tables", description = "Tables containing primary data, to which child tables will be joined. Either primary tables or non-primary tables must be provided, but not both.", formEntryClass = ConfigurationOption.STRING_LIST)
 	public List<String> getPrimaryTables() {
-		return primaryTables;
+		return this.configuration.getPrimaryTables();
 	}
 
 	/**
 	 * @param primaryTables
 	 */
 	public void setPrimaryTables(List<String> primaryTables) {
-		this.primaryTables = primaryTables;
+		this.reconfigure(c -> c.primaryTables = primaryTables);
 	}
 
 	@ConfigurationOption(displayName = "Non-Primary Tables", description = "Tables to exlude from being parent records. Either primary tables or non-primary tables must be provided, but not both.", formEntryClass = ConfigurationOption.STRING_LIST)
 	public List<String> getNonPrimaryTables() {
-		return nonPrimaryTables;
+		return this.configuration.getNonPrimaryTables();
 	}
 
 	public void setNonPrimaryTables(List<String> nonPrimaryTables) {
-		this.nonPrimaryTables = nonPrimaryTables;
+		this.reconfigure(c -> c.nonPrimaryTables = nonPrimaryTables);
 	}
 
 	/**
@@ -103,14 +129,14 @@ public class GenericCompositeJoiner implements QueryTransformer {
 	 */
 	@ConfigurationOption(displayName = "Child Tables", description = "Map of Tables containing metadata or related non-primary date to leverage in JOIN to the Join Mode for that table (either INNER or OUTER)", optionLevel = OptionLevel.Required, formEntryClass = ConfigurationOption.STRING_TO_STRING_MAP)
 	public Map<String, String> getChildTables() {
-		return childTables;
+		return this.configuration.getChildTables();
 	}
 
 	/**
 	 * @param metadataTable the metadataTable to set
 	 */
 	public void setChildTables(Map<String, String> childTables) {
-		this.childTables = childTables;
+		this.reconfigure(c -> c.childTables = childTables);
 	}
 
 	/**
@@ -118,14 +144,14 @@ public class GenericCompositeJoiner implements QueryTransformer {
 	 */
 	@ConfigurationOption(displayName = "Join Field", description = "Field to join on (must be the same field across both sources)", optionLevel = OptionLevel.Required)
 	public String getJoinField() {
-		return joinField;
+		return this.configuration.getJoinField();
 	}
 
 	/**
 	 * @param joinField the joinField to set
 	 */
 	public void setJoinField(String joinField) {
-		this.joinField = joinField;
+		this.reconfigure(c -> c.joinField = joinField);
 	}
 
 	/**
@@ -133,14 +159,14 @@ public class GenericCompositeJoiner implements QueryTransformer {
 	 */
 	@ConfigurationOption(displayName = "Max Child Docs", description = "Max number of child docs to relate to parent doc. Set to -1 for no limit. Defaults to 0 (no children) if unset", optionLevel = OptionLevel.Required, formEntryClass = ConfigurationOption.STRING_TO_STRING_MAP)
 	public Map<String, Integer> getMaxChildDocs() {
-		return maxChildDocs;
+		return this.configuration.getMaxChildDocs();
 	}
 
 	/**
 	 * @param maxChildDocs the maxChildDocs to set
 	 */
 	public void setMaxChildDocs(Map<String, Integer> maxChildDocs) {
-		this.maxChildDocs = maxChildDocs;
+		this.reconfigure(c -> c.maxChildDocs = maxChildDocs);
 	}
 
 	/**
@@ -149,9 +175,8 @@ public class GenericCompositeJoiner implements QueryTransformer {
 	@ConfigurationOption(displayName = "Child Table Facet Fields", description = "Map of table to Fields from that table that are used as facets", formEntryClass = ConfigurationOption.STRING_TO_STRING_MAP)
 	public Map<String, String> getChildTableFacetFields() {
 		Map<String, String> response = new HashMap<String, String>();
-		for (String key : this.childTableFacetFields.keySet()) {
-			List<String> facetFields = this.childTableFacetFields.get(key);
-			response.put(key, String.join(",", facetFields));
+		for (Map.Entry<String, List<String>> entry : this.configuration.getChildTableFacetFields().entrySet()) {
+			response.put(entry.getKey(), String.join(",", entry.getValue()));
 		}
 		return response;
 	}
@@ -161,328 +186,717 @@ public class GenericCompositeJoiner implements QueryTransformer {
 	 */
 	public void setChildTableFacetFields(Map<String, String> metadataFacetFields) {
 		Map<String, List<String>> tableFacets = new HashMap<String, List<String>>();
-		for (String key : metadataFacetFields.keySet()) {
-			key = key.trim();
-			String[] facetFields = metadataFacetFields.get(key).replace(" ", "").split(",");
+		for (Map.Entry<String, String> entry : metadataFacetFields.entrySet()) {
+			String key = entry.getKey().trim();
+			String[] facetFields = entry.getValue().replace(" ", "").split(",");
 			tableFacets.put(key, Arrays.asList(facetFields));
-			log.trace("Adding facet fields " + Arrays.toString(facetFields) + " for table " + key);
+			if (log.isTraceEnabled()) {
+				log.trace("Adding facet fields " + Arrays.toString(facetFields) + " for table " + key);
+			}
+		}
+		this.reconfigure(c -> c.childTableFacetFields = tableFacets);
+	}
+
+	/**
+	 * @return the fields of each child table's documents, used to skip the branches
+	 *         of tables the user query can't match in
+	 */
+	@ConfigurationOption(displayName = "Table Schema Fields", description = "Map of child table to the fields its documents have, with * for tables that have the default text fields. The strict and mimicked composite joins skip the branches of tables that have none of the fields in the user query", formEntryClass = ConfigurationOption.STRING_TO_STRING_MAP)
+	public Map<String, String> getTableSchemaFields() {
+		Map<String, String> response = new HashMap<String, String>();
+		for (Map.Entry<String, List<String>> entry : this.configuration.getTableSchemaFields().entrySet()) {
+			response.put(entry.getKey(), String.join(",", entry.getValue()));
+		}
+		return response;
+	}
+
+	/**
+	 * @param tableSchemaFields Map of child table name to a comma separated list of
+	 *                          the fields its documents have
+	 */
+	public void setTableSchemaFields(Map<String, String> tableSchemaFields) {
+		Map<String, List<String>> tableFields = new HashMap<String, List<String>>();
+		for (Map.Entry<String, String> entry : tableSchemaFields.entrySet()) {
+			tableFields.put(entry.getKey().trim(), Arrays.asList(entry.getValue().replace(" ", "").split(",")));
 		}
-		this.childTableFacetFields = tableFacets;
+		this.reconfigure(c -> c.tableSchemaFields = tableFields);
+	}
+
+	/**
+	 * @return the statistics of the primary and child tables, used to choose
+	 *         between equivalent plans
+	 */
+	@ConfigurationOption(displayName = "Table Statistics", description = "Map of table to statistics for choosing the cheapest of equivalent join plans, for example 'documents=250000, childrenPerParent=3.5, filterSelectivity=0.2'", formEntryClass = ConfigurationOption.STRING_TO_STRING_MAP)
+	public Map<String, String> getTableStatistics() {
+		Map<String, String> response = new HashMap<String, String>();
+		for (Map.Entry<String, TableStatistics> entry : this.configuration.getTableStatistics().entrySet()) {
+			response.put(entry.getKey(), entry.getValue().toString());
+		}
+		return response;
+	}
+
+	/**
+	 * @param tableStatistics Map of table name to statistics, in the form parsed by
+	 *                        {@link TableStatistics#valueOf(String)}
+	 */
+	public void setTableStatistics(Map<String, String> tableStatistics) {
+		Map<String, TableStatistics> parsed = new HashMap<String, TableStatistics>();
+		for (Map.Entry<String, String> entry : tableStatistics.entrySet()) {
+			parsed.put(entry.getKey().trim(), TableStatistics.valueOf(entry.getValue()));
+		}
+		this.reconfigure(c -> c.tableStatistics = parsed);
 	}
 
 	@ConfigurationOption(displayName = "Collection Field Name", description = "Name of field to use to differentiate collections/tables of content (this will be normally be the 'table' field")
 	public String getCollectionFieldName() {
-		return collectionFieldName;
+		return this.configuration.getCollectionFieldName();
 	}
 
 	public void setCollectionFieldName(String collectionFieldName) {
-		this.collectionFieldName = collectionFieldName;
+		this.reconfigure(c -> c.collectionFieldName = collectionFieldName);
 	}
 
 	@ConfigurationOption(displayName = "Provide Query Feedback", description = "Should detailed query feedback be provided", formEntryClass = ConfigurationOption.FALSE_SWITCH_VALUE)
 	public boolean isProvideFeedback() {
-		return provideFeedback;
+		return this.configuration.isProvideFeedback();
 	}
 
 	public void setProvideFeedback(boolean provideFeedback) {
-		this.provideFeedback = provideFeedback;
+		this.reconfigure(c -> c.provideFeedback = provideFeedback);
 	}
 
 	@ConfigurationOption(displayName = "Ignore Advanced Queries", description = "Should qeries in the advanced query language be ignored", formEntryClass = ConfigurationOption.FALSE_SWITCH_VALUE)
 	public boolean isIgnoreAdvancedQueries() {
-		return ignoreAdvancedQueries;
+		return this.configuration.isIgnoreAdvancedQueries();
 	}
 
 	public void setIgnoreAdvancedQueries(boolean ignoreAdvancedQueries) {
-		this.ignoreAdvancedQueries = ignoreAdvancedQueries;
+		this.reconfigure(c -> c.ignoreAdvancedQueries = ignoreAdvancedQueries);
 	}
 
 	@ConfigurationOption(displayName = "Facetable Tables", description = "Tables to include in facet counts", formEntryClass = ConfigurationOption.STRING_LIST)
 	public List<String> getTablesToIncludeInFacetCounts() {
-		return tablesToIncludeInFacetCounts;
+		return this.configuration.getTablesToIncludeInFacetCounts();
 	}
 
 	public void setTablesToIncludeInFacetCounts(List<String> tablesToIncludeInFacetCounts) {
-		this.tablesToIncludeInFacetCounts = tablesToIncludeInFacetCounts;
+		this.reconfigure(c -> c.tablesToIncludeInFacetCounts = tablesToIncludeInFacetCounts);
 	}
 
 	@ConfigurationOption(displayName = "Table Boost Amounts", description = "Static boosts to be applied to a table's clause (the default for ommited tables is 0)", formEntryClass = ConfigurationOption.STRING_TO_STRING_MAP)
 	public Map<String, Integer> getTableBoosts() {
-		return tableBoosts;
+		return this.configuration.getTableBoosts();
 	}
 
 	public void setTableBoosts(Map<String, Integer> tableBoosts) {
-		this.tableBoosts = tableBoosts;
+		this.reconfigure(c -> c.tableBoosts = tableBoosts);
 	}
 
 	@ConfigurationOption(displayName = "Use Strict Join", description = "If there is no match on the parent, should only child documents matching the query term be returned", formEntryClass = ConfigurationOption.FALSE_SWITCH_VALUE)
 	public boolean isStrictChildMatching() {
-		return strictChildMatching;
+		return this.configuration.isStrictChildMatching();
 	}
 
 	public void setStrictChildMatching(boolean strictChildMatching) {
-		this.strictChildMatching = strictChildMatching;
+		this.reconfigure(c -> c.strictChildMatching = strictChildMatching);
 	}
 
 	@ConfigurationOption(displayName = "Allow Child Doc Only Search", description = "If 'Use Strict Join' is set to true, this will allow the initial pass to only search child documents. If you want to subsequently search parent documents when there's no results on the children, use the 'Resubmit Strict Join' response transformer to resubmit so all docs can be searched.", formEntryClass = ConfigurationOption.FALSE_SWITCH_VALUE)
 	public boolean isAllowChildDocOnlySearch() {
-		return allowChildDocOnlySearch;
+		return this.configuration.isAllowChildDocOnlySearch();
 	}
 
 	public void setAllowChildDocOnlySearch(boolean allowChildDocOnlySearch) {
-		this.allowChildDocOnlySearch = allowChildDocOnlySearch;
+		this.reconfigure(c -> c.allowChildDocOnlySearch = allowChildDocOnlySearch);
+	}
+
+	@ConfigurationOption(displayName = "Single Pass Strict Join", description = "If 'Allow Child Doc Only Search' is set to true, search the parent documents and the child documents in one pass instead of resubmitting, with the parent matches boosted by the 'Tier Boost' so they rank first. The Resubmit Strict Join router then reports a match in the child documents if the top hit is from the child tier", formEntryClass = ConfigurationOption.FALSE_SWITCH_VALUE)
+	public boolean isSinglePassStrictJoin() {
+		return this.configuration.isSinglePassStrictJoin();
+	}
+
+	public void setSinglePassStrictJoin(boolean singlePassStrictJoin) {
+		this.reconfigure(c -> c.singlePassStrictJoin = singlePassStrictJoin);
+	}
+
+	@ConfigurationOption(displayName = "Tiered Relaxation", description = "Search the query and its relaxed OR form in one pass, with the AND form boosted so its matches rank first. The Relax Join Query router then doesn't resubmit, and reports which tier the top hit came from", formEntryClass = ConfigurationOption.FALSE_SWITCH_VALUE)
+	public boolean isTieredRelaxation() {
+		return this.configuration.isTieredRelaxation();
+	}
+
+	public void setTieredRelaxation(boolean tieredRelaxation) {
+		this.reconfigure(c -> c.tieredRelaxation = tieredRelaxation);
+	}
+
+	@ConfigurationOption(displayName = "Tier Boost", description = "The boost of the AND form of the query if 'Tiered Relaxation' is set to true, and of the parent matches of a 'Single Pass Strict Join'. It must lift the scores of the boosted tier above those of the other")
+	public int getTierBoost() {
+		return this.configuration.getTierBoost();
+	}
+
+	public void setTierBoost(int tierBoost) {
+		this.reconfigure(c -> c.tierBoost = tierBoost);
+	}
+
+	@ConfigurationOption(displayName = "Max Unboosted Score", description = "The highest score a match of the unboosted tier can get from the relevancy model. Must be less than 'Tier Boost'. Top hits scoring between the two aren't attributed to either tier")
+	public int getMaxUnboostedScore() {
+		return this.configuration.getMaxUnboostedScore();
+	}
+
+	public void setMaxUnboostedScore(int maxUnboostedScore) {
+		this.reconfigure(c -> c.maxUnboostedScore = maxUnboostedScore);
+	}
+
+	@ConfigurationOption(displayName = "Relaxed Minimum Match", description = "If 'Tiered Relaxation' is set to true, how many of the query's terms a document must match to be found by the relaxed form of the query")
+	public int getRelaxedMinimumMatch() {
+		return this.configuration.getRelaxedMinimumMatch();
+	}
+
+	public void setRelaxedMinimumMatch(int relaxedMinimumMatch) {
+		this.reconfigure(c -> c.relaxedMinimumMatch = relaxedMinimumMatch);
+	}
+
+	@ConfigurationOption(displayName = "Feedback Sample Percent", description = "If 'Provide Query Feedback' is set to true, the percentage (0-100) of requests to provide detailed feedback for")
+	public int getFeedbackSamplePercent() {
+		return this.configuration.getFeedbackSamplePercent();
+	}
+
+	public void setFeedbackSamplePercent(int feedbackSamplePercent) {
+		this.reconfigure(c -> c.feedbackSamplePercent = feedbackSamplePercent);
+	}
+
+	@ConfigurationOption(displayName = "Max Feedback Messages", description = "Maximum number of detailed feedback messages to provide for a single request")
+	public int getMaxFeedbackEvents() {
+		return this.configuration.getMaxFeedbackEvents();
+	}
+
+	public void setMaxFeedbackEvents(int maxFeedbackEvents) {
+		this.reconfigure(c -> c.maxFeedbackEvents = maxFeedbackEvents);
+	}
+
+	@ConfigurationOption(displayName = "Negative Cache TTL (seconds)", description = "How long to remember that a query found nothing on the first pass of a resubmitted join, so it can be relaxed or searched in the child documents up front. 0 turns the cache off")
+	public int getNegativeCacheTtlSeconds() {
+		return this.configuration.getNegativeCacheTtlSeconds();
+	}
+
+	public void setNegativeCacheTtlSeconds(int negativeCacheTtlSeconds) {
+		this.reconfigure(c -> c.negativeCacheTtlSeconds = negativeCacheTtlSeconds);
+	}
+
+	@ConfigurationOption(displayName = "Facet Cache TTL (seconds)", description = "How long to reuse the facet counts of a composite join that includes child tables in its facet counts, for requests with the same query, filters, facet filters and facets. The Cached Child Facets response transformer must be in the response workflow. 0 turns the cache off")
+	public int getFacetCacheTtlSeconds() {
+		return this.configuration.getFacetCacheTtlSeconds();
+	}
+
+	public void setFacetCacheTtlSeconds(int facetCacheTtlSeconds) {
+		this.reconfigure(c -> c.facetCacheTtlSeconds = facetCacheTtlSeconds);
+	}
+
+	@ConfigurationOption(displayName = "Store Query Fingerprint", description = "Store the fingerprint of each transformed request in the genericqtj.fingerprint request property, for components later in the workflow")
+	public boolean isStoreFingerprint() {
+		return this.configuration.isStoreFingerprint();
+	}
+
+	public void setStoreFingerprint(boolean storeFingerprint) {
+		this.reconfigure(c -> c.storeFingerprint = storeFingerprint);
+	}
+
+	@ConfigurationOption(displayName = "Adaptive Rollup", description = "Size the rollup of tables without a Max Child Docs setting from the children per parent observed by the Table Statistics Collector")
+	public boolean isAdaptiveRollup() {
+		return this.configuration.isAdaptiveRollup();
+	}
+
+	public void setAdaptiveRollup(boolean adaptiveRollup) {
+		this.reconfigure(c -> c.adaptiveRollup = adaptiveRollup);
+	}
+
+	@ConfigurationOption(displayName = "Adaptive Rollup Floor", description = "The smallest rollup limit adaptive rollup will set")
+	public int getAdaptiveRollupFloor() {
+		return this.configuration.getAdaptiveRollupFloor();
+	}
+
+	public void setAdaptiveRollupFloor(int adaptiveRollupFloor) {
+		this.reconfigure(c -> c.adaptiveRollupFloor = adaptiveRollupFloor);
+	}
+
+	@ConfigurationOption(displayName = "Adaptive Rollup Ceiling", description = "The largest rollup limit adaptive rollup will set")
+	public int getAdaptiveRollupCeiling() {
+		return this.configuration.getAdaptiveRollupCeiling();
+	}
+
+	public void setAdaptiveRollupCeiling(int adaptiveRollupCeiling) {
+		this.reconfigure(c -> c.adaptiveRollupCeiling = adaptiveRollupCeiling);
 	}
 
 	@Override
 	public List<QueryFeedback> processQuery(QueryRequest qr) throws AttivioException {
-		List<QueryFeedback> feedback = new ArrayList<QueryFeedback>();
+		// The whole request reads this one snapshot, even if the joiner is reconfigured
+		return this.transform(this.getPlanTemplate(), qr, null);
+	}
 
-		if (qr.getQueryLanguage().equalsIgnoreCase(QueryLanguages.ADVANCED) && this.ignoreAdvancedQueries) {
-			if (this.provideFeedback) {
-				String message = "Advanced Query Language in use, skipping stage.";
-				feedback.add(new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner", message));
-				log.trace(message);
-			}
+	/**
+	 * Transforms a batch of requests, such as the queries of a report, the way
+	 * {@link #processQuery(QueryRequest)} transforms each one. All of the requests
+	 * are transformed with the same configuration snapshot, and each distinct
+	 * filter and facet filter in the batch is routed and compiled only once.
+	 * 
+	 * @param requests The requests to transform, in place
+	 * @return the feedback of each request, in the order of the requests
+	 * @throws AttivioException if a request can't be transformed, in which case
+	 *                          the requests before it have already been
+	 *                          transformed
+	 */
+	public List<List<QueryFeedback>> processQueries(List<QueryRequest> requests) throws AttivioException {
+		TransformBatch batch = new TransformBatch(this.getPlanTemplate());
+		List<List<QueryFeedback>> feedback = new ArrayList<List<QueryFeedback>>(requests.size());
+		for (QueryRequest qr : requests) {
+			feedback.add(this.transform(batch.getPlan(), qr, batch));
+		}
+		return feedback;
+	}
+
+	/**
+	 * Transforms a request into the queries that the workflow would otherwise run
+	 * one after the other, for running them concurrently (see
+	 * {@link HedgedJoinSearcher}). The filters and facet filters on the child
+	 * table fields are stripped from the request and built into the queries, just
+	 * like {@link #processQuery(QueryRequest)} does. The request keeps the user's
+	 * query.
+	 * 
+	 * @param qr The request to transform
+	 * @return the queries in priority order: the join {@code processQuery} builds,
+	 *         then the child document search that Resubmit Strict Join Query
+	 *         resubmits to if the join is the parent only search, then the join of
+	 *         the relaxed query if the query can be relaxed
+	 * @throws AttivioException
+	 */
+	public Map<HedgedJoinSearcher.Variant, Query> buildHedgedVariants(QueryRequest qr) throws AttivioException {
+		JoinPlanTemplate plan = this.getPlanTemplate();
+		JoinerConfiguration configuration = plan.getConfiguration();
+		Map<HedgedJoinSearcher.Variant, Query> variants = new LinkedHashMap<HedgedJoinSearcher.Variant, Query>();
+		if (qr.getQueryLanguage().equalsIgnoreCase(QueryLanguages.ADVANCED)
+				&& configuration.isIgnoreAdvancedQueries()) {
+			variants.put(HedgedJoinSearcher.Variant.JOIN, qr.getQuery());
+			return variants;
+		}
+		JoinDiagnostics diagnostics = this.newDiagnostics(configuration);
+		Map<String, List<Query>> facetFilters = this.extractMetadataFacetFilterQueries(plan, qr, diagnostics);
+		Query userQuery = qr.getQuery();
+		String userQueryString = qr.getQueryString();
+		String userQueryLanguage = qr.getQueryLanguage();
+		qr.setProperty(STRICT_QUERY_PROPERTY_NAME, false);
+		variants.put(HedgedJoinSearcher.Variant.JOIN, this.buildCompositeJoinQuery(plan, facetFilters, qr, diagnostics));
+		if (qr.getProperty(STRICT_QUERY_PROPERTY_NAME, false)) {
+			// Built the parent only search, so the second pass searches the children
+			variants.put(HedgedJoinSearcher.Variant.CHILD_DOC_ONLY,
+					this.buildCompositeJoinQuery(plan, facetFilters, qr, diagnostics));
+		}
+		BooleanOrQuery relaxedQuery = QueryRelaxation.relax(userQuery);
+		// Relaxing a single term finds the same documents as the join already does
+		if (relaxedQuery != null && relaxedQuery.getClauses().length > 1) {
+			qr.setQuery(relaxedQuery.toString(), QueryLanguages.ADVANCED);
+			qr.setProperty(STRICT_QUERY_PROPERTY_NAME, false);
+			variants.put(HedgedJoinSearcher.Variant.RELAXED,
+					this.buildCompositeJoinQuery(plan, facetFilters, qr, diagnostics));
+			qr.setQuery(userQueryString, userQueryLanguage);
+		}
+		qr.setProperty(STRICT_QUERY_PROPERTY_NAME, false);
+		return variants;
+	}
+
+	/**
+	 * @param batch The batch the request is part of, or {@code null} for a single
+	 *              request
+	 */
+	private List<QueryFeedback> transform(JoinPlanTemplate plan, QueryRequest qr, TransformBatch batch)
+			throws AttivioException {
+		JoinerConfiguration configuration = plan.getConfiguration();
+		JoinDiagnostics diagnostics = this.newDiagnostics(configuration);
+		long start = System.nanoTime();
+
+		// On a resubmit, start over from the user's query, filters and facet filters
+		// rather than the join built by the first pass
+		ResubmitState resubmitState = qr.getResubmits() > 0 ? ResubmitState.read(qr) : null;
+		if (resubmitState != null) {
+			resubmitState.restore(qr);
+		}
+
+		if (qr.getQueryLanguage().equalsIgnoreCase(QueryLanguages.ADVANCED)
+				&& configuration.isIgnoreAdvancedQueries()) {
+			diagnostics.record(Event.ADVANCED_QUERY_SKIPPED);
 		} else {
 			// qr.setProperty("join.facet", "FULL");
-			Map<String, List<Query>> facetFilters = this.extractMetadataFacetFilterQueries(qr, feedback);
-			Query joinQuery = this.buildCompositeJoinQuery(facetFilters, qr, feedback);
-			if (this.provideFeedback) {
-				String message = "Final Join Query: " + joinQuery;
-				feedback.add(new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner", message));
-				log.debug(message);
+			if (resubmitState == null) {
+				// Only the resubmitting routers read the state back
+				if (qr.getMaxResubmits() > 0) {
+					ResubmitState.store(qr);
+				}
+				if (configuration.getNegativeCacheTtlSeconds() > 0) {
+					this.applyNegativeResultCache(plan, qr, diagnostics);
+				}
+			}
+			if (configuration.isTieredRelaxation() && configuration.isTierSeparable()
+					&& !qr.getProperty(NegativeResultCache.RELAXED_PROPERTY_NAME, false)) {
+				this.applyTieredRelaxation(configuration, qr, diagnostics);
 			}
+			Map<String, List<Query>> facetFilters = this.extractMetadataFacetFilterQueries(plan, qr, diagnostics,
+					batch);
+			long extracted = System.nanoTime();
+			Query joinQuery = this.buildCompositeJoinQuery(plan, facetFilters, qr, diagnostics);
+			long built = System.nanoTime();
 			qr.setQuery(joinQuery);
+			long set = System.nanoTime();
+			diagnostics.record(Event.FINAL_QUERY, joinQuery);
+			if (configuration.isFingerprintNeeded()) {
+				qr.setProperty(QueryFingerprint.PROPERTY_NAME, QueryFingerprint.of(qr).toString());
+			}
+			if (configuration.getFacetCacheTtlSeconds() > 0 && joinQuery instanceof CompositeJoinQuery) {
+				this.applyFacetCache(plan, (CompositeJoinQuery) joinQuery, qr, diagnostics);
+			}
+			if (configuration.isTableDescriptionNeeded()) {
+				this.describeTables(plan, qr, facetFilters);
+			}
+			this.metrics.record(extracted - start, built - extracted, set - built, diagnostics.getPlanShape(),
+					joinQuery);
 		}
-		return feedback;
+		return diagnostics.toFeedback();
 	}
 
 	/**
-	 * Strips both filter queries and facet filters that pertain to the table being
-	 * joined to from the {@code QueryRequest} and converts them into a list
-	 * of{@code Queries} which can be added into the {@code CompositeJoin} down the
-	 * line.
-	 * 
-	 * @param qr       The {@code QueryRequest} to strip the specific filter queries
-	 *                 and facet filters from
-	 * @param feedback List of feedback to add additional feedback to
-	 * @return A list of {@code Query} objects that represent the stripped filters
-	 *         and facet filters
+	 * Describes the clauses of the join for the {@link TableStatisticsRegistry}:
+	 * each child table's rollup limit, and which tables have facet filters.
 	 */
-	private Map<String, List<Query>> extractMetadataFacetFilterQueries(QueryRequest qr, List<QueryFeedback> feedback) {
-		Map<String, List<Query>> filterSubQueries = new HashMap<String, List<Query>>();
-		for (String table : this.childTableFacetFields.keySet()) {
-			filterSubQueries.put(table,
-					this.extractMetadataFacetFilterQueriesHelper(qr, feedback, this.childTableFacetFields.get(table)));
+	private void describeTables(JoinPlanTemplate plan, QueryRequest qr, Map<String, List<Query>> facetFilters) {
+		// Without adaptive rollup the limits only depend on the configuration, and
+		// were encoded when the template was compiled
+		String encodedRollupLimits = plan.getEncodedRollupLimits();
+		if (encodedRollupLimits == null) {
+			encodedRollupLimits = this.encodeRollupLimits(plan.getConfiguration(), plan.getTables());
+		}
+		qr.setProperty(TableStatisticsRegistry.ROLLUP_LIMITS_PROPERTY_NAME, encodedRollupLimits);
+		if (!facetFilters.isEmpty()) {
+			qr.setProperty(TableStatisticsRegistry.FILTERED_TABLES_PROPERTY_NAME,
+					TableStatisticsRegistry.encodeTableNames(facetFilters.keySet()));
 		}
-		return filterSubQueries;
 	}
 
-	private List<Query> extractMetadataFacetFilterQueriesHelper(QueryRequest qr, List<QueryFeedback> feedback,
-			List<String> fieldNames) {
+	/**
+	 * @return the current rollup limits of the child tables, encoded for the
+	 *         {@link TableStatisticsRegistry}
+	 */
+	String encodeRollupLimits(JoinerConfiguration configuration, List<TableClause> tables) {
+		Map<String, Integer> rollupLimits = new LinkedHashMap<String, Integer>();
+		for (TableClause table : tables) {
+			rollupLimits.put(table.getTable(), this.rollupLimit(configuration, table));
+		}
+		return TableStatisticsRegistry.encodeRollupLimits(rollupLimits);
+	}
 
-		List<Query> facetSubQueries = new ArrayList<Query>();
+	/**
+	 * Orders the child tables for a request's join clauses, with
+	 * {@link JoinCanonicalizer#orderClauses}.
+	 * 
+	 * @param plan            The request's plan template
+	 * @param facetFiltersMap A map of child table name to the queries added to its
+	 *                        clause
+	 * @return the child tables in clause order
+	 */
+	List<TableClause> orderTables(JoinPlanTemplate plan, Map<String, List<Query>> facetFiltersMap) {
+		return JoinCanonicalizer.orderClauses(plan.getTables(), facetFiltersMap, true, plan.getPlanner());
+	}
 
-		// Collect both Filters and FacetFilters that have been applied to the query
-		List<Query> originalFilters = qr.getFilters();
+	/**
+	 * Returns the rollup limit for a child table's clause: the table's Max Child
+	 * Docs setting if it has one, otherwise the adaptive limit if adaptive rollup
+	 * is turned on, otherwise {@link JoinPlanTemplate#DEFAULT_ROLLUP_LIMIT}.
+	 * 
+	 * @param configuration The configuration of the request's plan template
+	 * @param table         The child table
+	 * @return the rollup limit, or a negative number to leave the clause without
+	 *         one
+	 */
+	int rollupLimit(JoinerConfiguration configuration, TableClause table) {
+		if (table.getConfiguredRollupLimit() != null) {
+			return table.getConfiguredRollupLimit();
+		}
+		if (configuration.isAdaptiveRollup()) {
+			return this.adaptiveRollupLimit(configuration, table);
+		}
+		return table.getRollupLimit();
+	}
 
-		if (qr.getResubmits() > 0 && qr.hasProperty(FILTER_PROPERTY_NAME)) {
-			Object filterPropValue = qr.getProperty(FILTER_PROPERTY_NAME);
-			if (filterPropValue instanceof List<?>) {
-				originalFilters = new ArrayList<Query>();
-				// It has to be a list because setting a List<Query> as a QR property isn't
-				// supported
-				List<String> filterStringList = (List<String>) filterPropValue;
-				for (String s : filterStringList) {
-					Query q = new QueryString(s);
-					originalFilters.add(q);
-				}
-			}
+	/**
+	 * Sizes a table's rollup from the 90th percentile of the children per parent
+	 * observed in the {@link TableStatisticsRegistry}:
+	 * {@code clamp(p90, floor, ceiling)}. The requested rows don't cap the limit,
+	 * since they count parents and the limit counts each parent's children. While
+	 * the observed counts are recently often cut off at the rollup limit, the 90th
+	 * percentile is a lower bound of the real one, so the limit is doubled instead
+	 * until the counts settle.
+	 */
+	private int adaptiveRollupLimit(JoinerConfiguration configuration, TableClause table) {
+		TableCounters counters = TableStatisticsRegistry.getInstance().get(table.getTable());
+		long limit;
+		if (counters == null || counters.getSampledParents() < TableStatisticsRegistry.MIN_SAMPLED_PARENTS) {
+			limit = JoinPlanTemplate.DEFAULT_ROLLUP_LIMIT;
+		} else if (counters.getTruncationRate() > 0.1) {
+			limit = Math.max(1, counters.getChildrenPerParentPercentile(90)) * 2;
 		} else {
-			// We do this so that if the query gets resubmitted we can access the original
-			// filters
-			List<String> originalFiltersAsStringList = new BaseTypesList<String>();
-			for (Query q : originalFilters) {
-				originalFiltersAsStringList.add(q.getQueryString());
+			limit = counters.getChildrenPerParentPercentile(90);
+		}
+		return (int) Math.max(configuration.getAdaptiveRollupFloor(),
+				Math.min(configuration.getAdaptiveRollupCeiling(), limit));
+	}
+
+	/**
+	 * Stores the request's {@link NegativeResultCache} key on it, and relaxes the
+	 * query up front if the unrelaxed query recently found nothing. The key covers
+	 * the request's principal, and requests with an access control query are left
+	 * out of the cache, since what they find depends on the user.
+	 */
+	private void applyNegativeResultCache(JoinPlanTemplate plan, QueryRequest qr, JoinDiagnostics diagnostics) {
+		if (AccessControls.isAccessControlled(qr)) {
+			log.trace("Not caching empty passes of an access controlled request");
+			return;
+		}
+		String key = NegativeResultCache.key(this.configurationKey(plan), qr);
+		qr.setProperty(NegativeResultCache.KEY_PROPERTY_NAME, key);
+		if (NegativeResultCache.getInstance().isKnownEmpty(key, EmptyPass.UNRELAXED,
+				plan.getConfiguration().getNegativeCacheTtlSeconds())) {
+			BooleanOrQuery relaxedQuery = QueryRelaxation.relax(qr.getQuery());
+			if (relaxedQuery != null && relaxedQuery.getClauses().length > 0) {
+				diagnostics.record(Event.KNOWN_EMPTY_RELAXED, relaxedQuery);
+				qr.setQuery(relaxedQuery.toString(), QueryLanguages.ADVANCED);
+				qr.setProperty(NegativeResultCache.RELAXED_PROPERTY_NAME, true);
 			}
-			qr.setProperty(FILTER_PROPERTY_NAME, originalFiltersAsStringList);
 		}
+	}
 
-		List<FacetFilter> originalFacetFilters = qr.getFacetFilters();
+	/**
+	 * Replaces the user query with its tiers: the query boosted by the Tier Boost,
+	 * or its relaxed form, matching at least the Relaxed Minimum Match of its
+	 * terms. Queries that can't be relaxed are left alone.
+	 */
+	private void applyTieredRelaxation(JoinerConfiguration configuration, QueryRequest qr,
+			JoinDiagnostics diagnostics) {
+		Query tieredQuery = QueryRelaxation.tier(qr.getQuery(), configuration.getTierBoost(),
+				configuration.getRelaxedMinimumMatch());
+		if (tieredQuery != null) {
+			diagnostics.record(Event.TIERED_RELAXATION, tieredQuery);
+			// Set as is, so the relaxed tier keeps its minimum match
+			qr.setQuery(tieredQuery);
+			qr.setProperty(QueryRelaxation.TIER_BOOST_PROPERTY_NAME, configuration.getTierBoost());
+			qr.setProperty(QueryRelaxation.MAX_UNBOOSTED_SCORE_PROPERTY_NAME, configuration.getMaxUnboostedScore());
+		}
+	}
 
-		if (qr.getResubmits() > 0 && qr.hasProperty(FACET_FILTER_PROPERTY_NAME)) {
-			Object facetFilterPropValue = qr.getProperty(FACET_FILTER_PROPERTY_NAME);
-			if (facetFilterPropValue instanceof List<?>) {
-				List<String> facetFiltersAsString = new BaseTypesList<String>();
-				originalFacetFilters = new ArrayList<FacetFilter>();
-				for (String ff : facetFiltersAsString) {
-					originalFacetFilters.add(FacetFilter.valueOf(ff));
-				}
+	/**
+	 * Stores the request's {@link ChildFacetCache} key on it, and turns off facet
+	 * counting for the child table clauses if their counts are cached.
+	 */
+	private void applyFacetCache(JoinPlanTemplate plan, CompositeJoinQuery join, QueryRequest qr,
+			JoinDiagnostics diagnostics) {
+		boolean childFacets = false;
+		for (Clause clause : join.getClauses()) {
+			childFacets |= clause.isFacet();
+		}
+		if (!childFacets) {
+			return;
+		}
+		if (AccessControls.isAccessControlled(qr)) {
+			log.trace("Not caching the facets of an access controlled request");
+			return;
+		}
+		Set<String> facetNames = new LinkedHashSet<String>();
+		for (TableClause table : plan.getTables()) {
+			List<String> tableFacetFields = plan.getConfiguration().getChildTableFacetFields().get(table.getTable());
+			if (table.isFacet() && tableFacetFields != null) {
+				facetNames.addAll(tableFacetFields);
 			}
-		} else {
-			// We do this so that if the query gets resubmitted we can access the original
-			// filters
-			List<String> originalFiltersAsStringList = new BaseTypesList<String>();
-			for (FacetFilter ff : originalFacetFilters) {
-				originalFiltersAsStringList.add(ff.toString());
+		}
+		String key = ChildFacetCache.key(this.configurationKey(plan), qr);
+		qr.setProperty(ChildFacetCache.KEY_PROPERTY_NAME, key);
+		qr.setProperty(ChildFacetCache.FACET_NAMES_PROPERTY_NAME, ChildFacetCache.encodeFacetNames(facetNames));
+		byte[] cached = ChildFacetCache.getInstance().getIfFresh(key,
+				plan.getConfiguration().getFacetCacheTtlSeconds());
+		if (cached != null) {
+			// Pinned on the request before the child tables stop being counted, so the
+			// response gets these facets even if the entry is evicted in the meantime
+			qr.setProperty(ChildFacetCache.HIT_PROPERTY_NAME, cached);
+			for (Clause clause : join.getClauses()) {
+				clause.setFacet(false);
 			}
-			qr.setProperty(FILTER_PROPERTY_NAME, originalFiltersAsStringList);
-		}
-
-		List<Query> newFilters = new ArrayList<Query>();
-		List<FacetFilter> newFacetFilters = new ArrayList<FacetFilter>();
-
-		// Handle the filter queries first. These are a little more complex to get the
-		// field and value
-		// from, so we use Regex.
-		// NOTE: There is probably a better way that I don't know about that doesn't
-		// require Regex.
-		// The idea here is loop through the filters, and if any of them pertain to the
-		// metadata facet
-		// fields, extract them into specific queries that we can leverage within our
-		// composite join.
-		for (Query filterQuery : originalFilters) {
-			String queryString = filterQuery.toString();
-			boolean matchFound = false;
-			for (String facetFieldName : fieldNames) {
-				if (queryString.contains(facetFieldName)) {
-					if (this.provideFeedback) {
-						String message = "Found metadata facet filter in QueryFilter: " + queryString;
-						feedback.add(
-								new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner", message));
-						log.trace(message);
-					}
-					// String regex = facetFieldName + ":(.*)\"";
-					// Pattern pattern = Pattern.compile(regex);
-					// Matcher m = pattern.matcher(queryString);
-					// if (m.find() && m.groupCount() >= 1) {
-					matchFound = true;
-					// String fieldValue = m.group(1);
-					// // QueryRequest filterQueryRequest = new QueryRequest();
-					// // filterQueryRequest.setQuery(facetFieldName + ":" + fieldValue, "simple");
-					// // facetSubQueries.add(filterQueryRequest.getQuery());
-					// QueryString newFilterQuery = new QueryString(facetFieldName + ":" +
-					// fieldValue);
-					// facetSubQueries.add(newFilterQuery);
-					facetSubQueries.add(filterQuery);
-					if (this.provideFeedback) {
-						String message = "Found " + facetFieldName
-								+ ", stripping from filter and building into query...";
-						feedback.add(
-								new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner", message));
-						log.trace(message);
+			diagnostics.record(Event.FACET_CACHE_HIT);
+		}
+	}
+
+	/**
+	 * @return whether a pass of the request recently found nothing
+	 */
+	private boolean isKnownEmpty(JoinerConfiguration configuration, QueryRequest qr, EmptyPass pass) {
+		int ttlSeconds = configuration.getNegativeCacheTtlSeconds();
+		return ttlSeconds > 0 && qr.hasProperty(NegativeResultCache.KEY_PROPERTY_NAME)
+				&& NegativeResultCache.getInstance().isKnownEmpty(
+						qr.getProperty(NegativeResultCache.KEY_PROPERTY_NAME, ""), pass, ttlSeconds);
+	}
+
+	/**
+	 * Identifies the configuration that affects the results of the joins this
+	 * joiner builds, for cache keys.
+	 * 
+	 * @param plan The request's plan template
+	 * @return a string identifying the joiner's configuration
+	 */
+	protected String configurationKey(JoinPlanTemplate plan) {
+		JoinerConfiguration configuration = plan.getConfiguration();
+		return this.getClass().getName() + '|' + configuration.getJoinField() + '|'
+				+ configuration.isStrictChildMatching() + '|' + configuration.isAllowChildDocOnlySearch() + '|'
+				+ configuration.isSinglePassStrictJoin() + '|' + configuration.isTieredRelaxation() + '|'
+				+ configuration.getTierBoost() + '|' + configuration.getRelaxedMinimumMatch() + '|'
+				+ plan.getConfigurationKey();
+	}
+
+	/**
+	 * @return the metrics shared by all joiners of this class
+	 */
+	public JoinerMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Creates the diagnostics for a request, which only records events when
+	 * feedback is turned on and the request is sampled.
+	 * 
+	 * @param configuration The request's configuration
+	 * @return the diagnostics to record the request's events in
+	 */
+	protected JoinDiagnostics newDiagnostics(JoinerConfiguration configuration) {
+		return JoinDiagnostics.create(this.getClass().getSimpleName(), this.getClass().getSimpleName(),
+				configuration.isProvideFeedback(), configuration.getFeedbackSamplePercent(),
+				configuration.getMaxFeedbackEvents());
+	}
+
+	/**
+	 * Strips both filter queries and facet filters that pertain to the tables being
+	 * joined to from the {@code QueryRequest} and converts them into lists of
+	 * {@code Queries} which can be added into the {@code CompositeJoin} down the
+	 * line. The filters are routed to their child tables in a single pass, using
+	 * the {@link FieldTableIndex} of the plan template. Each table's queries, and
+	 * the filters left on the request, are sorted and deduplicated by the
+	 * {@link JoinCanonicalizer}. <br>
+	 * <br>
+	 * Nothing is allocated for tables without filters, and a request without any
+	 * filters on the child tables gets the shared empty map and keeps its own
+	 * filter lists.
+	 * 
+	 * @param plan     The request's plan template
+	 * @param qr       The {@code QueryRequest} to strip the specific filter queries
+	 *                 and facet filters from
+	 * @param diagnostics Diagnostics to record the extracted filters in
+	 * @return A map of child table name to the {@code Query} objects that represent
+	 *         the stripped filters and facet filters for that table. Tables without
+	 *         any are left out.
+	 */
+	Map<String, List<Query>> extractMetadataFacetFilterQueries(JoinPlanTemplate plan, QueryRequest qr,
+			JoinDiagnostics diagnostics) {
+		return this.extractMetadataFacetFilterQueries(plan, qr, diagnostics, null);
+	}
+
+	/**
+	 * @param batch The batch to route and compile the filters with, or
+	 *              {@code null} to use the plan template directly
+	 * @see #extractMetadataFacetFilterQueries(JoinPlanTemplate, QueryRequest,
+	 *      JoinDiagnostics)
+	 */
+	Map<String, List<Query>> extractMetadataFacetFilterQueries(JoinPlanTemplate plan, QueryRequest qr,
+			JoinDiagnostics diagnostics, TransformBatch batch) {
+		FieldTableIndex fieldTableIndex = plan.getFieldTableIndex();
+		Map<String, List<Query>> filterSubQueries = null;
+
+		// Handle the filter queries first. Any filter that references one of the
+		// child table facet fields is pulled out of the request so that it can be
+		// applied to that table's clause in the composite join. The filters left on
+		// the request are only copied once the first one is pulled out.
+		List<Query> originalFilters = qr.getFilters();
+		if (originalFilters != null && !originalFilters.isEmpty()) {
+			List<Query> newFilters = null;
+			for (int i = 0; i < originalFilters.size(); i++) {
+				Query filterQuery = originalFilters.get(i);
+				String filterString = filterQuery.toString();
+				Set<String> tables = batch != null ? batch.route(filterString) : fieldTableIndex.route(filterString);
+				if (tables.isEmpty()) {
+					diagnostics.record(Event.FILTER_IGNORED, filterQuery);
+					if (newFilters != null) {
+						newFilters.add(filterQuery);
 					}
-					// }
+					continue;
 				}
-			}
-			if (!matchFound) {
-				if (this.provideFeedback) {
-					String message = "Not a filter of interest - ignoring...: " + filterQuery.toString();
-					feedback.add(new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner",
-							"Not a filter of interest - ignoring...: " + filterQuery.toString()));
-					log.trace(message);
+				if (newFilters == null) {
+					newFilters = new ArrayList<Query>(originalFilters.subList(0, i));
+				}
+				for (String table : tables) {
+					filterSubQueries = addFilter(filterSubQueries, table, filterQuery);
+					diagnostics.record(Event.FILTER_EXTRACTED, filterQuery, table);
 				}
-				newFilters.add(filterQuery);
+			}
+			List<Query> remainingFilters = JoinCanonicalizer
+					.sortAndDedupe(newFilters != null ? newFilters : originalFilters);
+			if (remainingFilters != originalFilters) {
+				qr.setFilters(remainingFilters);
 			}
 		}
-		qr.setFilters(newFilters);
 
 		// Next handle the FacetFilters
-		for (FacetFilter f : originalFacetFilters) {
-			String queryString = f.toString();// .getFilter().getQueryString();
-			boolean matchFound = false;
-			for (String facetFieldName : fieldNames) {
-				if (queryString.contains(facetFieldName)) {
-					if (this.provideFeedback) {
-						String message = "Found metadata facet filter in QueryFilter: " + queryString;
-						feedback.add(
-								new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner", message));
-						log.trace(message);
-					}
-					// Query newQuery = f.getFilter();
-					// facetSubQueries.add(newQuery);
-					// if (this.provideFeedback) {
-					// String message = "Found " + facetFieldName
-					// + ", stripping from filter and building into query..." + newQuery;
-					// feedback.add(
-					// new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner",
-					// message));
-					// log.trace(message);
-					// }
-					String regex = facetFieldName + ":FACET.{1}(.*).{1},{0,1}";
-					System.out.println("MATCHING: " + regex + " ON " + queryString);
-					Pattern pattern = Pattern.compile(regex);
-					Matcher m = pattern.matcher(queryString);
-					if (m.find() && m.groupCount() >= 1) {
+		List<FacetFilter> originalFacetFilters = qr.getFacetFilters();
+		if (originalFacetFilters != null && !originalFacetFilters.isEmpty()) {
+			FacetFilterCompiler compiler = plan.getFacetFilterCompiler();
+			List<FacetFilter> newFacetFilters = null;
+			for (int i = 0; i < originalFacetFilters.size(); i++) {
+				FacetFilter f = originalFacetFilters.get(i);
+				boolean matchFound = false;
+				for (CompiledFacetFilter compiled : batch != null ? batch.compile(f) : compiler.compile(f)) {
+					for (String table : fieldTableIndex.getTables(compiled.getField())) {
 						matchFound = true;
-						String fieldValue = m.group(1);
-						fieldValue = fieldValue.substring(0, fieldValue.length() - 1);
-						fieldValue = this.handleRangeFacetFilters(fieldValue);
-						Query newQueryString = new QueryString(facetFieldName + ":" + fieldValue);
-						SubQuery newQuery = new SubQuery(newQueryString);
-						// This is so the facet filter queries don't show up in Search Analytics
-						newQuery.setParameter("abc.userquery", false);
-						facetSubQueries.add(newQuery);
-						if (this.provideFeedback) {
-							String message = "Found " + facetFieldName
-									+ ", stripping from filter and building into query..." + newQuery;
-							feedback.add(new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner",
-									message));
-							log.trace(message);
-						}
-						// QueryRequest filterQueryRequest = new QueryRequest();
-						// filterQueryRequest.setQuery(facetFieldName + ":" + fieldValue, "simple");
-						// facetSubQueries.add(filterQueryRequest.getQuery());
-
-						// QueryString qs = new QueryString(facetFieldName + ":" + "[0 TO 2000]");
-						// facetSubQueries.add(qs);
+						Query facetFilterQuery = compiled.newQuery();
+						filterSubQueries = addFilter(filterSubQueries, table, facetFilterQuery);
+						diagnostics.record(Event.FACET_FILTER_EXTRACTED, compiled.getField(), table,
+								facetFilterQuery);
 					}
-					if (this.provideFeedback) {
-						feedback.add(new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner",
-								"Found " + facetFieldName + ", stripping from filter and building into query..."));
+				}
+				if (!matchFound) {
+					diagnostics.record(Event.FACET_FILTER_IGNORED, f);
+					if (newFacetFilters != null) {
+						newFacetFilters.add(f);
 					}
+				} else if (newFacetFilters == null) {
+					newFacetFilters = new ArrayList<FacetFilter>(originalFacetFilters.subList(0, i));
 				}
 			}
-			if (!matchFound) {
-				if (this.provideFeedback) {
-					String message = "Not a filter of interest - ignoring...: " + f.toString();
-					feedback.add(new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner",
-							"Not a filter of interest - ignoring...: " + f.toString()));
-					log.trace(message);
-				}
-				newFacetFilters.add(f);
+			if (newFacetFilters != null) {
+				qr.setFacetFilters(newFacetFilters);
 			}
 		}
-		qr.setFacetFilters(newFacetFilters);
-		return facetSubQueries;
+
+		if (filterSubQueries == null) {
+			return Collections.emptyMap();
+		}
+		for (Map.Entry<String, List<Query>> tableFilters : filterSubQueries.entrySet()) {
+			tableFilters.setValue(JoinCanonicalizer.sortAndDedupe(tableFilters.getValue()));
+		}
+		return filterSubQueries;
 	}
 
-	/**
-	 * For facet filters coming from Range Facets, we need to extract the RANGE
-	 * query and rewrite it to the standard range syntax from simple query language
-	 * (like [], [}, etc.)
-	 * 
-	 * @param fieldValue The field value to conditionally rewrite into a proper
-	 *                   range query if necessary
-	 */
-	private String handleRangeFacetFilters(String fieldValue) {
-		String returnValue = fieldValue;
-		String regexForNumericRanges = "RANGE\\((.*),\\s{0,1}(.*),\\s{0,1}upper=(\\w*)\\)";
-		Pattern pForNumRanges = Pattern.compile(regexForNumericRanges);
-		Matcher mForNumRanges = pForNumRanges.matcher(fieldValue);
-		if (mForNumRanges.find() && mForNumRanges.groupCount() >= 3) {
-			// We found a range
-			String rangeStart = mForNumRanges.group(1);
-			String rangeEnd = mForNumRanges.group(2);
-			String upperBoundryType = mForNumRanges.group(3);
-			if (upperBoundryType.equals("exclusive")) {
-				returnValue = String.format("[%s TO %s}", rangeStart, rangeEnd);
-			} else if (upperBoundryType.equals("inclusive")) {
-				returnValue = String.format("[%s TO %s]", rangeStart, rangeEnd);
-			}
+	private static Map<String, List<Query>> addFilter(Map<String, List<Query>> filterSubQueries, String table,
+			Query filter) {
+		if (filterSubQueries == null) {
+			filterSubQueries = new HashMap<String, List<Query>>();
 		}
-		log.trace(String.format("Rewrote field value from facet filter query from %s to %s", fieldValue, returnValue));
-		return returnValue;
+		List<Query> tableFilters = filterSubQueries.get(table);
+		if (tableFilters == null) {
+			tableFilters = new ArrayList<Query>(2);
+			filterSubQueries.put(table, tableFilters);
+		}
+		tableFilters.add(filter);
+		return filterSubQueries;
 	}
 
 	/**
@@ -502,88 +916,99 @@ public class GenericCompositeJoiner implements QueryTransformer {
 	 * <b>Note:</b>This strict join will only match on hits in the child tables, not
 	 * the parent table. Looping back to relax the query will be required for that.
 	 * 
+	 * @param plan The request's plan template
 	 * @param facetFilters
 	 * @param qr
-	 * @param feedback
+	 * @param diagnostics
 	 * @return the constructed CompositeJoinQuery.
 	 * @throws AttivioException
 	 */
-	protected Query buildCompositeJoinQuery(Map<String, List<Query>> facetFiltersMap, QueryRequest qr,
-			List<QueryFeedback> feedback) throws AttivioException {
-
-		if (qr.getResubmits() > 0 && qr.hasProperty(ORIGINAL_QUERY_PROPERTY_NAME)) {
-			String originalQueryAsString = qr.getProperty(ORIGINAL_QUERY_PROPERTY_NAME, "*:*");
-			String queryLanguage = qr.getProperty(ORIGINAL_QUERY_LANGUAGE_NAME, "advanced");
-			qr.setQuery(originalQueryAsString, queryLanguage);
-		} else {
-			// If the query gets resubmitted we'll need this, since we don't want to use the
-			// JOIN query as the query in our new JOIN
-			qr.setProperty(ORIGINAL_QUERY_PROPERTY_NAME, qr.getQueryString());
-			qr.setProperty(ORIGINAL_QUERY_LANGUAGE_NAME, qr.getQueryLanguage());
-		}
+	protected Query buildCompositeJoinQuery(JoinPlanTemplate plan, Map<String, List<Query>> facetFiltersMap,
+			QueryRequest qr, JoinDiagnostics diagnostics) throws AttivioException {
 
 		// If we need to build a strict join we need to build the query differently than
 		// using a normal composite join
-		boolean shouldBeComposite = !this.strictChildMatching || qr.getQuery().toString().contains("*:*")
-				|| qr.getQuery().toString().equals("*");
+		String userQueryString = qr.getQuery().toString();
+		boolean shouldBeComposite = !plan.getConfiguration().isStrictChildMatching()
+				|| userQueryString.contains("*:*") || userQueryString.equals("*");
 		if (!shouldBeComposite) {
-			return this.buildStrictChildMatchingJoin(facetFiltersMap, qr, feedback);
+			return this.buildStrictChildMatchingJoin(plan, facetFiltersMap, qr, diagnostics);
 		}
-		CompositeJoinQuery compJoin = new CompositeJoinQuery(qr.getQuery());
+		JoinPlanner planner = plan.getPlanner();
+		if (planner.isEnabled() && JoinPlanner.isMatchAll(qr.getQuery()) && this.isEquivalentToParentOnly(plan)) {
+			// A match-all query can't select parents through their children, so a plain
+			// join returns the same parents as the composite join
+			PlanShape shape = planner.choose(Arrays.asList(PlanShape.COMPOSITE, PlanShape.PARENT_ONLY),
+					plan.getTables(), facetFiltersMap, true);
+			diagnostics.record(Event.PLAN_CHOSEN, shape);
+			if (shape == PlanShape.PARENT_ONLY) {
+				diagnostics.setPlanShape(PlanShape.PARENT_ONLY);
+				return this.buildJoinForParentTableOnly(plan, facetFiltersMap, qr, false);
+			}
+		}
+		diagnostics.setPlanShape(PlanShape.COMPOSITE);
+		return this.buildCompositeJoin(plan, facetFiltersMap, qr, diagnostics);
+	}
 
-		Query fromQuery = this.generateFromQuery();
-		compJoin.setFromQuery(fromQuery);
-		compJoin.setField(this.joinField);
+	/**
+	 * For a match-all query, the parent only join returns the same response as the
+	 * composite join only when no child table is included in the facet counts,
+	 * since a {@code JoinClause} can't count facets. The clauses of both plans take
+	 * their join modes, boosts and rollup limits from the same table settings.
+	 * 
+	 * @param plan The request's plan template
+	 * @return whether the planner may replace the composite join with the parent
+	 *         only join
+	 */
+	private boolean isEquivalentToParentOnly(JoinPlanTemplate plan) {
+		for (TableClause table : plan.getTables()) {
+			if (table.isFacet()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Builds a {@code CompositeJoinQuery} from the plan template, with the user
+	 * query matched in the parent and all child tables.
+	 * 
+	 * @param plan            The request's plan template
+	 * @param facetFiltersMap A map of child table name to a list of queries to add
+	 *                        to that child table's clause
+	 * @param qr
+	 * @param diagnostics
+	 * @return the composite join
+	 */
+	protected CompositeJoinQuery buildCompositeJoin(JoinPlanTemplate plan, Map<String, List<Query>> facetFiltersMap,
+			QueryRequest qr, JoinDiagnostics diagnostics) {
+		CompositeJoinQuery compJoin = new CompositeJoinQuery(qr.getQuery());
+		compJoin.setFromQuery(plan.newFromQuery());
+		compJoin.setField(plan.getConfiguration().getJoinField());
 
 		// Put all the metadata tables into a big OR query
-		for (String table : this.childTables.keySet()) {
-			JoinMode configuredModeForTable = JoinMode.fromExternal(this.childTables.get(table));
-			int boost = this.tableBoosts.containsKey(table) ? tableBoosts.get(table) : 0;
+		for (TableClause table : this.orderTables(plan, facetFiltersMap)) {
+			List<Query> facetFilters = facetFiltersMap.get(table.getTable());
 			Clause c;
-			if (facetFiltersMap.containsKey(table)) {
-				List<Query> facetFilters = facetFiltersMap.get(table);
-				PhraseQuery metadataTableQuery = new PhraseQuery(this.collectionFieldName, table);
-				if (facetFilters.size() > 0) {
-					BooleanAndQuery clause = new BooleanAndQuery(metadataTableQuery);
-					clause.add(facetFilters);
-					// Clauses will always use INNER joins when a relevant
-					// facet filter has been rewritten into the clause's query
-					c = compJoin.addClause(JoinMode.INNER, clause);
-					if (this.provideFeedback) {
-						String message = "Metadata FacetFilter Queries applied to join clause (ACTUAL CLAUSE): "
-								+ c.prettyFormat() + "with facet set to: " + c.isFacet();
-						feedback.add(
-								new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner", message));
-						log.debug(message);
-					}
-				} else {
-					c = compJoin.addClause(configuredModeForTable, metadataTableQuery);
-					if (this.provideFeedback) {
-						String message = "No metadata facet filters found. Adding clause (ACTUAL CLAUSE): "
-								+ c.prettyFormat() + "with facet set to: " + c.isFacet();
-						feedback.add(
-								new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner", message));
-						log.debug(message);
-					}
-				}
+			if (facetFilters != null && facetFilters.size() > 0) {
+				BooleanAndQuery clause = new BooleanAndQuery(table.newTableQuery());
+				clause.add(facetFilters);
+				// Clauses will always use INNER joins when a relevant
+				// facet filter has been rewritten into the clause's query
+				c = compJoin.addClause(JoinMode.INNER, clause);
+				diagnostics.record(Event.FACET_FILTER_CLAUSE, c, table.isFacet());
 			} else {
-				PhraseQuery clause = new PhraseQuery(this.collectionFieldName, table);
-				c = compJoin.addClause(configuredModeForTable, clause);
-
-				if (this.provideFeedback) {
-					String message = "No metadata facet filters found. Adding clause: " + clause;
-					feedback.add(new QueryFeedback(this.getClass().getSimpleName(), "GenericCompositeJoiner", message));
-					log.debug(message);
-				}
+				c = compJoin.addClause(table.getMode(), table.newTableQuery());
+				diagnostics.record(Event.CLAUSE, c, table.isFacet());
 			}
-			Integer maxDocs = this.maxChildDocs.containsKey(table) ? this.maxChildDocs.get(table) : 10;
-			if (maxDocs >= 0) {
-				c.setRollupLimit(maxDocs);
+			int rollupLimit = this.rollupLimit(plan.getConfiguration(), table);
+			if (rollupLimit >= 0) {
+				c.setRollupLimit(rollupLimit);
 			}
-			if (!this.tablesToIncludeInFacetCounts.contains(table)) {
+			if (!table.isFacet()) {
 				c.setFacet(false);
 			}
-			c.setBoost(boost);
+			c.setBoost(table.getBoost());
 		}
 		return compJoin;
 	}
@@ -595,137 +1020,247 @@ public class GenericCompositeJoiner implements QueryTransformer {
 	 * match is found, but if the match is only found in the child documents, only
 	 * those children will be returned. This is different from the normal
 	 * {@code CompositeJoin} behavior where all matches from a child table are
-	 * returned as long as a match is found on at least one of them.
+	 * returned as long as a match is found on at least one of them. <br>
+	 * <br>
+	 * The branches differ only in the clause of the table they search, so the from
+	 * query, the user query and every other clause are built once and shared by all
+	 * of the branches. A single branch is returned without the {@code OR}. <br>
+	 * <br>
+	 * In a single pass strict join the parent only branch is boosted by the tier
+	 * boost, so matches in the parents rank above matches in the children.
 	 * 
+	 * @param plan            The request's plan template
 	 * @param facetFiltersMap A map of child table name to a list of queries to add
 	 *                        to that child table's join clause
 	 * @param qr
-	 * @param feedback
+	 * @param diagnostics
 	 * @return
 	 */
-	private Query buildStrictChildMatchingJoin(Map<String, List<Query>> facetFiltersMap, QueryRequest qr,
-			List<QueryFeedback> feedback) {
+	private Query buildStrictChildMatchingJoin(JoinPlanTemplate plan, Map<String, List<Query>> facetFiltersMap,
+			QueryRequest qr, JoinDiagnostics diagnostics) {
+		JoinerConfiguration configuration = plan.getConfiguration();
+		// A single pass searches the parents and the children together, in place of
+		// the parent only pass and the child only pass, unless the scores can't tell
+		// the parent tier from the child tier
+		boolean singlePass = configuration.isAllowChildDocOnlySearch() && configuration.isSinglePassStrictJoin()
+				&& configuration.isTierSeparable();
+		boolean twoPass = configuration.isAllowChildDocOnlySearch() && !singlePass;
 		boolean firstTimeThrough = !qr.hasProperty(STRICT_QUERY_PROPERTY_NAME)
 				|| !qr.getProperty(STRICT_QUERY_PROPERTY_NAME, false);
-		boolean searchOnlyParentTable = firstTimeThrough && this.allowChildDocOnlySearch;
-		boolean searchOnlyChildren = !firstTimeThrough && this.allowChildDocOnlySearch;
+		if (firstTimeThrough && twoPass && this.isKnownEmpty(configuration, qr, EmptyPass.PARENT_ONLY)) {
+			// Skip the parent only join, which recently found nothing for this request
+			diagnostics.record(Event.KNOWN_EMPTY_CHILD_ONLY);
+			firstTimeThrough = false;
+		}
+		boolean searchOnlyParentTable = firstTimeThrough && twoPass;
+		boolean searchOnlyChildren = !firstTimeThrough && twoPass;
 		if (searchOnlyParentTable) {
-			return this.buildJoinForParentTableOnly(facetFiltersMap, qr, feedback, true);
+			diagnostics.setPlanShape(PlanShape.PARENT_ONLY);
+			return this.buildJoinForParentTableOnly(plan, facetFiltersMap, qr, true);
 		}
-		BooleanOrQuery orQuery = new BooleanOrQuery();
-		Query fromQuery = this.generateFromQuery();
-		Set<String> tablesToLoopThrough = new HashSet<String>(this.childTables.keySet());
-		for (String tableToSearchIn : tablesToLoopThrough) {
-			JoinQuery join = new JoinQuery();
-			join.setQuery(fromQuery);
-			for (String childTable : this.childTables.keySet()) {
-				JoinMode joinMode = JoinMode.fromExternal(this.childTables.get(childTable));
-				PhraseQuery basicTableQuery = new PhraseQuery(this.collectionFieldName, childTable);
-				Query clauseQuery;
-				if (childTable.equals(tableToSearchIn)) {
-					BooleanAndQuery andQuery = new BooleanAndQuery(basicTableQuery);
-					SubQuery userQuery = new SubQuery(qr.getQuery());
-					userQuery.setParameter("abc.userquery", true);
-					andQuery.add(userQuery);
-					if (facetFiltersMap.containsKey(childTable)) {
-						andQuery.add(facetFiltersMap.get(childTable));
-					}
-					clauseQuery = andQuery;
-					joinMode = JoinMode.INNER;
-				} else if (facetFiltersMap.containsKey(childTable) && facetFiltersMap.get(childTable).size() > 0) {
-					BooleanAndQuery andQuery = new BooleanAndQuery(basicTableQuery);
-					andQuery.add(facetFiltersMap.get(childTable));
-					clauseQuery = andQuery;
-					joinMode = JoinMode.INNER;
-				} else {
-					clauseQuery = basicTableQuery;
-				}
-				JoinClause c = new JoinClause(clauseQuery, joinMode, this.joinField, this.joinField);
-				if (this.tableBoosts.containsKey(childTable)) {
-					c.setBoost(this.tableBoosts.get(childTable));
-				}
-				Integer maxDocs = this.maxChildDocs.containsKey(childTable) ? this.maxChildDocs.get(childTable) : 10;
-				if (maxDocs >= 0) {
-					c.setRollupLimit(maxDocs);
-				}
-				join.add(c);
+		diagnostics.setPlanShape(PlanShape.STRICT_OR_OF_JOINS);
+		List<TableClause> tables = this.orderTables(plan, facetFiltersMap);
+		SubQuery userQuery = this.newUserSubQuery(qr);
+		JoinClause[] sharedClauses = this.newJoinClauses(plan, tables, facetFiltersMap, qr);
+		boolean[] searchable = this.searchableTables(plan, tables, qr, !searchOnlyChildren, diagnostics);
+		List<Query> branches = new ArrayList<Query>(tables.size() + 1);
+		for (int searched = 0; searched < tables.size(); searched++) {
+			if (!searchable[searched]) {
+				continue;
 			}
-			String message = "Adding join query to strict or query: " + join;
-			log.trace(message);
-			if (this.provideFeedback) {
-				feedback.add(new QueryFeedback(this.getClass().getCanonicalName(), "Generatd Join Query", message));
+			TableClause tableToSearchIn = tables.get(searched);
+			List<Query> facetFilters = facetFiltersMap.get(tableToSearchIn.getTable());
+			BooleanAndQuery andQuery = new BooleanAndQuery(tableToSearchIn.newTableQuery());
+			andQuery.add(userQuery);
+			if (facetFilters != null) {
+				andQuery.add(facetFilters);
 			}
-			orQuery.add(join);
+			JoinQuery join = new JoinQuery();
+			join.setQuery(plan.newFromQuery());
+			for (int i = 0; i < tables.size(); i++) {
+				join.add(i == searched ? this.newJoinClause(plan, tableToSearchIn, andQuery, JoinMode.INNER, qr)
+						: sharedClauses[i]);
+			}
+			log.trace("Adding join query to strict or query: {}", join);
+			diagnostics.record(Event.STRICT_JOIN_BRANCH, join);
+			branches.add(join);
 		}
-		if (!searchOnlyChildren) {
-			orQuery.add(this.buildJoinForParentTableOnly(facetFiltersMap, qr, feedback, false));
+		if (singlePass) {
+			branches.add(new BoostQuery(this.buildJoinForParentTableOnly(plan, userQuery, sharedClauses),
+					configuration.getTierBoost()));
+			qr.setProperty(PARENT_TIER_BOOST_PROPERTY_NAME, configuration.getTierBoost());
+			qr.setProperty(QueryRelaxation.MAX_UNBOOSTED_SCORE_PROPERTY_NAME, configuration.getMaxUnboostedScore());
+		} else if (!searchOnlyChildren) {
+			branches.add(this.buildJoinForParentTableOnly(plan, userQuery, sharedClauses));
 		} else {
-			feedback.add(new QueryFeedback(this.getClass().getCanonicalName(), CHILD_DOC_MATCH_MESSAGE_NAME,
+			diagnostics.addFeedback(new QueryFeedback(this.getClass().getCanonicalName(), CHILD_DOC_MATCH_MESSAGE_NAME,
 					"The match is in the child documents"));
 		}
 		qr.setProperty(STRICT_QUERY_PROPERTY_NAME, false);
+		if (branches.size() == 1) {
+			return branches.get(0);
+		}
+		BooleanOrQuery orQuery = new BooleanOrQuery();
+		orQuery.add(branches);
 		return orQuery;
 	}
 
-	private Query buildJoinForParentTableOnly(Map<String, List<Query>> facetFiltersMap, QueryRequest qr,
-			List<QueryFeedback> feedback, boolean modifyMessages) {
-		Query fromQuery = this.generateFromQuery();
-		BooleanAndQuery combinedFromQuery = new BooleanAndQuery(fromQuery);
-		SubQuery userQuery = new SubQuery(qr.getQuery());
-		userQuery.setParameter("abc.userquery", true);
+	private Query buildJoinForParentTableOnly(JoinPlanTemplate plan, Map<String, List<Query>> facetFiltersMap,
+			QueryRequest qr, boolean modifyMessages) {
+		JoinQuery join = this.buildJoinForParentTableOnly(plan, this.newUserSubQuery(qr),
+				this.newJoinClauses(plan, this.orderTables(plan, facetFiltersMap), facetFiltersMap, qr));
+		if (modifyMessages) {
+			qr.setProperty(STRICT_QUERY_PROPERTY_NAME, true);
+		}
+		return join;
+	}
+
+	private JoinQuery buildJoinForParentTableOnly(JoinPlanTemplate plan, SubQuery userQuery, JoinClause[] clauses) {
+		BooleanAndQuery combinedFromQuery = new BooleanAndQuery(plan.newFromQuery());
 		combinedFromQuery.add(userQuery);
 		JoinQuery join = new JoinQuery();
 		join.setQuery(combinedFromQuery);
-		for (String childTable : this.childTables.keySet()) {
-			JoinMode joinMode = JoinMode.fromExternal(this.childTables.get(childTable));
-			PhraseQuery basicTableQuery = new PhraseQuery(this.collectionFieldName, childTable);
-			Query clauseQuery;
-			if (facetFiltersMap.containsKey(childTable) && facetFiltersMap.get(childTable).size() > 0) {
-				BooleanAndQuery andQuery = new BooleanAndQuery(basicTableQuery);
-				andQuery.add(facetFiltersMap.get(childTable));
-				clauseQuery = andQuery;
-				joinMode = JoinMode.INNER;
-			} else {
-				clauseQuery = basicTableQuery;
-			}
-			JoinClause c = new JoinClause(clauseQuery, joinMode, this.joinField, this.joinField);
-			if (this.tableBoosts.containsKey(childTable)) {
-				c.setBoost(this.tableBoosts.get(childTable));
+		for (JoinClause clause : clauses) {
+			join.add(clause);
+		}
+		return join;
+	}
+
+	/**
+	 * Finds the child tables the user query can match in, using the Table Schema
+	 * Fields.
+	 * 
+	 * @param plan          The request's plan template
+	 * @param tables        The child tables
+	 * @param qr            The request with the user query
+	 * @param allowNone     Whether every table may be pruned. When this is false
+	 *                      and none of the tables can match, all of them are
+	 *                      searched.
+	 * @param diagnostics
+	 * @return whether each table should get a branch searching the user query
+	 */
+	boolean[] searchableTables(JoinPlanTemplate plan, List<TableClause> tables, QueryRequest qr, boolean allowNone,
+			JoinDiagnostics diagnostics) {
+		boolean[] searchable = new boolean[tables.size()];
+		Arrays.fill(searchable, true);
+		BranchPruner pruner = plan.getBranchPruner();
+		if (!pruner.isEnabled()) {
+			return searchable;
+		}
+		BranchPruner.QueryFields fields = BranchPruner.analyze(qr.getQuery());
+		boolean any = false;
+		for (int i = 0; i < searchable.length; i++) {
+			searchable[i] = pruner.canMatch(tables.get(i).getTable(), fields);
+			any |= searchable[i];
+		}
+		if (!any && !allowNone) {
+			Arrays.fill(searchable, true);
+			return searchable;
+		}
+		for (int i = 0; i < searchable.length; i++) {
+			if (!searchable[i]) {
+				diagnostics.record(Event.BRANCH_PRUNED, tables.get(i).getTable());
 			}
-			Integer maxDocs = this.maxChildDocs.containsKey(childTable) ? this.maxChildDocs.get(childTable) : 10;
-			if (maxDocs >= 0) {
-				c.setRollupLimit(maxDocs);
+		}
+		return searchable;
+	}
+
+	/**
+	 * @return the user query wrapped for matching it in a single document
+	 */
+	private SubQuery newUserSubQuery(QueryRequest qr) {
+		SubQuery userQuery = new SubQuery(qr.getQuery());
+		userQuery.setParameter("abc.userquery", true);
+		return userQuery;
+	}
+
+	/**
+	 * Creates the clause each child table has when the user query isn't searched
+	 * in it: an {@code INNER} join on its facet filters if it has any, otherwise a
+	 * join on the table with its configured mode.
+	 * 
+	 * @return the clauses, in the order of the tables
+	 */
+	private JoinClause[] newJoinClauses(JoinPlanTemplate plan, List<TableClause> tables,
+			Map<String, List<Query>> facetFiltersMap, QueryRequest qr) {
+		JoinClause[] clauses = new JoinClause[tables.size()];
+		for (int i = 0; i < clauses.length; i++) {
+			TableClause childTable = tables.get(i);
+			List<Query> facetFilters = facetFiltersMap.get(childTable.getTable());
+			if (facetFilters != null && facetFilters.size() > 0) {
+				BooleanAndQuery andQuery = new BooleanAndQuery(childTable.newTableQuery());
+				andQuery.add(facetFilters);
+				clauses[i] = this.newJoinClause(plan, childTable, andQuery, JoinMode.INNER, qr);
+			} else {
+				clauses[i] = this.newJoinClause(plan, childTable, childTable.newTableQuery(), childTable.getMode(), qr);
 			}
-			join.add(c);
 		}
-		if (modifyMessages) {
-			qr.setProperty(STRICT_QUERY_PROPERTY_NAME, true);
+		return clauses;
+	}
+
+	/**
+	 * Creates a {@code JoinClause} on the join field for a child table, applying
+	 * the table's configured boost and its rollup limit for the request.
+	 */
+	private JoinClause newJoinClause(JoinPlanTemplate plan, TableClause childTable, Query clauseQuery,
+			JoinMode joinMode, QueryRequest qr) {
+		String joinField = plan.getConfiguration().getJoinField();
+		JoinClause c = new JoinClause(clauseQuery, joinMode, joinField, joinField);
+		if (childTable.hasBoost()) {
+			c.setBoost(childTable.getBoost());
 		}
-		return join;
+		int rollupLimit = this.rollupLimit(plan.getConfiguration(), childTable);
+		if (rollupLimit >= 0) {
+			c.setRollupLimit(rollupLimit);
+		}
+		return c;
+	}
+
+	/**
+	 * Returns the compiled plan template for the current configuration, compiling
+	 * it first if the configuration changed since it was last built. A request
+	 * reads the template once and takes every setting it needs from the template's
+	 * {@link JoinPlanTemplate#getConfiguration() configuration}.
+	 * 
+	 * @return the plan template
+	 */
+	JoinPlanTemplate getPlanTemplate() {
+		JoinerConfiguration current = this.configuration;
+		JoinPlanTemplate template = this.planTemplate;
+		if (template == null || template.getConfiguration() != current) {
+			// Racing requests may each compile the same snapshot, which is harmless
+			template = JoinPlanTemplate.compile(this, current);
+			this.planTemplate = template;
+		}
+		return template;
 	}
 
 	/**
 	 * Depending on whether the primaryTables or nonPrimaryTables field is
 	 * populated, generates a query that will only select records from the
 	 * appropriate table(s), which can then be used as the query for the "FROM"
-	 * table
+	 * table. This is called for each join that is built, so that no two requests
+	 * share the query.
 	 * 
+	 * @param configuration The configuration of the request's plan template
 	 * @return the primary query to use in the join
 	 */
-	protected Query generateFromQuery() {
-		if (this.primaryTables != null && this.primaryTables.size() > 0) {
-			if (this.primaryTables.size() == 1) {
-				return new PhraseQuery(this.collectionFieldName, this.primaryTables.get(0));
+	protected Query generateFromQuery(JoinerConfiguration configuration) {
+		List<String> primaryTables = configuration.getPrimaryTables();
+		String collectionFieldName = configuration.getCollectionFieldName();
+		if (primaryTables.size() > 0) {
+			if (primaryTables.size() == 1) {
+				return new PhraseQuery(collectionFieldName, primaryTables.get(0));
 			}
 			BooleanOrQuery orQ = new BooleanOrQuery();
 			for (String tableName : primaryTables) {
-				orQ.add(new PhraseQuery(this.collectionFieldName, tableName));
+				orQ.add(new PhraseQuery(collectionFieldName, tableName));
 			}
 			return orQ;
 		} else {
 			BooleanOrQuery orQ = new BooleanOrQuery();
-			for (String tableName : this.nonPrimaryTables) {
-				orQ.add(new PhraseQuery(this.collectionFieldName, tableName));
+			for (String tableName : configuration.getNonPrimaryTables()) {
+				orQ.add(new PhraseQuery(collectionFieldName, tableName));
 			}
 			return new BooleanNotQuery(orQ);
 		}
@@ -0,0 +1,206 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.SearchDocumentList;
+import com.attivio.sdk.search.query.Query;
+
+/**
+ * Runs the strict, child document and relaxed searches of a
+ * {@link GenericCompositeJoiner} at the same time, instead of one after the
+ * other. In a workflow, the Resubmit Strict Join Query and Relax Join Query
+ * routers wait for an empty response before sending the request through the
+ * workflow again, so a request that ends up relaxed takes several full searches
+ * in series. The searcher sends every variant the joiner builds (see
+ * {@link GenericCompositeJoiner#buildHedgedVariants(QueryRequest)}) through the
+ * {@link JoinSearchExecutor} at once. <br>
+ * <br>
+ * The first variant in priority order that finds anything wins, even if a
+ * variant after it finished sooner, so the results are the ones the workflow
+ * would have returned. Once the winner is known, the variants that are still
+ * running are cancelled. If every variant finds nothing, the result of the last
+ * one is returned. <br>
+ * <br>
+ * By default the variants run on a shared executor that starts a virtual thread
+ * per search on JVMs that have them, and a pooled daemon thread otherwise.
+ */
+public class HedgedJoinSearcher {
+
+	/**
+	 * The searches a request can be hedged with, in priority order.
+	 */
+	public enum Variant {
+		/** The join built by {@code processQuery} */
+		JOIN,
+		/** The child document search of a strict join whose parent only search is the join */
+		CHILD_DOC_ONLY,
+		/** The join of the user query relaxed from AND to OR */
+		RELAXED
+	}
+
+	private static final Logger log = LoggerFactory.getLogger(HedgedJoinSearcher.class);
+
+	private static final ExecutorService SHARED_EXECUTOR = newDefaultExecutor();
+
+	private final GenericCompositeJoiner joiner;
+	private final JoinSearchExecutor searchExecutor;
+	private final ExecutorService executor;
+	private final long timeoutMillis;
+
+	/**
+	 * Creates a searcher that runs its variants on an executor shared by all
+	 * searchers.
+	 */
+	public HedgedJoinSearcher(GenericCompositeJoiner joiner, JoinSearchExecutor searchExecutor, long timeoutMillis) {
+		this(joiner, searchExecutor, SHARED_EXECUTOR, timeoutMillis);
+	}
+
+	/**
+	 * @param joiner         The joiner to build the variants with
+	 * @param searchExecutor Runs the variant searches
+	 * @param executor       The executor to run the variant searches on
+	 * @param timeoutMillis  How long to wait for the winning variant
+	 */
+	public HedgedJoinSearcher(GenericCompositeJoiner joiner, JoinSearchExecutor searchExecutor,
+			ExecutorService executor, long timeoutMillis) {
+		this.joiner = joiner;
+		this.searchExecutor = searchExecutor;
+		this.executor = executor;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Creates an executor that starts a virtual thread per task if the JVM has
+	 * them, and otherwise runs its tasks on a cached pool of daemon threads.
+	 */
+	static ExecutorService newDefaultExecutor() {
+		try {
+			Method virtualThreads = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtualThreads.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			log.debug("Virtual threads aren't available, hedging searches on platform threads");
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "GenericQTJ-hedged-search-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Transforms the request with the joiner, runs its variants concurrently and
+	 * returns the results of the first one in priority order that finds anything.
+	 *
+	 * @param qr The request to search. Like {@code processQuery}, this strips the
+	 *           filters on child table fields from the request.
+	 * @return the winning variant and its response
+	 * @throws AttivioException     if the search of a variant that could still
+	 *                              win fails
+	 * @throws TimeoutException     if the winner isn't known in time, in which case
+	 *                              the unfinished variants are cancelled
+	 * @throws InterruptedException if interrupted while waiting for the variants
+	 */
+	public Result search(final QueryRequest qr) throws AttivioException, TimeoutException, InterruptedException {
+		Map<Variant, Query> variants = this.joiner.buildHedgedVariants(qr);
+		if (variants.size() == 1) {
+			Map.Entry<Variant, Query> only = variants.entrySet().iterator().next();
+			return new Result(only.getKey(), only.getValue(), this.searchExecutor.search(qr, only.getValue()));
+		}
+		List<Map.Entry<Variant, Query>> entries = new ArrayList<Map.Entry<Variant, Query>>(variants.entrySet());
+		List<Future<QueryResponse>> futures = new ArrayList<Future<QueryResponse>>(entries.size());
+		for (final Map.Entry<Variant, Query> variant : entries) {
+			futures.add(this.executor.submit(new Callable<QueryResponse>() {
+				@Override
+				public QueryResponse call() throws AttivioException {
+					return searchExecutor.search(qr, variant.getValue());
+				}
+			}));
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeoutMillis);
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				QueryResponse response = futures.get(i).get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				if (response.getDocuments().size() > 0 || i == futures.size() - 1) {
+					return new Result(entries.get(i).getKey(), entries.get(i).getValue(), response);
+				}
+			}
+			throw new IllegalStateException("No hedged variant was searched");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof AttivioException) {
+				throw (AttivioException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Hedged join search failed", cause);
+		} finally {
+			for (Future<QueryResponse> future : futures) {
+				if (!future.isDone()) {
+					log.trace("Cancelling a losing hedged join search");
+					future.cancel(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The winning variant of a hedged search.
+	 */
+	public static final class Result {
+		private final Variant variant;
+		private final Query query;
+		private final QueryResponse response;
+
+		Result(Variant variant, Query query, QueryResponse response) {
+			this.variant = variant;
+			this.query = query;
+			this.response = response;
+		}
+
+		public Variant getVariant() {
+			return variant;
+		}
+
+		/**
+		 * @return the query that was searched
+		 */
+		public Query getQuery() {
+			return query;
+		}
+
+		/**
+		 * @return the response of the winning variant's search
+		 */
+		public QueryResponse getResponse() {
+			return response;
+		}
+
+		public SearchDocumentList getDocuments() {
+			return response.getDocuments();
+		}
+	}
+}
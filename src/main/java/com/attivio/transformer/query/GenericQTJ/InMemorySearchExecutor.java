@@ -0,0 +1,77 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.SearchDocument;
+import com.attivio.sdk.search.SearchDocumentList;
+import com.attivio.sdk.search.query.Query;
+
+/**
+ * A {@link JoinSearchExecutor} that answers from documents registered in memory
+ * for each query string, for testing and benchmarking the join searchers without
+ * an index. Queries with no registered documents find nothing. An optional fixed
+ * latency can be added to each search to stand in for the round trip to the
+ * index.
+ */
+public class InMemorySearchExecutor implements JoinSearchExecutor {
+
+	private final Map<String, List<SearchDocument>> documents = new ConcurrentHashMap<String, List<SearchDocument>>();
+	private final List<String> searchedQueries = new CopyOnWriteArrayList<String>();
+	private volatile long latencyMillis;
+
+	/**
+	 * Registers the documents, in ranked order, that a query finds.
+	 */
+	public InMemorySearchExecutor addDocuments(Query query, SearchDocument... results) {
+		List<SearchDocument> registered = new ArrayList<SearchDocument>();
+		Collections.addAll(registered, results);
+		documents.put(query.toString(), registered);
+		return this;
+	}
+
+	public long getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * @return the string forms of the queries searched so far, in the order they
+	 *         were searched
+	 */
+	public List<String> getSearchedQueries() {
+		return Collections.unmodifiableList(searchedQueries);
+	}
+
+	@Override
+	public QueryResponse search(QueryRequest request, Query query) {
+		String queryString = query.toString();
+		searchedQueries.add(queryString);
+		if (latencyMillis > 0) {
+			try {
+				Thread.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		SearchDocumentList results = new SearchDocumentList();
+		List<SearchDocument> registered = documents.get(queryString);
+		if (registered != null) {
+			for (SearchDocument document : registered) {
+				results.add(document);
+			}
+		}
+		QueryResponse response = new QueryResponse(request);
+		response.setDocuments(results);
+		return response;
+	}
+}
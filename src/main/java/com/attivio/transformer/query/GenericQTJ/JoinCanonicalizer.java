@@ -0,0 +1,140 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.attivio.sdk.search.query.JoinMode;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.transformer.query.GenericQTJ.JoinPlanTemplate.TableClause;
+
+/**
+ * Puts the parts of a generated join into a deterministic order, so that
+ * equivalent requests produce identical query trees no matter the iteration
+ * order of the configured maps or the order the filters were added in. Identical
+ * trees get the same {@link QueryFingerprint}, and hit the same entries in the
+ * engine's query and filter caches.
+ */
+final class JoinCanonicalizer {
+
+	/**
+	 * Orders child tables with {@code INNER} joins before the others, then by table
+	 * name.
+	 */
+	static final Comparator<TableClause> TABLE_ORDER = new Comparator<TableClause>() {
+		@Override
+		public int compare(TableClause a, TableClause b) {
+			boolean aInner = a.getMode() == JoinMode.INNER;
+			boolean bInner = b.getMode() == JoinMode.INNER;
+			if (aInner != bInner) {
+				return aInner ? -1 : 1;
+			}
+			return a.getTable().compareTo(b.getTable());
+		}
+	};
+
+	private JoinCanonicalizer() {
+	}
+
+	/**
+	 * @return the tables in {@link #TABLE_ORDER}
+	 */
+	static List<TableClause> orderTables(List<TableClause> tables) {
+		List<TableClause> ordered = new ArrayList<TableClause>(tables);
+		Collections.sort(ordered, TABLE_ORDER);
+		return ordered;
+	}
+
+	/**
+	 * Orders the clauses of a request's join so the most restrictive come first,
+	 * letting the engine drop candidate parents early: {@code INNER} clauses with
+	 * facet filters, then the other {@code INNER} clauses, then the {@code OUTER}
+	 * ones. Within each group, clauses are ordered by the selectivity the planner
+	 * estimates from the table statistics, most selective first, with tables
+	 * without statistics after the others. Ties are broken by table name, so the
+	 * order only changes when the statistics do.
+	 *
+	 * @param tables            The tables in {@link #TABLE_ORDER}
+	 * @param filteredTables    Map of table to the filters applied to its clause
+	 * @param filtersForceInner Whether a clause with filters is always joined with
+	 *                          {@code INNER}
+	 * @param planner           The planner estimating the selectivities
+	 * @return the ordered tables, or the list itself if there are no filters or
+	 *         statistics to order by
+	 */
+	static List<TableClause> orderClauses(List<TableClause> tables, Map<String, List<Query>> filteredTables,
+			boolean filtersForceInner, JoinPlanner planner) {
+		if (tables.size() < 2 || (filteredTables.isEmpty() && !planner.isEnabled())) {
+			return tables;
+		}
+		List<RankedClause> ranked = new ArrayList<RankedClause>(tables.size());
+		for (TableClause table : tables) {
+			List<Query> filters = filteredTables.get(table.getTable());
+			boolean filtered = filters != null && !filters.isEmpty();
+			boolean inner = table.getMode() == JoinMode.INNER || (filtered && filtersForceInner);
+			int group = inner ? (filtered ? 0 : 1) : 2;
+			double selectivity = planner.isEnabled() ? planner.estimateSelectivity(table.getTable(), filtered)
+					: Double.NaN;
+			ranked.add(new RankedClause(table, group, selectivity));
+		}
+		Collections.sort(ranked);
+		List<TableClause> ordered = new ArrayList<TableClause>(ranked.size());
+		for (RankedClause clause : ranked) {
+			ordered.add(clause.table);
+		}
+		return ordered;
+	}
+
+	private static final class RankedClause implements Comparable<RankedClause> {
+		private final TableClause table;
+		private final int group;
+		private final double selectivity;
+
+		RankedClause(TableClause table, int group, double selectivity) {
+			this.table = table;
+			this.group = group;
+			this.selectivity = selectivity;
+		}
+
+		@Override
+		public int compareTo(RankedClause other) {
+			if (group != other.group) {
+				return Integer.compare(group, other.group);
+			}
+			boolean estimated = !Double.isNaN(selectivity);
+			if (estimated != !Double.isNaN(other.selectivity)) {
+				return estimated ? -1 : 1;
+			}
+			if (estimated && selectivity != other.selectivity) {
+				return Double.compare(selectivity, other.selectivity);
+			}
+			return table.getTable().compareTo(other.table.getTable());
+		}
+	}
+
+	/**
+	 * Sorts queries by their string form, dropping queries with the same string
+	 * form as an earlier one. Used for the filter subqueries grafted into a child
+	 * table's clause and for the filters left on the request.
+	 *
+	 * @param queries The queries to sort, which are not modified
+	 * @return the sorted, distinct queries, or the list itself if it has fewer
+	 *         than two queries
+	 */
+	static List<Query> sortAndDedupe(List<Query> queries) {
+		if (queries.size() < 2) {
+			return queries;
+		}
+		TreeMap<String, Query> distinct = new TreeMap<String, Query>();
+		for (Query query : queries) {
+			String key = query.toString();
+			if (!distinct.containsKey(key)) {
+				distinct.put(key, query);
+			}
+		}
+		return new ArrayList<Query>(distinct.values());
+	}
+}
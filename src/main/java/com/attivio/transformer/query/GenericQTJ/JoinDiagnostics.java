@@ -0,0 +1,222 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.attivio.sdk.search.QueryFeedback;
+import com.attivio.sdk.search.query.CompositeJoinQuery.Clause;
+import com.attivio.sdk.search.query.Query;
+
+/**
+ * Per-request diagnostics for the joiners. Instead of building feedback strings
+ * as the join is generated, the joiners record typed {@link Event}s holding
+ * references to the objects involved, which are only rendered into
+ * {@code QueryFeedback} once the request has been transformed. <br>
+ * <br>
+ * Diagnostics are only recorded for the sampled fraction of requests, and only up
+ * to a maximum number of events per request. When a request isn't sampled,
+ * recording an event does nothing. Feedback that downstream components rely on
+ * (such as {@link GenericCompositeJoiner#CHILD_DOC_MATCH_MESSAGE_NAME}) is added
+ * with {@link #addFeedback(QueryFeedback)} and is always returned.
+ */
+public final class JoinDiagnostics {
+
+	/**
+	 * The types of diagnostic events, along with the format used to render them.
+	 */
+	public enum Event {
+		ADVANCED_QUERY_SKIPPED("Advanced Query Language in use, skipping stage."),
+		FILTER_IGNORED("Not a filter of interest - ignoring...: %s"),
+		FILTER_EXTRACTED(
+				"Found metadata facet filter in QueryFilter: %s, stripping from filter and building into query for table %s"),
+		FACET_FILTER_IGNORED("Not a filter of interest - ignoring...: %s"),
+		FACET_FILTER_EXTRACTED("Found %s, stripping from filter and building into query for table %s...%s"),
+		FACET_FILTER_CLAUSE("Metadata FacetFilter Queries applied to join clause (ACTUAL CLAUSE): %s with facet set to: %s"),
+		CLAUSE("No metadata facet filters found. Adding clause (ACTUAL CLAUSE): %s with facet set to: %s"),
+		STRICT_JOIN_BRANCH("Adding join query to strict or query: %s"),
+		PLAN_CHOSEN("Planner chose the %s plan"),
+		BRANCH_PRUNED("Skipped searching the user query in table %s, which has none of its fields"),
+		KNOWN_EMPTY_RELAXED("The query recently found nothing, relaxing it up front: %s"),
+		TIERED_RELAXATION("Searching the query and its relaxed form in one pass: %s"),
+		KNOWN_EMPTY_CHILD_ONLY("The parent only join recently found nothing, searching the child documents up front"),
+		FACET_CACHE_HIT("The facet counts of the child tables are cached, not counting them again"),
+		INITIAL_JOIN("Adding initial Join Query : %s"),
+		ADDITIONAL_JOIN("Adding additional Join Query : %s"),
+		FINAL_QUERY("Final Join Query: %s");
+
+		private final String format;
+
+		private Event(String format) {
+			this.format = format;
+		}
+
+		String render(Object[] args) {
+			if (args.length == 0) {
+				return format;
+			}
+			Object[] rendered = new Object[args.length];
+			for (int i = 0; i < args.length; i++) {
+				rendered[i] = renderArgument(args[i]);
+			}
+			return String.format(format, rendered);
+		}
+
+		private static Object renderArgument(Object arg) {
+			if (arg instanceof Clause) {
+				return ((Clause) arg).prettyFormat();
+			}
+			if (arg instanceof Query) {
+				return arg.toString();
+			}
+			return arg;
+		}
+	}
+
+	static final int DEFAULT_MAX_EVENTS = 100;
+
+	private static final Object[] NO_ARGS = new Object[0];
+
+	private static final Logger log = LoggerFactory.getLogger(JoinDiagnostics.class);
+
+	private final String source;
+	private final String messageName;
+	private final boolean enabled;
+	private final int maxEvents;
+	private List<Event> events;
+	private List<Object[]> eventArgs;
+	private int droppedEvents;
+	private List<QueryFeedback> feedback;
+	private PlanShape planShape;
+
+	private JoinDiagnostics(String source, String messageName, boolean enabled, int maxEvents) {
+		this.source = source;
+		this.messageName = messageName;
+		this.enabled = enabled;
+		this.maxEvents = maxEvents;
+	}
+
+	/**
+	 * Creates the diagnostics for a request.
+	 *
+	 * @param source          The source to report feedback under
+	 * @param messageName     The message name to report diagnostic events under
+	 * @param provideFeedback Whether detailed feedback is turned on
+	 * @param samplePercent   The percentage (0-100) of requests to record events
+	 *                        for
+	 * @param maxEvents       The maximum number of events to record for the
+	 *                        request
+	 * @return the diagnostics for the request
+	 */
+	public static JoinDiagnostics create(String source, String messageName, boolean provideFeedback,
+			int samplePercent, int maxEvents) {
+		boolean enabled = provideFeedback && maxEvents > 0
+				&& (samplePercent >= 100 || ThreadLocalRandom.current().nextInt(100) < samplePercent);
+		return new JoinDiagnostics(source, messageName, enabled, maxEvents);
+	}
+
+	/**
+	 * @return whether events are being recorded for this request
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void record(Event event) {
+		if (enabled) {
+			this.add(event, NO_ARGS);
+		}
+	}
+
+	public void record(Event event, Object arg) {
+		if (enabled) {
+			this.add(event, new Object[] { arg });
+		}
+	}
+
+	public void record(Event event, Object arg1, Object arg2) {
+		if (enabled) {
+			this.add(event, new Object[] { arg1, arg2 });
+		}
+	}
+
+	public void record(Event event, Object arg1, Object arg2, Object arg3) {
+		if (enabled) {
+			this.add(event, new Object[] { arg1, arg2, arg3 });
+		}
+	}
+
+	private void add(Event event, Object[] args) {
+		if (events == null) {
+			events = new ArrayList<Event>();
+			eventArgs = new ArrayList<Object[]>();
+		}
+		if (events.size() >= maxEvents) {
+			droppedEvents++;
+			return;
+		}
+		events.add(event);
+		eventArgs.add(args);
+	}
+
+	/**
+	 * Notes the plan the joiner chose for the request, which is kept regardless of
+	 * whether diagnostics are being recorded for this request.
+	 */
+	public void setPlanShape(PlanShape planShape) {
+		this.planShape = planShape;
+	}
+
+	/**
+	 * @return the plan the joiner chose for the request, or {@code null} if it
+	 *         didn't note one
+	 */
+	public PlanShape getPlanShape() {
+		return planShape;
+	}
+
+	/**
+	 * Adds feedback that is returned regardless of whether diagnostics are being
+	 * recorded for this request.
+	 */
+	public void addFeedback(QueryFeedback queryFeedback) {
+		if (feedback == null) {
+			feedback = new ArrayList<QueryFeedback>(1);
+		}
+		feedback.add(queryFeedback);
+	}
+
+	/**
+	 * Renders the recorded events into feedback. This is where the cost of building
+	 * the messages is paid, so it should only be called once per request.
+	 *
+	 * @return the feedback for the request, which is the shared empty list if
+	 *         there is none
+	 */
+	public List<QueryFeedback> toFeedback() {
+		if (events == null && feedback == null && droppedEvents == 0) {
+			return Collections.emptyList();
+		}
+		int size = (events != null ? events.size() : 0) + (feedback != null ? feedback.size() : 0) + 1;
+		List<QueryFeedback> result = new ArrayList<QueryFeedback>(size);
+		if (feedback != null) {
+			result.addAll(feedback);
+		}
+		if (events != null) {
+			for (int i = 0; i < events.size(); i++) {
+				String message = events.get(i).render(eventArgs.get(i));
+				result.add(new QueryFeedback(source, messageName, message));
+				log.debug(message);
+			}
+		}
+		if (droppedEvents > 0) {
+			result.add(new QueryFeedback(source, messageName,
+					droppedEvents + " further diagnostic events were dropped (limit is " + maxEvents + ")"));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,254 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.attivio.sdk.search.query.JoinMode;
+import com.attivio.sdk.search.query.PhraseQuery;
+import com.attivio.sdk.search.query.Query;
+
+/**
+ * Immutable skeleton of the join built by a {@code GenericCompositeJoiner},
+ * compiled from a {@link JoinerConfiguration} snapshot. Everything that only
+ * depends on the component's configuration (the FROM query,
+ * each child table's clause query, join mode, boost, rollup limit and facet
+ * setting, the facet filter compiler and the field to table index) is computed
+ * once when the template is compiled, so that each request only has to graft in
+ * the user query and the facet filter subqueries. <br>
+ * <br>
+ * <b>Note:</b> {@code Query} objects are mutable and a join is handed on to the
+ * rest of the workflow, so the template never grafts a query of its own into a
+ * request. {@link #newFromQuery()} and {@link TableClause#newTableQuery()} build
+ * new ones for each request.
+ */
+final class JoinPlanTemplate {
+
+	private static final Logger log = LoggerFactory.getLogger(JoinPlanTemplate.class);
+
+	static final int DEFAULT_ROLLUP_LIMIT = 10;
+
+	private final GenericCompositeJoiner joiner;
+	private final List<TableClause> tables;
+	private final FacetFilterCompiler facetFilterCompiler;
+	private final FieldTableIndex fieldTableIndex;
+	private final String configurationKey;
+	private final JoinPlanner planner;
+	private final BranchPruner branchPruner;
+	private final JoinerConfiguration configuration;
+	private final String encodedRollupLimits;
+
+	private JoinPlanTemplate(GenericCompositeJoiner joiner, JoinerConfiguration configuration,
+			List<TableClause> tables, FacetFilterCompiler facetFilterCompiler, FieldTableIndex fieldTableIndex,
+			String configurationKey, JoinPlanner planner, BranchPruner branchPruner, String encodedRollupLimits) {
+		this.joiner = joiner;
+		this.tables = Collections.unmodifiableList(tables);
+		this.facetFilterCompiler = facetFilterCompiler;
+		this.fieldTableIndex = fieldTableIndex;
+		this.configurationKey = configurationKey;
+		this.planner = planner;
+		this.branchPruner = branchPruner;
+		this.configuration = configuration;
+		this.encodedRollupLimits = encodedRollupLimits;
+	}
+
+	/**
+	 * Compiles the template for a configuration of the joiner. Child tables are put
+	 * in {@link JoinCanonicalizer#TABLE_ORDER}, so the order of the clauses doesn't
+	 * depend on the iteration order of the configured child table map.
+	 *
+	 * @param joiner        The joiner that generates the FROM query
+	 * @param configuration The configuration to compile
+	 * @return the compiled template
+	 */
+	static JoinPlanTemplate compile(GenericCompositeJoiner joiner, JoinerConfiguration configuration) {
+		Map<String, Integer> maxChildDocs = configuration.getMaxChildDocs();
+		Map<String, Integer> tableBoosts = configuration.getTableBoosts();
+		List<String> facetTables = configuration.getTablesToIncludeInFacetCounts();
+
+		List<TableClause> tables = new ArrayList<TableClause>();
+		for (Map.Entry<String, String> entry : configuration.getChildTables().entrySet()) {
+			String table = entry.getKey();
+			tables.add(new TableClause(table, JoinMode.fromExternal(entry.getValue()),
+					configuration.getCollectionFieldName(), tableBoosts.get(table),
+					maxChildDocs.get(table), facetTables.contains(table)));
+		}
+		Set<String> facetFields = new LinkedHashSet<String>();
+		for (List<String> tableFacetFields : configuration.getChildTableFacetFields().values()) {
+			facetFields.addAll(tableFacetFields);
+		}
+		tables = JoinCanonicalizer.orderTables(tables);
+		if ((configuration.isTieredRelaxation() || configuration.isSinglePassStrictJoin())
+				&& !configuration.isTierSeparable()) {
+			log.warn("Max Unboosted Score ({}) isn't less than the Tier Boost ({}), so the joiner won't use "
+					+ "Tiered Relaxation or Single Pass Strict Join", configuration.getMaxUnboostedScore(),
+					configuration.getTierBoost());
+		}
+		StringBuilder configurationKey = new StringBuilder(joiner.generateFromQuery(configuration).toString());
+		for (TableClause table : tables) {
+			configurationKey.append('|').append(table.getTable()).append(',').append(table.getMode()).append(',')
+					.append(table.boost).append(',').append(table.rollupLimit).append(',').append(table.isFacet());
+		}
+		configurationKey.append('|').append(configuration.getChildTableFacetFields()).append('|')
+				.append(configuration.getTableStatistics()).append('|').append(configuration.getTableSchemaFields());
+		return new JoinPlanTemplate(joiner, configuration, tables,
+				new FacetFilterCompiler(facetFields, FacetFilterCompiler.DEFAULT_CACHE_SIZE),
+				new FieldTableIndex(configuration.getChildTableFacetFields()), configurationKey.toString(),
+				new JoinPlanner(configuration.getTableStatistics(), configuration.getPrimaryTables(),
+						configuration.getNonPrimaryTables(), TableStatisticsRegistry.getInstance()),
+				new BranchPruner(configuration.getTableSchemaFields()),
+				configuration.isAdaptiveRollup() ? null : joiner.encodeRollupLimits(configuration, tables));
+	}
+
+	/**
+	 * @return the configuration the template was compiled from, which the request
+	 *         building a join from the template reads all of its other settings
+	 *         from
+	 */
+	JoinerConfiguration getConfiguration() {
+		return configuration;
+	}
+
+	/**
+	 * @return a new query selecting the parent documents for the FROM clause
+	 */
+	Query newFromQuery() {
+		return joiner.generateFromQuery(configuration);
+	}
+
+	/**
+	 * @return the precompiled clause settings, one per child table
+	 */
+	List<TableClause> getTables() {
+		return tables;
+	}
+
+	/**
+	 * @return the compiler for facet filters on the configured child table facet
+	 *         fields
+	 */
+	FacetFilterCompiler getFacetFilterCompiler() {
+		return facetFilterCompiler;
+	}
+
+	/**
+	 * @return the index used to route filters to the child tables they apply to
+	 */
+	FieldTableIndex getFieldTableIndex() {
+		return fieldTableIndex;
+	}
+
+	/**
+	 * @return a string identifying the configuration the template was compiled
+	 *         from, used in cache keys
+	 */
+	String getConfigurationKey() {
+		return configurationKey;
+	}
+
+	/**
+	 * @return the planner for choosing between equivalent plans, using the
+	 *         configured table statistics
+	 */
+	JoinPlanner getPlanner() {
+		return planner;
+	}
+
+	/**
+	 * @return the pruner for skipping the branches of tables the user query can't
+	 *         match in
+	 */
+	BranchPruner getBranchPruner() {
+		return branchPruner;
+	}
+
+	/**
+	 * @return the rollup limits of the child tables, encoded for the
+	 *         {@link TableStatisticsRegistry}, or {@code null} if adaptive rollup
+	 *         makes them change between requests
+	 */
+	String getEncodedRollupLimits() {
+		return encodedRollupLimits;
+	}
+
+	/**
+	 * Precompiled settings for a single child table's join clause.
+	 */
+	static final class TableClause {
+		private final String table;
+		private final JoinMode mode;
+		private final String collectionFieldName;
+		private final Integer boost;
+		private final Integer rollupLimit;
+		private final boolean facet;
+
+		private TableClause(String table, JoinMode mode, String collectionFieldName, Integer boost,
+				Integer rollupLimit, boolean facet) {
+			this.table = table;
+			this.mode = mode;
+			this.collectionFieldName = collectionFieldName;
+			this.boost = boost;
+			this.rollupLimit = rollupLimit;
+			this.facet = facet;
+		}
+
+		String getTable() {
+			return table;
+		}
+
+		/**
+		 * @return the join mode configured for the table, used when no facet filter
+		 *         forces the clause to be an {@code INNER} join
+		 */
+		JoinMode getMode() {
+			return mode;
+		}
+
+		/**
+		 * @return a new query selecting the table's documents
+		 */
+		PhraseQuery newTableQuery() {
+			return new PhraseQuery(collectionFieldName, table);
+		}
+
+		boolean hasBoost() {
+			return boost != null;
+		}
+
+		/**
+		 * @return the configured boost, or 0 if the table has none
+		 */
+		int getBoost() {
+			return boost != null ? boost : 0;
+		}
+
+		/**
+		 * @return the configured rollup limit, or {@code null} if the table has none
+		 */
+		Integer getConfiguredRollupLimit() {
+			return rollupLimit;
+		}
+
+		/**
+		 * @return the configured rollup limit, falling back to
+		 *         {@link JoinPlanTemplate#DEFAULT_ROLLUP_LIMIT}. Negative values mean
+		 *         no limit.
+		 */
+		int getRollupLimit() {
+			return rollupLimit != null ? rollupLimit : DEFAULT_ROLLUP_LIMIT;
+		}
+
+		/**
+		 * @return whether the table's documents are included in facet counts
+		 */
+		boolean isFacet() {
+			return facet;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.attivio.sdk.search.query.Query;
+import com.attivio.transformer.query.GenericQTJ.JoinPlanTemplate.TableClause;
+
+/**
+ * Chooses the cheapest of several plans that return the same parent documents,
+ * using {@link TableStatistics} for the primary and child tables. The planner
+ * never changes the results of a request: the joiners only ask it to choose
+ * between plans that are equivalent for that request. These are:
+ * <ul>
+ * <li>a {@code CompositeJoinQuery} or a {@code JoinQuery}, when the user query
+ * matches everything, so it can't select any parents through their
+ * children</li>
+ * <li>a {@code CompositeJoinQuery} or an {@code OR} of {@code JoinQueries}, for a
+ * {@code MultiFieldJoiner} mimicking a composite join where every table is joined
+ * on the same field</li>
+ * </ul>
+ * Costs are estimates of the number of documents the engine touches. A query
+ * touches the documents it matches, and joining a clause to a parent touches
+ * that clause's children:
+ * <ul>
+ * <li>{@code JOIN}: {@code q*P + q*P*F}</li>
+ * <li>{@code COMPOSITE}: {@code q*P + q*sum(D) + min(P, q*P + sum(m))*F}</li>
+ * <li>{@code MIMICKED_COMPOSITE}: {@code q*P + q*P*F + sum(q*D + m*(F - f))}</li>
+ * </ul>
+ * where {@code P} is the number of parent documents, {@code q} the fraction of
+ * documents the user query matches, and for each child table {@code D} is its
+ * number of documents, {@code m = q*D/childrenPerParent} the number of parents
+ * its matching documents join to, and {@code f} its fan-out (children per
+ * parent, times the filter selectivity if the table is filtered). {@code F} is
+ * the sum of the fan-outs. A composite join only evaluates each candidate parent
+ * once, while the mimicked composite saves the fan-out of the table that matched
+ * in each branch, so large child tables favor the composite and small ones the
+ * {@code OR} of joins. If a table has no statistics the planner can't estimate
+ * the costs, and the joiner keeps its default plan. With Non-Primary Tables the
+ * parents are every table with statistics that isn't non-primary, since those
+ * are the tables the join selects from. Children per parent and filter
+ * selectivity observed from responses (see {@link TableStatisticsRegistry})
+ * replace the configured ones.
+ */
+final class JoinPlanner {
+
+	/** The fraction of documents assumed to match a user query that isn't match-all */
+	static final double DEFAULT_QUERY_SELECTIVITY = 0.1;
+
+	private static final Logger log = LoggerFactory.getLogger(JoinPlanner.class);
+
+	private final Map<String, TableStatistics> statistics;
+	private final List<String> primaryTables;
+	private final List<String> nonPrimaryTables;
+	private final TableStatisticsRegistry observed;
+
+	/**
+	 * @param statistics       The configured statistics
+	 * @param primaryTables    The parent tables
+	 * @param nonPrimaryTables The tables that aren't parents, used when there are
+	 *                         no primary tables
+	 * @param observed         Statistics observed from responses, overlaid on the
+	 *                         configured ones
+	 */
+	JoinPlanner(Map<String, TableStatistics> statistics, List<String> primaryTables, List<String> nonPrimaryTables,
+			TableStatisticsRegistry observed) {
+		this.statistics = statistics;
+		this.primaryTables = primaryTables != null ? primaryTables : Collections.<String>emptyList();
+		this.nonPrimaryTables = nonPrimaryTables != null ? nonPrimaryTables : Collections.<String>emptyList();
+		this.observed = observed;
+		if (this.isEnabled() && Double.isNaN(this.parents())) {
+			log.warn("Table Statistics are configured, but not for the parent tables {}, so the joiner won't plan",
+					this.primaryTables.isEmpty() ? "(every table that isn't a Non-Primary Table)" : this.primaryTables);
+		}
+	}
+
+	private TableStatistics statistics(String table) {
+		return observed.overlay(table, statistics.get(table));
+	}
+
+	/**
+	 * @return whether the planner has any statistics to plan with
+	 */
+	boolean isEnabled() {
+		return !statistics.isEmpty();
+	}
+
+	/**
+	 * @param userQuery The user query
+	 * @return whether the query matches every document
+	 */
+	static boolean isMatchAll(Query userQuery) {
+		String queryString = userQuery.toString().trim();
+		return queryString.equals("*:*") || queryString.equals("*");
+	}
+
+	/**
+	 * Chooses the cheapest of the candidate plans.
+	 *
+	 * @param candidates      Plans that return the same results for the request,
+	 *                        the joiner's default plan first
+	 * @param tables          The child tables of the join
+	 * @param filteredTables  Map of table to the filters applied to its clause
+	 * @param matchAll        Whether the user query matches every document
+	 * @return the cheapest plan, or the first candidate if the costs can't be
+	 *         estimated
+	 */
+	PlanShape choose(List<PlanShape> candidates, List<TableClause> tables, Map<String, List<Query>> filteredTables,
+			boolean matchAll) {
+		PlanShape cheapest = candidates.get(0);
+		if (candidates.size() == 1) {
+			return cheapest;
+		}
+		double cheapestCost = this.estimateCost(cheapest, tables, filteredTables, matchAll);
+		if (Double.isNaN(cheapestCost)) {
+			return cheapest;
+		}
+		for (int i = 1; i < candidates.size(); i++) {
+			double cost = this.estimateCost(candidates.get(i), tables, filteredTables, matchAll);
+			if (cost < cheapestCost) {
+				cheapest = candidates.get(i);
+				cheapestCost = cost;
+			}
+		}
+		return cheapest;
+	}
+
+	/**
+	 * Estimates the fraction of parents with at least one child in a table, which
+	 * are the parents left after an {@code INNER} join on it. A table with
+	 * {@code D} documents and {@code childrenPerParent} children per join key covers
+	 * {@code D/childrenPerParent} parents; a filter on the table reduces that by its
+	 * selectivity.
+	 *
+	 * @param table    The child table
+	 * @param filtered Whether the table's clause has a filter
+	 * @return the fraction of parents, or {@code NaN} if the table or a primary
+	 *         table has no statistics
+	 */
+	double estimateSelectivity(String table, boolean filtered) {
+		double parents = this.parents();
+		TableStatistics tableStatistics = this.statistics(table);
+		if (Double.isNaN(parents) || tableStatistics == null || parents == 0) {
+			return Double.NaN;
+		}
+		double coveredParents = tableStatistics.getDocuments() / Math.max(1, tableStatistics.getChildrenPerParent());
+		if (filtered) {
+			coveredParents *= tableStatistics.getFilterSelectivity();
+		}
+		return Math.min(1, coveredParents / parents);
+	}
+
+	/**
+	 * @return the number of documents in the primary tables, or {@code NaN} if one
+	 *         has no statistics. Without primary tables, the number of documents
+	 *         in the tables with statistics that aren't non-primary, or
+	 *         {@code NaN} if there are none.
+	 */
+	private double parents() {
+		if (primaryTables.isEmpty()) {
+			double parents = Double.NaN;
+			for (String table : statistics.keySet()) {
+				if (!nonPrimaryTables.contains(table)) {
+					parents = (Double.isNaN(parents) ? 0 : parents) + this.statistics(table).getDocuments();
+				}
+			}
+			return parents;
+		}
+		double parents = 0;
+		for (String primaryTable : primaryTables) {
+			TableStatistics tableStatistics = this.statistics(primaryTable);
+			if (tableStatistics == null) {
+				return Double.NaN;
+			}
+			parents += tableStatistics.getDocuments();
+		}
+		return parents;
+	}
+
+	/**
+	 * @return the estimated cost of a plan, or {@code NaN} if a table has no
+	 *         statistics
+	 */
+	double estimateCost(PlanShape shape, List<TableClause> tables, Map<String, List<Query>> filteredTables,
+			boolean matchAll) {
+		double parents = this.parents();
+		if (Double.isNaN(parents)) {
+			return Double.NaN;
+		}
+		double q = matchAll ? 1 : DEFAULT_QUERY_SELECTIVITY;
+		double[] documents = new double[tables.size()];
+		double[] fanOuts = new double[tables.size()];
+		double[] matchedParents = new double[tables.size()];
+		double totalFanOut = 0;
+		double childDocuments = 0;
+		for (int i = 0; i < tables.size(); i++) {
+			TableStatistics tableStatistics = this.statistics(tables.get(i).getTable());
+			if (tableStatistics == null) {
+				return Double.NaN;
+			}
+			documents[i] = tableStatistics.getDocuments();
+			List<Query> filters = filteredTables.get(tables.get(i).getTable());
+			boolean filtered = filters != null && !filters.isEmpty();
+			fanOuts[i] = tableStatistics.getChildrenPerParent() * (filtered ? tableStatistics.getFilterSelectivity() : 1);
+			matchedParents[i] = q * tableStatistics.getDocuments() / Math.max(1, tableStatistics.getChildrenPerParent());
+			totalFanOut += fanOuts[i];
+			childDocuments += tableStatistics.getDocuments();
+		}
+
+		switch (shape) {
+		case JOIN:
+		case PARENT_ONLY:
+			return q * parents + q * parents * totalFanOut;
+		case COMPOSITE:
+			double candidateParents = q * parents;
+			for (int i = 0; i < tables.size(); i++) {
+				candidateParents += matchedParents[i];
+			}
+			return q * parents + q * childDocuments + Math.min(parents, candidateParents) * totalFanOut;
+		case MIMICKED_COMPOSITE:
+			double cost = q * parents + q * parents * totalFanOut;
+			for (int i = 0; i < tables.size(); i++) {
+				cost += q * documents[i]
+						+ matchedParents[i] * (totalFanOut - fanOuts[i]);
+			}
+			return cost;
+		default:
+			// The strict OR of joins has no equivalent plan to compare it with
+			return Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.query.Query;
+
+/**
+ * Runs a single search on behalf of the join searchers, such as
+ * {@link ScatterGatherJoinSearcher}. Implementations wrap whatever client the
+ * caller uses to reach the index, and must be safe to call from several threads
+ * at once.
+ */
+public interface JoinSearchExecutor {
+
+	/**
+	 * Runs a query with the settings (filters, facet filters, rows, etc.) of a
+	 * request. The caller owns the response it gets, and may modify it.
+	 * 
+	 * @param request The request to take the search settings from, which must not
+	 *                be modified
+	 * @param query   The query to run in place of the request's query
+	 * @return the response, with the matching documents in ranked order
+	 * @throws AttivioException if the search fails
+	 */
+	QueryResponse search(QueryRequest request, Query query) throws AttivioException;
+}
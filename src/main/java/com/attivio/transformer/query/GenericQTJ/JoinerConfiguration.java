@@ -0,0 +1,417 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.attivio.sdk.schema.FieldNames;
+import com.attivio.sdk.search.query.JoinMode;
+
+/**
+ * Immutable snapshot of the configuration of a {@code GenericCompositeJoiner} or
+ * {@code MultiFieldJoiner}. The joiners' setters never change a snapshot: they
+ * copy it into a {@link Builder}, change the copy and swap the validated result
+ * in atomically, so a request that read the snapshot when it started sees one
+ * consistent configuration even if the component is reconfigured while it runs.
+ * The collections held by a snapshot are unmodifiable copies of the ones passed
+ * to the setters.
+ */
+final class JoinerConfiguration {
+
+	/** The configuration of a joiner whose setters haven't been called yet */
+	static final JoinerConfiguration DEFAULT = new Builder().build();
+
+	private final List<String> primaryTables;
+	private final List<String> nonPrimaryTables;
+	private final Map<String, String> childTables;
+	private final String joinField;
+	private final Map<String, Integer> maxChildDocs;
+	private final boolean provideFeedback;
+	private final Map<String, List<String>> childTableFacetFields;
+	private final Map<String, TableStatistics> tableStatistics;
+	private final Map<String, List<String>> tableSchemaFields;
+	private final String collectionFieldName;
+	private final boolean ignoreAdvancedQueries;
+	private final List<String> tablesToIncludeInFacetCounts;
+	private final Map<String, Integer> tableBoosts;
+	private final boolean strictChildMatching;
+	private final boolean allowChildDocOnlySearch;
+	private final boolean singlePassStrictJoin;
+	private final boolean tieredRelaxation;
+	private final int tierBoost;
+	private final int maxUnboostedScore;
+	private final int relaxedMinimumMatch;
+	private final int feedbackSamplePercent;
+	private final int maxFeedbackEvents;
+	private final int negativeCacheTtlSeconds;
+	private final int facetCacheTtlSeconds;
+	private final boolean storeFingerprint;
+	private final boolean adaptiveRollup;
+	private final int adaptiveRollupFloor;
+	private final int adaptiveRollupCeiling;
+	private final Map<String, String> joinFields;
+	private final boolean mimickComposite;
+
+	private JoinerConfiguration(Builder builder) {
+		this.primaryTables = copyOf(builder.primaryTables);
+		this.nonPrimaryTables = copyOf(builder.nonPrimaryTables);
+		this.childTables = copyOf(builder.childTables);
+		this.joinField = builder.joinField;
+		this.maxChildDocs = copyOf(builder.maxChildDocs);
+		this.provideFeedback = builder.provideFeedback;
+		Map<String, List<String>> facetFields = new LinkedHashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> entry : builder.childTableFacetFields.entrySet()) {
+			facetFields.put(entry.getKey(), copyOf(entry.getValue()));
+		}
+		this.childTableFacetFields = Collections.unmodifiableMap(facetFields);
+		this.tableStatistics = copyOf(builder.tableStatistics);
+		Map<String, List<String>> schemaFields = new LinkedHashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> entry : builder.tableSchemaFields.entrySet()) {
+			schemaFields.put(entry.getKey(), copyOf(entry.getValue()));
+		}
+		this.tableSchemaFields = Collections.unmodifiableMap(schemaFields);
+		this.collectionFieldName = builder.collectionFieldName;
+		this.ignoreAdvancedQueries = builder.ignoreAdvancedQueries;
+		this.tablesToIncludeInFacetCounts = copyOf(builder.tablesToIncludeInFacetCounts);
+		this.tableBoosts = copyOf(builder.tableBoosts);
+		this.strictChildMatching = builder.strictChildMatching;
+		this.allowChildDocOnlySearch = builder.allowChildDocOnlySearch;
+		this.singlePassStrictJoin = builder.singlePassStrictJoin;
+		this.tieredRelaxation = builder.tieredRelaxation;
+		this.tierBoost = builder.tierBoost;
+		this.maxUnboostedScore = builder.maxUnboostedScore;
+		this.relaxedMinimumMatch = builder.relaxedMinimumMatch;
+		this.feedbackSamplePercent = builder.feedbackSamplePercent;
+		this.maxFeedbackEvents = builder.maxFeedbackEvents;
+		this.negativeCacheTtlSeconds = builder.negativeCacheTtlSeconds;
+		this.facetCacheTtlSeconds = builder.facetCacheTtlSeconds;
+		this.storeFingerprint = builder.storeFingerprint;
+		this.adaptiveRollup = builder.adaptiveRollup;
+		this.adaptiveRollupFloor = builder.adaptiveRollupFloor;
+		this.adaptiveRollupCeiling = builder.adaptiveRollupCeiling;
+		this.joinFields = copyOf(builder.joinFields);
+		this.mimickComposite = builder.mimickComposite;
+	}
+
+	private static <T> List<T> copyOf(List<T> list) {
+		return list == null ? Collections.<T>emptyList() : Collections.unmodifiableList(new ArrayList<T>(list));
+	}
+
+	private static <V> Map<String, V> copyOf(Map<String, V> map) {
+		return map == null ? Collections.<String, V>emptyMap()
+				: Collections.unmodifiableMap(new LinkedHashMap<String, V>(map));
+	}
+
+	/**
+	 * @return a builder holding this configuration, for deriving a changed copy
+	 */
+	Builder toBuilder() {
+		Builder builder = new Builder();
+		builder.primaryTables = this.primaryTables;
+		builder.nonPrimaryTables = this.nonPrimaryTables;
+		builder.childTables = this.childTables;
+		builder.joinField = this.joinField;
+		builder.maxChildDocs = this.maxChildDocs;
+		builder.provideFeedback = this.provideFeedback;
+		builder.childTableFacetFields = this.childTableFacetFields;
+		builder.tableStatistics = this.tableStatistics;
+		builder.tableSchemaFields = this.tableSchemaFields;
+		builder.collectionFieldName = this.collectionFieldName;
+		builder.ignoreAdvancedQueries = this.ignoreAdvancedQueries;
+		builder.tablesToIncludeInFacetCounts = this.tablesToIncludeInFacetCounts;
+		builder.tableBoosts = this.tableBoosts;
+		builder.strictChildMatching = this.strictChildMatching;
+		builder.allowChildDocOnlySearch = this.allowChildDocOnlySearch;
+		builder.singlePassStrictJoin = this.singlePassStrictJoin;
+		builder.tieredRelaxation = this.tieredRelaxation;
+		builder.tierBoost = this.tierBoost;
+		builder.maxUnboostedScore = this.maxUnboostedScore;
+		builder.relaxedMinimumMatch = this.relaxedMinimumMatch;
+		builder.feedbackSamplePercent = this.feedbackSamplePercent;
+		builder.maxFeedbackEvents = this.maxFeedbackEvents;
+		builder.negativeCacheTtlSeconds = this.negativeCacheTtlSeconds;
+		builder.facetCacheTtlSeconds = this.facetCacheTtlSeconds;
+		builder.storeFingerprint = this.storeFingerprint;
+		builder.adaptiveRollup = this.adaptiveRollup;
+		builder.adaptiveRollupFloor = this.adaptiveRollupFloor;
+		builder.adaptiveRollupCeiling = this.adaptiveRollupCeiling;
+		builder.joinFields = this.joinFields;
+		builder.mimickComposite = this.mimickComposite;
+		return builder;
+	}
+
+	List<String> getPrimaryTables() {
+		return primaryTables;
+	}
+
+	List<String> getNonPrimaryTables() {
+		return nonPrimaryTables;
+	}
+
+	/**
+	 * @return map of child table to its join mode, as configured
+	 */
+	Map<String, String> getChildTables() {
+		return childTables;
+	}
+
+	String getJoinField() {
+		return joinField;
+	}
+
+	Map<String, Integer> getMaxChildDocs() {
+		return maxChildDocs;
+	}
+
+	boolean isProvideFeedback() {
+		return provideFeedback;
+	}
+
+	Map<String, List<String>> getChildTableFacetFields() {
+		return childTableFacetFields;
+	}
+
+	Map<String, TableStatistics> getTableStatistics() {
+		return tableStatistics;
+	}
+
+	Map<String, List<String>> getTableSchemaFields() {
+		return tableSchemaFields;
+	}
+
+	String getCollectionFieldName() {
+		return collectionFieldName;
+	}
+
+	boolean isIgnoreAdvancedQueries() {
+		return ignoreAdvancedQueries;
+	}
+
+	List<String> getTablesToIncludeInFacetCounts() {
+		return tablesToIncludeInFacetCounts;
+	}
+
+	Map<String, Integer> getTableBoosts() {
+		return tableBoosts;
+	}
+
+	boolean isStrictChildMatching() {
+		return strictChildMatching;
+	}
+
+	boolean isAllowChildDocOnlySearch() {
+		return allowChildDocOnlySearch;
+	}
+
+	boolean isSinglePassStrictJoin() {
+		return singlePassStrictJoin;
+	}
+
+	boolean isTieredRelaxation() {
+		return tieredRelaxation;
+	}
+
+	int getTierBoost() {
+		return tierBoost;
+	}
+
+	int getMaxUnboostedScore() {
+		return maxUnboostedScore;
+	}
+
+	int getRelaxedMinimumMatch() {
+		return relaxedMinimumMatch;
+	}
+
+	/**
+	 * Not checked when the configuration is built, so that the Tier Boost and the
+	 * Max Unboosted Score can be set in either order.
+	 *
+	 * @return whether the unboosted scores stay below the Tier Boost, which the
+	 *         tiers are told apart by
+	 */
+	boolean isTierSeparable() {
+		return maxUnboostedScore < tierBoost;
+	}
+
+	int getFeedbackSamplePercent() {
+		return feedbackSamplePercent;
+	}
+
+	int getMaxFeedbackEvents() {
+		return maxFeedbackEvents;
+	}
+
+	int getNegativeCacheTtlSeconds() {
+		return negativeCacheTtlSeconds;
+	}
+
+	int getFacetCacheTtlSeconds() {
+		return facetCacheTtlSeconds;
+	}
+
+	boolean isStoreFingerprint() {
+		return storeFingerprint;
+	}
+
+	/**
+	 * @return whether the transformed requests need their
+	 *         {@link QueryFingerprint}, because it was asked for or because the
+	 *         facet cache keys on it
+	 */
+	boolean isFingerprintNeeded() {
+		return storeFingerprint || facetCacheTtlSeconds > 0;
+	}
+
+	boolean isAdaptiveRollup() {
+		return adaptiveRollup;
+	}
+
+	/**
+	 * @return whether the transformed requests need to describe their tables for
+	 *         the {@link TableStatisticsRegistry}, because adaptive rollup or the
+	 *         join planner reads the statistics it observes
+	 */
+	boolean isTableDescriptionNeeded() {
+		return adaptiveRollup || !tableStatistics.isEmpty();
+	}
+
+	int getAdaptiveRollupFloor() {
+		return adaptiveRollupFloor;
+	}
+
+	int getAdaptiveRollupCeiling() {
+		return adaptiveRollupCeiling;
+	}
+
+	/**
+	 * @return map of child table to the field it's joined on, for the
+	 *         {@code MultiFieldJoiner}
+	 */
+	Map<String, String> getJoinFields() {
+		return joinFields;
+	}
+
+	boolean isMimickComposite() {
+		return mimickComposite;
+	}
+
+	/**
+	 * Mutable copy of a configuration. Only the joiners' setters change one,
+	 * while holding the joiner's configuration lock.
+	 */
+	static final class Builder {
+		List<String> primaryTables;
+		List<String> nonPrimaryTables;
+		Map<String, String> childTables;
+		String joinField;
+		Map<String, Integer> maxChildDocs;
+		boolean provideFeedback;
+		Map<String, List<String>> childTableFacetFields = Collections.emptyMap();
+		Map<String, TableStatistics> tableStatistics;
+		Map<String, List<String>> tableSchemaFields = Collections.emptyMap();
+		String collectionFieldName = FieldNames.TABLE;
+		boolean ignoreAdvancedQueries;
+		List<String> tablesToIncludeInFacetCounts;
+		Map<String, Integer> tableBoosts;
+		boolean strictChildMatching;
+		boolean allowChildDocOnlySearch;
+		boolean singlePassStrictJoin;
+		boolean tieredRelaxation;
+		int tierBoost = QueryRelaxation.DEFAULT_TIER_BOOST;
+		int maxUnboostedScore = QueryRelaxation.DEFAULT_MAX_UNBOOSTED_SCORE;
+		int relaxedMinimumMatch = 1;
+		int feedbackSamplePercent = 100;
+		int maxFeedbackEvents = JoinDiagnostics.DEFAULT_MAX_EVENTS;
+		int negativeCacheTtlSeconds;
+		int facetCacheTtlSeconds;
+		boolean storeFingerprint;
+		boolean adaptiveRollup;
+		int adaptiveRollupFloor = 1;
+		int adaptiveRollupCeiling = 100;
+		Map<String, String> joinFields;
+		boolean mimickComposite;
+
+		/**
+		 * Validates the configuration and takes an immutable snapshot of it.
+		 *
+		 * @return the snapshot
+		 * @throws IllegalArgumentException if a setting is invalid
+		 */
+		JoinerConfiguration build() {
+			if (childTables != null) {
+				for (Map.Entry<String, String> entry : childTables.entrySet()) {
+					requireTable("Child Tables", entry.getKey());
+					if (!isJoinMode(entry.getValue())) {
+						throw new IllegalArgumentException("Child table " + entry.getKey()
+								+ " must have a join mode of INNER or OUTER but has " + entry.getValue());
+					}
+				}
+			}
+			if (maxChildDocs != null) {
+				for (Map.Entry<String, Integer> entry : maxChildDocs.entrySet()) {
+					requireTable("Max Child Docs", entry.getKey());
+					if (entry.getValue() == null) {
+						throw new IllegalArgumentException("Max Child Docs of table " + entry.getKey() + " is missing");
+					}
+				}
+			}
+			if (tableBoosts != null) {
+				for (Map.Entry<String, Integer> entry : tableBoosts.entrySet()) {
+					requireTable("Table Boost Amounts", entry.getKey());
+					if (entry.getValue() == null) {
+						throw new IllegalArgumentException("Boost of table " + entry.getKey() + " is missing");
+					}
+				}
+			}
+			if (collectionFieldName == null || collectionFieldName.trim().isEmpty()) {
+				throw new IllegalArgumentException("Collection Field Name can't be empty");
+			}
+			if (feedbackSamplePercent < 0 || feedbackSamplePercent > 100) {
+				throw new IllegalArgumentException(
+						"Feedback Sample Percent must be between 0 and 100 but was " + feedbackSamplePercent);
+			}
+			requireNotNegative("Max Feedback Messages", maxFeedbackEvents);
+			requireNotNegative("Negative Cache TTL", negativeCacheTtlSeconds);
+			requireNotNegative("Facet Cache TTL", facetCacheTtlSeconds);
+			if (tierBoost <= 1) {
+				throw new IllegalArgumentException("Tier Boost must be greater than 1 but was " + tierBoost);
+			}
+			if (maxUnboostedScore < 1) {
+				throw new IllegalArgumentException("Max Unboosted Score must be at least 1 but was " + maxUnboostedScore);
+			}
+			if (relaxedMinimumMatch < 1) {
+				throw new IllegalArgumentException(
+						"Relaxed Minimum Match must be at least 1 but was " + relaxedMinimumMatch);
+			}
+			requireNotNegative("Adaptive Rollup Floor", adaptiveRollupFloor);
+			requireNotNegative("Adaptive Rollup Ceiling", adaptiveRollupCeiling);
+			return new JoinerConfiguration(this);
+		}
+
+		private static boolean isJoinMode(String mode) {
+			if (mode == null) {
+				return false;
+			}
+			try {
+				return JoinMode.fromExternal(mode) != null;
+			} catch (RuntimeException e) {
+				return false;
+			}
+		}
+
+		private static void requireTable(String option, String table) {
+			if (table == null || table.isEmpty()) {
+				throw new IllegalArgumentException(option + " can't have an empty table name");
+			}
+		}
+
+		private static void requireNotNegative(String option, int value) {
+			if (value < 0) {
+				throw new IllegalArgumentException(option + " can't be negative but was " + value);
+			}
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.attivio.sdk.search.query.BooleanOrQuery;
+import com.attivio.sdk.search.query.CompositeJoinQuery;
+import com.attivio.sdk.search.query.JoinQuery;
+import com.attivio.sdk.search.query.Query;
+
+/**
+ * Latency and plan shape metrics for a joiner, exported over JMX as
+ * {@code com.attivio.GenericQTJ:type=JoinerMetrics,name=<joiner>}. There is one
+ * instance per joiner class, shared by all components of that class. <br>
+ * <br>
+ * Three stages of {@code processQuery} are timed: extracting the child table
+ * filters, building the join, and setting the join on the request. For each
+ * request the shape of the generated query and its clause and branch counts are
+ * also recorded, so slow searches can be related to specific join shapes without
+ * turning on query feedback.
+ */
+public class JoinerMetrics implements JoinerMetricsMBean {
+
+	static final String DOMAIN = "com.attivio.GenericQTJ";
+
+	private static final Logger log = LoggerFactory.getLogger(JoinerMetrics.class);
+
+	private static final ConcurrentMap<String, JoinerMetrics> METRICS = new ConcurrentHashMap<String, JoinerMetrics>();
+
+	private final Log2Histogram filterExtraction = new Log2Histogram();
+	private final Log2Histogram planBuilding = new Log2Histogram();
+	private final Log2Histogram setQuery = new Log2Histogram();
+	private final Log2Histogram clauseCounts = new Log2Histogram();
+	private final Log2Histogram branchCounts = new Log2Histogram();
+	private final LongAdder[] planShapes = new LongAdder[PlanShape.values().length];
+
+	JoinerMetrics() {
+		for (int i = 0; i < planShapes.length; i++) {
+			planShapes[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Returns the metrics for a joiner, creating them and registering their MBean
+	 * the first time they are asked for.
+	 *
+	 * @param joinerName The name to export the metrics under, normally the simple
+	 *                   class name of the joiner
+	 * @return the joiner's metrics
+	 */
+	public static JoinerMetrics forJoiner(String joinerName) {
+		JoinerMetrics metrics = METRICS.get(joinerName);
+		if (metrics == null) {
+			JoinerMetrics created = new JoinerMetrics();
+			metrics = METRICS.putIfAbsent(joinerName, created);
+			if (metrics == null) {
+				metrics = created;
+				register(joinerName, created);
+			}
+		}
+		return metrics;
+	}
+
+	private static void register(String joinerName, JoinerMetrics metrics) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(DOMAIN + ":type=JoinerMetrics,name=" + ObjectName.quote(joinerName));
+			if (!server.isRegistered(name)) {
+				server.registerMBean(metrics, name);
+			}
+		} catch (JMException | SecurityException e) {
+			log.warn("Unable to register joiner metrics for " + joinerName + " with JMX", e);
+		}
+	}
+
+	/**
+	 * Records the metrics of one transformed request.
+	 *
+	 * @param filterExtractionNanos Time spent extracting the child table filters
+	 * @param planBuildingNanos     Time spent building the join
+	 * @param setQueryNanos         Time spent setting the join on the request
+	 * @param shape                 The plan the joiner chose, or {@code null} if
+	 *                              it didn't note one
+	 * @param query                 The generated query
+	 */
+	public void record(long filterExtractionNanos, long planBuildingNanos, long setQueryNanos, PlanShape shape,
+			Query query) {
+		filterExtraction.record(TimeUnit.NANOSECONDS.toMicros(filterExtractionNanos));
+		planBuilding.record(TimeUnit.NANOSECONDS.toMicros(planBuildingNanos));
+		setQuery.record(TimeUnit.NANOSECONDS.toMicros(setQueryNanos));
+		if (shape != null) {
+			planShapes[shape.ordinal()].increment();
+		}
+		if (query instanceof BooleanOrQuery) {
+			Query[] branches = ((BooleanOrQuery) query).getClauses();
+			long clauses = 0;
+			for (Query branch : branches) {
+				clauses += countClauses(branch);
+			}
+			branchCounts.record(branches.length);
+			clauseCounts.record(clauses);
+		} else {
+			branchCounts.record(1);
+			clauseCounts.record(countClauses(query));
+		}
+	}
+
+	private static int countClauses(Query query) {
+		if (query instanceof CompositeJoinQuery) {
+			return ((CompositeJoinQuery) query).getClauses().size();
+		}
+		if (query instanceof JoinQuery) {
+			return ((JoinQuery) query).getClauses().size();
+		}
+		return 0;
+	}
+
+	public long getPlans(PlanShape shape) {
+		return planShapes[shape.ordinal()].sum();
+	}
+
+	@Override
+	public long getRequests() {
+		return filterExtraction.getCount();
+	}
+
+	@Override
+	public double getFilterExtractionMeanMicros() {
+		return filterExtraction.getMean();
+	}
+
+	@Override
+	public long getFilterExtractionP50Micros() {
+		return filterExtraction.getPercentile(50);
+	}
+
+	@Override
+	public long getFilterExtractionP99Micros() {
+		return filterExtraction.getPercentile(99);
+	}
+
+	@Override
+	public long getFilterExtractionMaxMicros() {
+		return filterExtraction.getMax();
+	}
+
+	@Override
+	public double getPlanBuildingMeanMicros() {
+		return planBuilding.getMean();
+	}
+
+	@Override
+	public long getPlanBuildingP50Micros() {
+		return planBuilding.getPercentile(50);
+	}
+
+	@Override
+	public long getPlanBuildingP99Micros() {
+		return planBuilding.getPercentile(99);
+	}
+
+	@Override
+	public long getPlanBuildingMaxMicros() {
+		return planBuilding.getMax();
+	}
+
+	@Override
+	public double getSetQueryMeanMicros() {
+		return setQuery.getMean();
+	}
+
+	@Override
+	public long getSetQueryP50Micros() {
+		return setQuery.getPercentile(50);
+	}
+
+	@Override
+	public long getSetQueryP99Micros() {
+		return setQuery.getPercentile(99);
+	}
+
+	@Override
+	public long getSetQueryMaxMicros() {
+		return setQuery.getMax();
+	}
+
+	@Override
+	public long getCompositePlans() {
+		return this.getPlans(PlanShape.COMPOSITE);
+	}
+
+	@Override
+	public long getStrictOrOfJoinsPlans() {
+		return this.getPlans(PlanShape.STRICT_OR_OF_JOINS);
+	}
+
+	@Override
+	public long getParentOnlyPlans() {
+		return this.getPlans(PlanShape.PARENT_ONLY);
+	}
+
+	@Override
+	public long getMimickedCompositePlans() {
+		return this.getPlans(PlanShape.MIMICKED_COMPOSITE);
+	}
+
+	@Override
+	public long getJoinPlans() {
+		return this.getPlans(PlanShape.JOIN);
+	}
+
+	@Override
+	public double getMeanClauseCount() {
+		return clauseCounts.getMean();
+	}
+
+	@Override
+	public long getMaxClauseCount() {
+		return clauseCounts.getMax();
+	}
+
+	@Override
+	public double getMeanBranchCount() {
+		return branchCounts.getMean();
+	}
+
+	@Override
+	public long getMaxBranchCount() {
+		return branchCounts.getMax();
+	}
+
+	@Override
+	public void reset() {
+		filterExtraction.reset();
+		planBuilding.reset();
+		setQuery.reset();
+		clauseCounts.reset();
+		branchCounts.reset();
+		for (LongAdder planShape : planShapes) {
+			planShape.reset();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+/**
+ * JMX view of the {@link JoinerMetrics} of a joiner. Latencies are in
+ * microseconds; percentiles are accurate to within a factor of two.
+ */
+public interface JoinerMetricsMBean {
+
+	long getRequests();
+
+	double getFilterExtractionMeanMicros();
+
+	long getFilterExtractionP50Micros();
+
+	long getFilterExtractionP99Micros();
+
+	long getFilterExtractionMaxMicros();
+
+	double getPlanBuildingMeanMicros();
+
+	long getPlanBuildingP50Micros();
+
+	long getPlanBuildingP99Micros();
+
+	long getPlanBuildingMaxMicros();
+
+	double getSetQueryMeanMicros();
+
+	long getSetQueryP50Micros();
+
+	long getSetQueryP99Micros();
+
+	long getSetQueryMaxMicros();
+
+	long getCompositePlans();
+
+	long getStrictOrOfJoinsPlans();
+
+	long getParentOnlyPlans();
+
+	long getMimickedCompositePlans();
+
+	long getJoinPlans();
+
+	double getMeanClauseCount();
+
+	long getMaxClauseCount();
+
+	double getMeanBranchCount();
+
+	long getMaxBranchCount();
+
+	void reset();
+}
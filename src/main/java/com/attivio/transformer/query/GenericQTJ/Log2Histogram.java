@@ -0,0 +1,111 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, lock-free histogram of non-negative values with power of two
+ * bucket boundaries. Bucket {@code i} counts the values in
+ * {@code [2^(i-1), 2^i)}, with bucket 0 counting zeros, so percentiles are
+ * reported as the upper bound of the bucket they fall in (within a factor of two
+ * of the real value). Memory use is constant no matter how many values are
+ * recorded.
+ */
+public class Log2Histogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile The percentile to return, between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile, or 0 if nothing
+	 *         has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.sum();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank && seen > 0) {
+				return Math.min(i == 63 ? Long.MAX_VALUE : (1L << i) - 1, this.getMax());
+			}
+		}
+		return this.getMax();
+	}
+
+	long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return a copy of the count in each bucket
+	 */
+	long[] getBucketCounts() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * Adds bucket counts taken from another histogram, for example one saved
+	 * before a restart.
+	 *
+	 * @param counts The count in each bucket, up to 64 buckets
+	 * @param sum    The sum of the values the counts were recorded from
+	 * @param max    The largest value the counts were recorded from
+	 */
+	void add(long[] counts, long sum, long max) {
+		for (int i = 0; i < Math.min(BUCKETS, counts.length); i++) {
+			buckets.addAndGet(i, counts[i]);
+			count.add(counts[i]);
+		}
+		this.sum.add(sum);
+		this.max.accumulate(max);
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+}
@@ -12,5 +12,8 @@ public class ModuleInit {
     
   static {
     LOG.info("Loaded module GenericQTJ");
+    // Register the joiners' metrics with JMX before their first request
+    JoinerMetrics.forJoiner(GenericCompositeJoiner.class.getSimpleName());
+    JoinerMetrics.forJoiner(MultiFieldJoiner.class.getSimpleName());
   }
 }
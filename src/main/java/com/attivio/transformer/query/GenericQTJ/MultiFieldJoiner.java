@@ -1,25 +1,23 @@
 package com.attivio.transformer.query.GenericQTJ;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import com.attivio.sdk.AttivioException;
-import com.attivio.sdk.search.QueryFeedback;
 import com.attivio.sdk.search.QueryRequest;
 import com.attivio.sdk.search.query.BooleanAndQuery;
 import com.attivio.sdk.search.query.BooleanOrQuery;
 import com.attivio.sdk.search.query.JoinClause;
 import com.attivio.sdk.search.query.JoinMode;
 import com.attivio.sdk.search.query.JoinQuery;
-import com.attivio.sdk.search.query.PhraseQuery;
 import com.attivio.sdk.search.query.Query;
 import com.attivio.sdk.server.annotation.ConfigurationOption;
 import com.attivio.sdk.server.annotation.ConfigurationOptionInfo;
 import com.attivio.sdk.server.annotation.ConfigurationOption.OptionLevel;
+import com.attivio.transformer.query.GenericQTJ.JoinDiagnostics.Event;
+import com.attivio.transformer.query.GenericQTJ.JoinPlanTemplate.TableClause;
 
 @ConfigurationOptionInfo(displayName = "Multi-Field Table Joiner", description = "Transforms query into the equivalent of a Composite Join, but with the ability to specify different join fields for each metadata table", groups = {
 		@ConfigurationOptionInfo.Group(path = ConfigurationOptionInfo.PLATFORM_COMPONENT, propertyNames = {
@@ -28,69 +26,152 @@ import com.attivio.sdk.server.annotation.ConfigurationOption.OptionLevel;
 				"mimickComposite" }) })
 public class MultiFieldJoiner extends GenericCompositeJoiner {
 
-	private Map<String, String> joinFields = new HashMap<String, String>();
-	private boolean mimickComposite = false;
-
-	private Logger log = LoggerFactory.getLogger(this.getClass());
-
 	@ConfigurationOption(displayName = "Default Join Field", description = "The default Field to join on (must be the same field across both sources)", optionLevel = OptionLevel.Required)
 	@Override
 	public String getJoinField() {
-		return joinField;
+		return super.getJoinField();
 	}
 
 	@ConfigurationOption(displayName = "Child Table Join Fields", description = "Map of table names to the fields they should be joined on, if a field other than the default join field should be used", formEntryClass = ConfigurationOption.STRING_TO_STRING_MAP)
 	public Map<String, String> getJoinFields() {
-		return joinFields;
+		return this.getConfiguration().getJoinFields();
 	}
 
 	public void setJoinFields(Map<String, String> joinFields) {
-		this.joinFields = joinFields;
+		this.reconfigure(c -> c.joinFields = joinFields);
 	}
 
 	@ConfigurationOption(displayName = "Composite Mode", description = "Should the search term be searched for in all child tables as well, similar to the behavior of the CompositeJoin. WARNING: Consider performance impacts before turning this on", formEntryClass = ConfigurationOption.FALSE_SWITCH_VALUE)
 	public boolean isMimickComposite() {
-		return mimickComposite;
+		return this.getConfiguration().isMimickComposite();
 	}
 
 	public void setMimickComposite(boolean mimickComposite) {
-		this.mimickComposite = mimickComposite;
+		this.reconfigure(c -> c.mimickComposite = mimickComposite);
 	}
 
 	@Override
-	protected Query buildCompositeJoinQuery(Map<String, List<Query>> facetFiltersMap, QueryRequest qr,
-			List<QueryFeedback> feedback) throws AttivioException {
-
-		Query completeQuery;
-		Query userQuery = qr.getQuery();
-		Query initialJoinQuery = this.generateInitialJoin(userQuery, facetFiltersMap, feedback);
-		if (this.provideFeedback) {
-			String message = "Adding initial Join Query : " + initialJoinQuery;
-			feedback.add(new QueryFeedback(this.getClass().getName(), "MultiFieldJoiner", message));
-			log.trace(message);
+	protected Query buildCompositeJoinQuery(JoinPlanTemplate plan, Map<String, List<Query>> facetFiltersMap,
+			QueryRequest qr, JoinDiagnostics diagnostics) throws AttivioException {
+
+		if (plan.getConfiguration().isMimickComposite() && this.isEquivalentToComposite(plan, facetFiltersMap)) {
+			PlanShape shape = plan.getPlanner().choose(Arrays.asList(PlanShape.MIMICKED_COMPOSITE, PlanShape.COMPOSITE),
+					plan.getTables(), facetFiltersMap, JoinPlanner.isMatchAll(qr.getQuery()));
+			diagnostics.record(Event.PLAN_CHOSEN, shape);
+			if (shape == PlanShape.COMPOSITE) {
+				diagnostics.setPlanShape(PlanShape.COMPOSITE);
+				return super.buildCompositeJoin(plan, facetFiltersMap, qr, diagnostics);
+			}
 		}
-		if (this.mimickComposite) {
-			BooleanOrQuery orWrapperQuery = new BooleanOrQuery();
-			orWrapperQuery.add(initialJoinQuery);
-			for (String table : this.childTables.keySet()) {
-				Query childTableJoinQuery = this.generateMetadataJoinQuery(userQuery, table, facetFiltersMap, feedback);
-				if (this.provideFeedback) {
-					String message = "Adding additional Join Query : " + childTableJoinQuery;
-					feedback.add(new QueryFeedback(this.getClass().getName(), "MultiFieldJoiner", message));
-					log.trace(message);
+		diagnostics.setPlanShape(
+				plan.getConfiguration().isMimickComposite() ? PlanShape.MIMICKED_COMPOSITE : PlanShape.JOIN);
+		List<Query> branches = this.buildBranches(plan, qr, facetFiltersMap, diagnostics);
+		if (branches.size() == 1) {
+			return branches.get(0);
+		}
+		BooleanOrQuery orWrapperQuery = new BooleanOrQuery();
+		orWrapperQuery.add(branches);
+		return orWrapperQuery;
+	}
+
+	/**
+	 * The mimicked composite join returns the same parents as a real composite
+	 * join only when every table is joined on the default join field, no table is
+	 * boosted, every table with a facet filter is already an INNER join (the
+	 * composite join forces filtered tables to INNER), and no table is included in
+	 * the facet counts (the mimicked join doesn't count child facets).
+	 * 
+	 * @param plan            The request's plan template
+	 * @param facetFiltersMap Facet Queries that will be added to the join clauses
+	 * @return whether the planner may replace the mimicked composite join with a
+	 *         {@code CompositeJoinQuery}
+	 */
+	private boolean isEquivalentToComposite(JoinPlanTemplate plan, Map<String, List<Query>> facetFiltersMap) {
+		if (!plan.getPlanner().isEnabled()) {
+			return false;
+		}
+		JoinerConfiguration configuration = plan.getConfiguration();
+		for (TableClause table : plan.getTables()) {
+			String field = configuration.getJoinFields().get(table.getTable());
+			if (field != null && !field.equals(configuration.getJoinField())) {
+				return false;
+			}
+			if (table.hasBoost() || table.isFacet()) {
+				return false;
+			}
+			List<Query> facetFilters = facetFiltersMap.get(table.getTable());
+			if (facetFilters != null && !facetFilters.isEmpty() && table.getMode() != JoinMode.INNER) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Transforms a request into the separate join branches that would otherwise
+	 * be put into an {@code OR} query, for running them as separate searches (see
+	 * {@link ScatterGatherJoinSearcher}). The filters and facet filters on the
+	 * child table fields are stripped from the request and built into the
+	 * branches, just like {@link #processQuery(QueryRequest)} does.
+	 * 
+	 * @param qr The request to transform
+	 * @return the initial join, followed by one join per child table if
+	 *         {@code mimickComposite} is turned on
+	 * @throws AttivioException
+	 */
+	public List<Query> buildJoinBranches(QueryRequest qr) throws AttivioException {
+		JoinPlanTemplate plan = this.getPlanTemplate();
+		JoinDiagnostics diagnostics = this.newDiagnostics(plan.getConfiguration());
+		Map<String, List<Query>> facetFiltersMap = this.extractMetadataFacetFilterQueries(plan, qr, diagnostics);
+		return this.buildBranches(plan, qr, facetFiltersMap, diagnostics);
+	}
+
+	private List<Query> buildBranches(JoinPlanTemplate plan, QueryRequest qr,
+			Map<String, List<Query>> facetFiltersMap, JoinDiagnostics diagnostics) throws AttivioException {
+		List<Query> branches = new ArrayList<Query>();
+		Query initialJoinQuery = this.generateInitialJoin(plan, qr, facetFiltersMap);
+		diagnostics.record(Event.INITIAL_JOIN, initialJoinQuery);
+		branches.add(initialJoinQuery);
+		if (plan.getConfiguration().isMimickComposite()) {
+			List<TableClause> tables = plan.getTables();
+			boolean[] searchable = this.searchableTables(plan, tables, qr, true, diagnostics);
+			for (int i = 0; i < tables.size(); i++) {
+				if (!searchable[i]) {
+					continue;
 				}
-				orWrapperQuery.add(childTableJoinQuery);
+				TableClause table = tables.get(i);
+				Query childTableJoinQuery = this.generateMetadataJoinQuery(plan, qr, table, facetFiltersMap);
+				diagnostics.record(Event.ADDITIONAL_JOIN, childTableJoinQuery);
+				branches.add(childTableJoinQuery);
 			}
-			completeQuery = orWrapperQuery;
-		} else {
-			completeQuery = initialJoinQuery;
 		}
-		if (this.provideFeedback) {
-			String message = "Setting final Query : " + completeQuery;
-			feedback.add(new QueryFeedback(this.getClass().getName(), "MultiFieldJoiner", message));
-			log.trace(message);
+		return branches;
+	}
+
+	@Override
+	protected String configurationKey(JoinPlanTemplate plan) {
+		return super.configurationKey(plan) + '|' + plan.getConfiguration().getJoinFields() + '|'
+				+ plan.getConfiguration().isMimickComposite();
+	}
+
+	/**
+	 * Facet filters don't change the join mode of the Multi-Field Joiner's clauses.
+	 */
+	@Override
+	List<TableClause> orderTables(JoinPlanTemplate plan, Map<String, List<Query>> facetFiltersMap) {
+		return JoinCanonicalizer.orderClauses(plan.getTables(), facetFiltersMap, false, plan.getPlanner());
+	}
+
+	/**
+	 * Unlike the Generic Composite Joiner, tables without a Max Child Docs setting
+	 * get no rollup limit unless adaptive rollup is turned on.
+	 */
+	@Override
+	int rollupLimit(JoinerConfiguration configuration, TableClause table) {
+		if (table.getConfiguredRollupLimit() == null && !configuration.isAdaptiveRollup()) {
+			return -1;
 		}
-		return completeQuery;
+		return super.rollupLimit(configuration, table);
 	}
 
 	/**
@@ -98,22 +179,24 @@ public class MultiFieldJoiner extends GenericCompositeJoiner {
 	 * query in in the primary table, so all metadata tables just need to be plain
 	 * Outer Join Clauses
 	 * 
-	 * @param userQuery
-	 *            The original query from the user
+	 * @param plan
+	 *            The request's plan template
+	 * @param qr
+	 *            The request with the original query from the user
 	 * @param facetFiltersMap
 	 *            Facet Queries that should be added to the join clauses
-	 * @param feedback
 	 * @return The {@code JoinQuery}
 	 * @throws AttivioException
 	 */
-	private JoinQuery generateInitialJoin(Query userQuery, Map<String, List<Query>> facetFiltersMap,
-			List<QueryFeedback> feedback) throws AttivioException {
-		BooleanAndQuery andQuery = new BooleanAndQuery(userQuery);
-		andQuery.add(super.generateFromQuery());
+	private JoinQuery generateInitialJoin(JoinPlanTemplate plan, QueryRequest qr,
+			Map<String, List<Query>> facetFiltersMap) throws AttivioException {
+		JoinerConfiguration configuration = plan.getConfiguration();
+		BooleanAndQuery andQuery = new BooleanAndQuery(qr.getQuery());
+		andQuery.add(plan.newFromQuery());
 		JoinQuery join = new JoinQuery(andQuery);
-		for (String childTable : this.childTables.keySet()) {
-			JoinMode jm = JoinMode.fromExternal(this.childTables.get(childTable));
-			join.add(this.generateGenericClause(childTable, this.joinField, jm, this.joinFields, facetFiltersMap));
+		for (TableClause childTable : this.orderTables(plan, facetFiltersMap)) {
+			join.add(this.generateGenericClause(plan, childTable, configuration.getJoinField(), childTable.getMode(),
+					configuration.getJoinFields(), facetFiltersMap, qr));
 		}
 		return join;
 	}
@@ -123,8 +206,10 @@ public class MultiFieldJoiner extends GenericCompositeJoiner {
 	 * tables, where the match on the original user query is in one of the metadata
 	 * tables
 	 * 
-	 * @param userQuery
-	 *            The original query from the user
+	 * @param plan
+	 *            The request's plan template
+	 * @param qr
+	 *            The request with the original query from the user
 	 * @param primaryTables
 	 *            The primary data table that metadata should be joined to
 	 * @param metadataQueryTable
@@ -138,28 +223,28 @@ public class MultiFieldJoiner extends GenericCompositeJoiner {
 	 *            used
 	 * @param facetFiltersMap
 	 *            Facet Queries that should be added to the join clauses
-	 * @param feedback
 	 * @return A {@code JoinQuery}
 	 * @throws AttivioException
 	 */
-	private JoinQuery generateMetadataJoinQuery(Query userQuery, String metadataQueryTable,
-			Map<String, List<Query>> facetFiltersMap, List<QueryFeedback> feedback) throws AttivioException {
-		Query primaryTableQuery = super.generateFromQuery();
-		JoinQuery joinQuery = new JoinQuery(primaryTableQuery);
-		BooleanAndQuery andQuery = new BooleanAndQuery(new PhraseQuery(this.collectionFieldName, metadataQueryTable));
-		andQuery.add(userQuery);
-		if (facetFiltersMap.containsKey(metadataQueryTable)) {
-			andQuery.add(facetFiltersMap.get(metadataQueryTable));
+	private JoinQuery generateMetadataJoinQuery(JoinPlanTemplate plan, QueryRequest qr,
+			TableClause metadataQueryTable, Map<String, List<Query>> facetFiltersMap) throws AttivioException {
+		Map<String, String> joinFields = plan.getConfiguration().getJoinFields();
+		JoinQuery joinQuery = new JoinQuery(plan.newFromQuery());
+		BooleanAndQuery andQuery = new BooleanAndQuery(metadataQueryTable.newTableQuery());
+		andQuery.add(qr.getQuery());
+		if (facetFiltersMap.containsKey(metadataQueryTable.getTable())) {
+			andQuery.add(facetFiltersMap.get(metadataQueryTable.getTable()));
 		}
-		String joinKeyField = joinFields.containsKey(metadataQueryTable) ? joinFields.get(metadataQueryTable)
-				: this.joinField;
+		String joinKeyField = joinFields.containsKey(metadataQueryTable.getTable())
+				? joinFields.get(metadataQueryTable.getTable())
+				: plan.getConfiguration().getJoinField();
 		joinQuery.add(new JoinClause(andQuery, JoinMode.INNER, joinKeyField, joinKeyField));
-		for (String childTable : this.childTables.keySet()) {
-			if (childTable.equals(metadataQueryTable)) {
+		for (TableClause childTable : this.orderTables(plan, facetFiltersMap)) {
+			if (childTable == metadataQueryTable) {
 				continue;
 			}
-			JoinMode jm = JoinMode.fromExternal(this.childTables.get(childTable));
-			joinQuery.add(this.generateGenericClause(childTable, joinKeyField, jm, joinFields, facetFiltersMap));
+			joinQuery.add(this.generateGenericClause(plan, childTable, joinKeyField, childTable.getMode(), joinFields,
+					facetFiltersMap, qr));
 		}
 		return joinQuery;
 	}
@@ -168,8 +253,10 @@ public class MultiFieldJoiner extends GenericCompositeJoiner {
 	 * Utility function to generate the Join Clauses for metadata tables that don't
 	 * need to be searched for the a user query
 	 * 
+	 * @param plan
+	 *            The request's plan template
 	 * @param table
-	 *            The name of the table the clause is for
+	 *            The precompiled clause settings of the table the clause is for
 	 * @param joinField
 	 *            The default field to join on
 	 * @param joinFields
@@ -177,27 +264,28 @@ public class MultiFieldJoiner extends GenericCompositeJoiner {
 	 *            should not be used
 	 * @param facetFiltersMap
 	 *            Facet filter queries to apply to the clause's query
+	 * @param qr
+	 *            The request the clause is for
 	 * @return the {@code JoinClause} for the specified table, with facet filter
 	 *         queries applied
 	 */
-	private JoinClause generateGenericClause(String table, String joinField, JoinMode joinMode,
-			Map<String, String> joinFields, Map<String, List<Query>> facetFiltersMap) {
+	private JoinClause generateGenericClause(JoinPlanTemplate plan, TableClause table, String joinField, JoinMode joinMode,
+			Map<String, String> joinFields, Map<String, List<Query>> facetFiltersMap, QueryRequest qr) {
 		String field = joinField;
-		if (joinFields.containsKey(table)) {
-			field = joinFields.get(table);
+		if (joinFields.containsKey(table.getTable())) {
+			field = joinFields.get(table.getTable());
 		}
-		PhraseQuery tableQuery = new PhraseQuery(this.collectionFieldName, table);
-		Query clauseQuery = tableQuery;
-		if (facetFiltersMap.containsKey(table)) {
-			BooleanAndQuery andQuery = new BooleanAndQuery(tableQuery);
-			for (Query facetQuery : facetFiltersMap.get(table)) {
-				andQuery.add(facetQuery);
-			}
+		Query clauseQuery = table.newTableQuery();
+		List<Query> facetFilters = facetFiltersMap.get(table.getTable());
+		if (facetFilters != null) {
+			BooleanAndQuery andQuery = new BooleanAndQuery(clauseQuery);
+			andQuery.add(facetFilters);
 			clauseQuery = andQuery;
 		}
 		JoinClause clause = new JoinClause(clauseQuery, joinMode, field, field);
-		if (this.maxChildDocs!=null && this.maxChildDocs.get(table)!=null) {
-		  clause.setRollupLimit(this.maxChildDocs.get(table));
+		int rollupLimit = this.rollupLimit(plan.getConfiguration(), table);
+		if (rollupLimit >= 0) {
+			clause.setRollupLimit(rollupLimit);
 		}
 		return clause;
 	}
@@ -0,0 +1,142 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.sdk.search.query.Query;
+
+/**
+ * Remembers which requests recently came back empty on the first pass of a
+ * resubmitting join, so the joiners can build the form the resubmit would have
+ * produced straight away and save a search round trip for repeat zero-hit
+ * queries. <br>
+ * <br>
+ * When the cache is turned on for a joiner, the joiner stores the request's key
+ * in the {@link #KEY_PROPERTY_NAME} property. The key covers the normalized user
+ * query, the filters, the facet filters, the request's principal and the
+ * joiner's configuration. The
+ * resubmit routers record the key when the first pass finds nothing. Entries are
+ * evicted least recently used first once the cache is full, and are ignored and
+ * removed once they're older than the TTL the joiner is configured with.
+ */
+public final class NegativeResultCache {
+
+	/** Name of the request property holding the request's key */
+	public static final String KEY_PROPERTY_NAME = "genericqtj.negativeCacheKey";
+
+	/** Set on requests whose query was relaxed by the joiner */
+	public static final String RELAXED_PROPERTY_NAME = "genericqtj.relaxed";
+
+	static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private static final NegativeResultCache INSTANCE = new NegativeResultCache(DEFAULT_MAX_ENTRIES);
+
+	/**
+	 * The first passes that the resubmit routers can find empty.
+	 */
+	public enum EmptyPass {
+		/** The strict join's parent only first pass, resubmitted by {@code ResubmitStrictJoin} */
+		PARENT_ONLY,
+		/** The unrelaxed {@code AND} query, resubmitted by {@code ResubmitRelaxedJoin} */
+		UNRELAXED
+	}
+
+	// Maps the pass and request key to the time it was found empty at
+	private final BoundedLruCache<String, Long> emptyPasses;
+	private final LongSupplier nanoClock;
+
+	NegativeResultCache(int maxEntries) {
+		this(maxEntries, System::nanoTime);
+	}
+
+	NegativeResultCache(int maxEntries, LongSupplier nanoClock) {
+		this.emptyPasses = new BoundedLruCache<String, Long>(maxEntries);
+		this.nanoClock = nanoClock;
+	}
+
+	public static NegativeResultCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Builds the key of a request before the joiner transforms it.
+	 *
+	 * @param configurationKey Identifies the configuration of the joiner
+	 * @param qr               The request
+	 * @return the request's key
+	 */
+	static String key(String configurationKey, QueryRequest qr) {
+		StringBuilder key = new StringBuilder(configurationKey);
+		key.append('\u0000').append(AccessControls.principalKey(qr));
+		key.append('\u0000').append(normalize(qr.getQueryString())).append('\u0000')
+				.append(qr.getQueryLanguage() == null ? "" : qr.getQueryLanguage().toLowerCase());
+		List<String> filters = new ArrayList<String>();
+		for (Query filter : qr.getFilters()) {
+			filters.add(normalize(filter.getQueryString()));
+		}
+		Collections.sort(filters);
+		for (String filter : filters) {
+			key.append('\u0000').append(filter);
+		}
+		key.append('\u0001');
+		List<String> facetFilters = new ArrayList<String>();
+		for (FacetFilter facetFilter : qr.getFacetFilters()) {
+			facetFilters.add(facetFilter.toString());
+		}
+		Collections.sort(facetFilters);
+		for (String facetFilter : facetFilters) {
+			key.append('\u0000').append(facetFilter);
+		}
+		return key.toString();
+	}
+
+	private static String normalize(String query) {
+		return query == null ? "" : query.trim().replaceAll("\\s+", " ");
+	}
+
+	/**
+	 * Records that a pass of a request came back empty, if the joiner stored a key
+	 * on the request.
+	 */
+	public void recordEmpty(QueryRequest qr, EmptyPass pass) {
+		if (qr.hasProperty(KEY_PROPERTY_NAME)) {
+			this.recordEmpty(qr.getProperty(KEY_PROPERTY_NAME, ""), pass);
+		}
+	}
+
+	void recordEmpty(String key, EmptyPass pass) {
+		emptyPasses.put(pass.name() + key, nanoClock.getAsLong());
+	}
+
+	/**
+	 * @param key        The request's key
+	 * @param pass       The pass to check
+	 * @param ttlSeconds How long an empty pass is remembered for
+	 * @return whether the pass was found empty within the TTL
+	 */
+	boolean isKnownEmpty(String key, EmptyPass pass, long ttlSeconds) {
+		String passKey = pass.name() + key;
+		Long recordedAt = emptyPasses.get(passKey);
+		if (recordedAt == null) {
+			return false;
+		}
+		if (nanoClock.getAsLong() - recordedAt > TimeUnit.SECONDS.toNanos(ttlSeconds)) {
+			emptyPasses.remove(passKey);
+			return false;
+		}
+		return true;
+	}
+
+	int size() {
+		return emptyPasses.size();
+	}
+
+	void clear() {
+		emptyPasses.clear();
+	}
+}
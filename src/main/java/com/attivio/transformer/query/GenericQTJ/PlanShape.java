@@ -0,0 +1,26 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+/**
+ * The plans that the joiners can choose for a request. Each joiner reports the
+ * plan it chose on the request's {@link JoinDiagnostics} while building the
+ * join, since the generated query alone doesn't tell them apart.
+ */
+public enum PlanShape {
+	/** A single {@code CompositeJoinQuery} */
+	COMPOSITE,
+	/**
+	 * One {@code JoinQuery} per searched child table (strict child matching), in an
+	 * {@code OR} unless only one table is searched, along with the boosted parent
+	 * only join in a single pass
+	 */
+	STRICT_OR_OF_JOINS,
+	/** A single {@code JoinQuery} only matching the user query on the parents */
+	PARENT_ONLY,
+	/**
+	 * {@code JoinQueries} mimicking a {@code CompositeJoinQuery}, in an {@code OR}
+	 * unless only the initial join is searched
+	 */
+	MIMICKED_COMPOSITE,
+	/** A single {@code JoinQuery} with per-table join fields */
+	JOIN
+}
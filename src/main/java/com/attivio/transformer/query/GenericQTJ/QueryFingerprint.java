@@ -0,0 +1,231 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.sdk.search.query.Query;
+
+/**
+ * A 128-bit fingerprint of a transformed request: the generated join, the
+ * filters and the facet filters left on the request. The fingerprint is the
+ * MurmurHash3 (x64, 128-bit) of the request's canonical string form, in which
+ * the filters and facet filters are sorted. Since the joiners emit their clauses
+ * and filter subqueries in a deterministic order (see {@link JoinCanonicalizer}),
+ * equivalent requests get the same fingerprint. <br>
+ * <br>
+ * The joiners store the fingerprint of each request they transform in the
+ * {@link #PROPERTY_NAME} request property.
+ */
+public final class QueryFingerprint {
+
+	/** Name of the request property holding the hex form of the fingerprint */
+	public static final String PROPERTY_NAME = "genericqtj.fingerprint";
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final long high;
+	private final long low;
+
+	QueryFingerprint(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * @return the fingerprint of the request's query, filters and facet filters
+	 */
+	public static QueryFingerprint of(QueryRequest qr) {
+		return of(qr.getQuery(), qr.getFilters(), qr.getFacetFilters());
+	}
+
+	/**
+	 * @return the fingerprint of a query along with the filters and facet filters
+	 *         it is run with
+	 */
+	public static QueryFingerprint of(Query query, List<Query> filters, List<FacetFilter> facetFilters) {
+		StringBuilder canonical = new StringBuilder(query.toString());
+		if (filters != null && !filters.isEmpty()) {
+			List<String> filterStrings = new ArrayList<String>(filters.size());
+			for (Query filter : filters) {
+				filterStrings.add(filter.toString());
+			}
+			Collections.sort(filterStrings);
+			for (String filter : filterStrings) {
+				canonical.append('\u0000').append(filter);
+			}
+		}
+		canonical.append('\u0001');
+		if (facetFilters != null && !facetFilters.isEmpty()) {
+			List<String> facetFilterStrings = new ArrayList<String>(facetFilters.size());
+			for (FacetFilter facetFilter : facetFilters) {
+				facetFilterStrings.add(facetFilter.toString());
+			}
+			Collections.sort(facetFilterStrings);
+			for (String facetFilter : facetFilterStrings) {
+				canonical.append('\u0000').append(facetFilter);
+			}
+		}
+		return of(canonical.toString());
+	}
+
+	/**
+	 * @return the fingerprint of a string
+	 */
+	public static QueryFingerprint of(String value) {
+		return of(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the fingerprint of a byte array
+	 */
+	static QueryFingerprint of(byte[] data) {
+		long h1 = 0;
+		long h2 = 0;
+		int blocks = data.length / 16;
+		for (int i = 0; i < blocks; i++) {
+			long k1 = getLong(data, i * 16);
+			long k2 = getLong(data, i * 16 + 8);
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		long k1 = 0;
+		long k2 = 0;
+		int tail = blocks * 16;
+		switch (data.length & 15) {
+		case 15:
+			k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+		case 14:
+			k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+		case 13:
+			k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+		case 12:
+			k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+		case 11:
+			k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+		case 10:
+			k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+		case 9:
+			k2 ^= (long) (data[tail + 8] & 0xff);
+			h2 ^= mixK2(k2);
+		case 8:
+			k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+		case 7:
+			k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+		case 6:
+			k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+		case 5:
+			k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+		case 4:
+			k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+		case 3:
+			k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+		case 2:
+			k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+		case 1:
+			k1 ^= (long) (data[tail] & 0xff);
+			h1 ^= mixK1(k1);
+		default:
+			break;
+		}
+
+		h1 ^= data.length;
+		h2 ^= data.length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+		return new QueryFingerprint(h1, h2);
+	}
+
+	private static long getLong(byte[] data, int offset) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (data[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		return k1 * C2;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		return k2 * C1;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	/**
+	 * Parses the hex form returned by {@link #toString()}.
+	 *
+	 * @throws IllegalArgumentException if the string isn't a fingerprint
+	 */
+	public static QueryFingerprint valueOf(String hex) {
+		if (hex == null || hex.length() != 32) {
+			throw new IllegalArgumentException("Not a query fingerprint: " + hex);
+		}
+		try {
+			return new QueryFingerprint(Long.parseUnsignedLong(hex.substring(0, 16), 16),
+					Long.parseUnsignedLong(hex.substring(16), 16));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a query fingerprint: " + hex, e);
+		}
+	}
+
+	/**
+	 * @return the first 64 bits of the fingerprint
+	 */
+	public long asLong() {
+		return high;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (high ^ (high >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof QueryFingerprint)) {
+			return false;
+		}
+		QueryFingerprint other = (QueryFingerprint) obj;
+		return high == other.high && low == other.low;
+	}
+
+	/**
+	 * @return the fingerprint as 32 hex digits
+	 */
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", high, low);
+	}
+}
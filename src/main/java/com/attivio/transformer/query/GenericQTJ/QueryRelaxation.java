@@ -0,0 +1,178 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import com.attivio.sdk.search.query.AccessControlQuery;
+import com.attivio.sdk.search.query.BooleanAndQuery;
+import com.attivio.sdk.search.query.BooleanOrQuery;
+import com.attivio.sdk.search.query.BoostQuery;
+import com.attivio.sdk.search.query.CompositeJoinQuery;
+import com.attivio.sdk.search.query.JoinQuery;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
+import com.attivio.sdk.search.query.SubQuery;
+
+/**
+ * Relaxes a user query by switching it from {@code AND} to {@code OR}, so that
+ * documents matching any of its terms are found. Shared by the
+ * {@code ResubmitRelaxedJoin} router, which relaxes the query after an empty
+ * response, and the joiners, which relax it up front when the
+ * {@link NegativeResultCache} knows the unrelaxed query finds nothing. <br>
+ * <br>
+ * With Tiered Relaxation turned on, the joiners search both forms in one pass
+ * instead (see {@link #tier(Query, int, int)}), and the router reports which
+ * tier the top hit came from in the {@link #TIER_MESSAGE_NAME} feedback of the
+ * response. The
+ * engine doesn't say which tier a hit matched, so the tier is told from the
+ * score, which is only sound if the scores are bounded (see
+ * {@link #isBoostedTier(float, int, int)}).
+ */
+public final class QueryRelaxation {
+
+	/** Set on requests searched in tiers, to the boost of the strict tier */
+	public static final String TIER_BOOST_PROPERTY_NAME = "genericqtj.tierBoost";
+
+	/**
+	 * Set on requests searched in tiers, to the highest score a match of the
+	 * unboosted tier can get
+	 */
+	public static final String MAX_UNBOOSTED_SCORE_PROPERTY_NAME = "genericqtj.maxUnboostedScore";
+
+	/**
+	 * The name of the feedback added to tiered responses with hits, whose message
+	 * is {@link #STRICT_TIER} or {@link #RELAXED_TIER}
+	 */
+	public static final String TIER_MESSAGE_NAME = "relaxationTier";
+
+	/** The top hit matched the query as it was written */
+	public static final String STRICT_TIER = "strict";
+
+	/** The top hit only matched the relaxed form of the query */
+	public static final String RELAXED_TIER = "relaxed";
+
+	static final int DEFAULT_TIER_BOOST = 1000;
+
+	/** The highest score of an unboosted match, unless the joiner is configured otherwise */
+	public static final int DEFAULT_MAX_UNBOOSTED_SCORE = 100;
+
+	private QueryRelaxation() {
+	}
+
+	/**
+	 * @param query The user query, or a join built around it
+	 * @return the relaxed query, or {@code null} if the query can't be relaxed
+	 */
+	public static BooleanOrQuery relax(Query query) {
+		BooleanOrQuery orQuery = new BooleanOrQuery();
+		Query originalQuery = query;
+		if (originalQuery instanceof AccessControlQuery) {
+			originalQuery = ((AccessControlQuery) originalQuery).getQuery();
+		}
+		if (originalQuery instanceof BoostQuery) {
+			originalQuery = ((BoostQuery) originalQuery).getQuery();
+		}
+		if (originalQuery instanceof CompositeJoinQuery) {
+			CompositeJoinQuery joinQuery = (CompositeJoinQuery) originalQuery;
+			originalQuery = joinQuery.getQuery();
+		}
+		if (originalQuery instanceof JoinQuery) {
+			JoinQuery join = (JoinQuery) originalQuery;
+			originalQuery = join.getQuery();
+		}
+		if (originalQuery instanceof AccessControlQuery) {
+			originalQuery = ((AccessControlQuery) originalQuery).getQuery();
+		}
+		if (originalQuery instanceof BoostQuery) {
+			originalQuery = ((BoostQuery) originalQuery).getQuery();
+		}
+		if (originalQuery instanceof BooleanAndQuery) {
+			BooleanAndQuery andQuery = (BooleanAndQuery) originalQuery;
+			for (Query clause : andQuery) {
+				orQuery.add(clause);
+			}
+			return orQuery;
+		} else if (originalQuery instanceof SubQuery) {
+			SubQuery sq = (SubQuery) originalQuery;
+			if (sq.getQuery() instanceof BooleanAndQuery) {
+				BooleanAndQuery andQuery = (BooleanAndQuery) sq.getQuery();
+				for (Query clause : andQuery) {
+					orQuery.add(clause);
+				}
+				return orQuery;
+			} else if (sq.getQuery() instanceof BooleanOrQuery) {
+				return orQuery;
+			}
+		} else if (originalQuery instanceof QueryString) {
+			QueryString qs = (QueryString) originalQuery;
+			String queryString = qs.getQueryString();
+			if (!queryString.contains("\"")) {
+				String[] terms = queryString.split(" ");
+				for (String t : terms) {
+					orQuery.add(t);
+				}
+			}
+			return orQuery;
+		}
+		return null;
+	}
+
+	/**
+	 * Combines a user query with its relaxed form, so the documents matching it as
+	 * written rank above those only matching some of its terms:
+	 * {@code OR(BOOST(query, tierBoost), OR(terms, minimumShouldMatch))}.
+	 *
+	 * @param query        The user query
+	 * @param tierBoost    The boost of the strict tier
+	 * @param minimumMatch How many of the terms a match of the relaxed tier needs
+	 * @return the tiered query, or {@code null} if relaxing the query wouldn't
+	 *         find any more documents
+	 */
+	public static Query tier(Query query, int tierBoost, int minimumMatch) {
+		BooleanOrQuery relaxedQuery = relax(query);
+		if (relaxedQuery == null || relaxedQuery.getClauses().length <= minimumMatch) {
+			return null;
+		}
+		relaxedQuery.setMinimumShouldMatch(minimumMatch);
+		return new BooleanOrQuery(new BoostQuery(query, tierBoost), relaxedQuery);
+	}
+
+	/**
+	 * Works out whether a hit of a tiered search came from the boosted tier. This
+	 * assumes that a match of either tier gets an unboosted score between 1 and
+	 * {@code maxUnboostedScore} from the relevancy model, so the hits of the
+	 * boosted tier score at least {@code tierBoost}, and the others at most
+	 * {@code maxUnboostedScore}, which the joiners make sure is less. A score
+	 * between the two breaks the assumption, and isn't attributed to either tier.
+	 *
+	 * @param score             The score of the hit
+	 * @param tierBoost         The boost of the boosted tier
+	 * @param maxUnboostedScore The highest score of an unboosted match
+	 * @return whether the hit is from the boosted tier, or {@code null} if the
+	 *         score doesn't tell
+	 */
+	public static Boolean isBoostedTier(float score, int tierBoost, int maxUnboostedScore) {
+		if (score >= tierBoost) {
+			return Boolean.TRUE;
+		}
+		if (score <= maxUnboostedScore) {
+			return Boolean.FALSE;
+		}
+		return null;
+	}
+
+	/**
+	 * Works out which tier the top hit of a tiered search came from, with
+	 * {@link #isBoostedTier(float, int, int)}.
+	 *
+	 * @param topScore          The score of the top hit
+	 * @param tierBoost         The boost of the strict tier
+	 * @param maxUnboostedScore The highest score of an unboosted match
+	 * @return {@link #STRICT_TIER} or {@link #RELAXED_TIER}, or {@code null} if
+	 *         the score doesn't tell
+	 */
+	public static String tierOf(float topScore, int tierBoost, int maxUnboostedScore) {
+		Boolean boosted = isBoostedTier(topScore, tierBoost, maxUnboostedScore);
+		if (boosted == null) {
+			return null;
+		}
+		return boosted ? STRICT_TIER : RELAXED_TIER;
+	}
+}
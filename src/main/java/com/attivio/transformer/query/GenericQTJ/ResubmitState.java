@@ -0,0 +1,286 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.attivio.sdk.search.QueryLanguages;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
+
+/**
+ * The parts of a {@code QueryRequest} that the joiners replace or strip on the
+ * first pass, and that have to be put back when the request is resubmitted: the
+ * user query and its language, the filters, and the facet filters. <br>
+ * <br>
+ * The state is carried between passes as a single request property holding a
+ * versioned binary encoding, instead of one string list property per part. The
+ * filters and facet filters are carried as the serialized objects themselves,
+ * so they come back exactly as they were built, without being parsed again. Only
+ * platform and JDK classes are read back from the property. The joiners only
+ * store it for requests that allow resubmits.
+ */
+public final class ResubmitState {
+
+	/** Name of the request property holding the encoded state */
+	public static final String PROPERTY_NAME = "genericqtj.resubmitState";
+
+	// Properties written by earlier versions of the joiners, only read
+	static final String LEGACY_QUERY_PROPERTY_NAME = "original_query";
+	static final String LEGACY_QUERY_LANGUAGE_PROPERTY_NAME = "original_language";
+	static final String LEGACY_FILTER_PROPERTY_NAME = "filters";
+	static final String LEGACY_FACET_FILTER_PROPERTY_NAME = "facetFilters";
+
+	private static final byte VERSION = 2;
+
+	private static final Logger log = LoggerFactory.getLogger(ResubmitState.class);
+
+	private final String query;
+	private final String queryLanguage;
+	private final List<Query> filters;
+	private final List<FacetFilter> facetFilters;
+
+	ResubmitState(String query, String queryLanguage, List<Query> filters, List<FacetFilter> facetFilters) {
+		this.query = query;
+		this.queryLanguage = queryLanguage;
+		this.filters = filters;
+		this.facetFilters = facetFilters;
+	}
+
+	/**
+	 * Captures the state of a request before it is transformed.
+	 */
+	public static ResubmitState capture(QueryRequest qr) {
+		return new ResubmitState(qr.getQueryString(), qr.getQueryLanguage(), new ArrayList<Query>(qr.getFilters()),
+				new ArrayList<FacetFilter>(qr.getFacetFilters()));
+	}
+
+	/**
+	 * Captures the state of a request and stores it on the request, so it can be
+	 * restored if the request is resubmitted.
+	 */
+	public static void store(QueryRequest qr) {
+		qr.setProperty(PROPERTY_NAME, capture(qr).encode());
+	}
+
+	/**
+	 * Reads the state stored on a request by the first pass, falling back to the
+	 * properties written by earlier versions of the joiners.
+	 *
+	 * @return the stored state, or {@code null} if there is none or it can't be
+	 *         decoded, in which case the request is used as it is
+	 */
+	public static ResubmitState read(QueryRequest qr) {
+		if (qr.hasProperty(PROPERTY_NAME)) {
+			try {
+				return decode(qr.getProperty(PROPERTY_NAME));
+			} catch (IllegalArgumentException e) {
+				log.warn("Ignoring the malformed resubmit state of a request: {}", e.getMessage());
+				return null;
+			}
+		}
+		if (qr.hasProperty(LEGACY_QUERY_PROPERTY_NAME)) {
+			return readLegacy(qr);
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ResubmitState readLegacy(QueryRequest qr) {
+		List<Query> filters = null;
+		Object filterProperty = qr.getProperty(LEGACY_FILTER_PROPERTY_NAME);
+		if (filterProperty instanceof List<?>) {
+			filters = new ArrayList<Query>();
+			for (String filter : (List<String>) filterProperty) {
+				filters.add(new QueryString(filter));
+			}
+		}
+		List<FacetFilter> facetFilters = null;
+		Object facetFilterProperty = qr.getProperty(LEGACY_FACET_FILTER_PROPERTY_NAME);
+		if (facetFilterProperty instanceof List<?>) {
+			facetFilters = new ArrayList<FacetFilter>();
+			for (String facetFilter : (List<String>) facetFilterProperty) {
+				facetFilters.add(FacetFilter.valueOf(facetFilter));
+			}
+		}
+		return new ResubmitState(qr.getProperty(LEGACY_QUERY_PROPERTY_NAME, "*:*"),
+				qr.getProperty(LEGACY_QUERY_LANGUAGE_PROPERTY_NAME, QueryLanguages.ADVANCED), filters, facetFilters);
+	}
+
+	private static ResubmitState decode(Object property) {
+		if (!(property instanceof byte[])) {
+			throw new IllegalArgumentException("Resubmit state isn't encoded");
+		}
+		return decode((byte[]) property);
+	}
+
+	/**
+	 * Replaces the query in the state stored on a request, for response components
+	 * that resubmit the request with a different user query. Does nothing if no
+	 * state is stored, or if it can't be decoded.
+	 */
+	public static void replaceQuery(QueryRequest qr, String query, String queryLanguage) {
+		if (qr.hasProperty(PROPERTY_NAME)) {
+			ResubmitState state;
+			try {
+				state = decode(qr.getProperty(PROPERTY_NAME));
+			} catch (IllegalArgumentException e) {
+				log.warn("Not replacing the query in the malformed resubmit state of a request: {}", e.getMessage());
+				return;
+			}
+			qr.setProperty(PROPERTY_NAME,
+					new ResubmitState(query, queryLanguage, state.filters, state.facetFilters).encode());
+		}
+	}
+
+	/**
+	 * Puts the captured query, filters and facet filters back on a request. Parts
+	 * that weren't captured are left as they are.
+	 */
+	public void restore(QueryRequest qr) {
+		if (this.query != null) {
+			qr.setQuery(this.query, this.queryLanguage);
+		}
+		if (this.filters != null) {
+			qr.setFilters(new ArrayList<Query>(this.filters));
+		}
+		if (this.facetFilters != null) {
+			qr.setFacetFilters(new ArrayList<FacetFilter>(this.facetFilters));
+		}
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public String getQueryLanguage() {
+		return queryLanguage;
+	}
+
+	/**
+	 * @return the captured filters, or {@code null} if they weren't captured
+	 */
+	public List<Query> getFilters() {
+		return filters == null ? null : Collections.unmodifiableList(filters);
+	}
+
+	/**
+	 * @return the captured facet filters, or {@code null} if they weren't captured
+	 */
+	public List<FacetFilter> getFacetFilters() {
+		return facetFilters == null ? null : Collections.unmodifiableList(facetFilters);
+	}
+
+	/**
+	 * Encodes the state as a version byte followed by the query, its language, and
+	 * the counted lists of serialized filters and facet filters.
+	 */
+	public byte[] encode() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeByte(VERSION);
+			out.writeObject(this.query);
+			out.writeObject(this.queryLanguage);
+			writeList(out, this.filters);
+			writeList(out, this.facetFilters);
+		} catch (IOException e) {
+			// Only if a filter isn't serializable
+			throw new IllegalStateException("Resubmit state can't be encoded", e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param encoded A state encoded by {@link #encode()}
+	 * @return the decoded state
+	 * @throws IllegalArgumentException if the state is malformed or was encoded by
+	 *                                  an unsupported version
+	 */
+	public static ResubmitState decode(byte[] encoded) {
+		try (ObjectInputStream in = new StateInputStream(encoded)) {
+			byte version = in.readByte();
+			if (version != VERSION) {
+				throw new IllegalArgumentException("Unsupported resubmit state version " + version);
+			}
+			String query = (String) in.readObject();
+			String queryLanguage = (String) in.readObject();
+			List<Query> filters = readList(in, Query.class, encoded.length);
+			List<FacetFilter> facetFilters = readList(in, FacetFilter.class, encoded.length);
+			return new ResubmitState(query, queryLanguage, filters, facetFilters);
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			throw new IllegalArgumentException("Malformed resubmit state", e);
+		}
+	}
+
+	// Lists are written as their size plus one (0 for null) followed by the
+	// elements
+	private static void writeList(ObjectOutputStream out, List<?> values) throws IOException {
+		if (values == null) {
+			out.writeInt(0);
+			return;
+		}
+		out.writeInt(values.size() + 1);
+		for (Object value : values) {
+			out.writeObject(value);
+		}
+	}
+
+	/**
+	 * @param maxSize Each element takes at least a byte, so a list can't have
+	 *                more elements than the encoded state has bytes
+	 */
+	private static <T> List<T> readList(ObjectInputStream in, Class<T> type, int maxSize)
+			throws IOException, ClassNotFoundException {
+		int size = in.readInt() - 1;
+		if (size < 0) {
+			return null;
+		}
+		if (size > maxSize) {
+			throw new IOException("Malformed list size");
+		}
+		List<T> values = new ArrayList<T>(size);
+		for (int i = 0; i < size; i++) {
+			values.add(type.cast(in.readObject()));
+		}
+		return values;
+	}
+
+	/**
+	 * Only reads back the platform and JDK classes a query, filter or facet filter
+	 * is made of, since request properties can be set by the caller.
+	 */
+	private static final class StateInputStream extends ObjectInputStream {
+
+		StateInputStream(byte[] encoded) throws IOException {
+			super(new ByteArrayInputStream(encoded));
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			String name = desc.getName();
+			while (name.startsWith("[")) {
+				name = name.substring(1);
+			}
+			if (name.startsWith("L")) {
+				name = name.substring(1);
+			}
+			if (name.length() == 1 || name.startsWith("com.attivio.") || name.startsWith("java.lang.")
+					|| name.startsWith("java.util.")) {
+				return super.resolveClass(desc);
+			}
+			throw new InvalidClassException(desc.getName(), "Not allowed in a resubmit state");
+		}
+	}
+}
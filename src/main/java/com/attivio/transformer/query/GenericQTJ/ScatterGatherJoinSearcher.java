@@ -0,0 +1,359 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.schema.FieldNames;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.SearchDocument;
+import com.attivio.sdk.search.SearchDocumentList;
+import com.attivio.sdk.search.SortField;
+import com.attivio.sdk.search.query.Query;
+
+/**
+ * Runs the join branches of a {@link MultiFieldJoiner} as separate, concurrent
+ * searches instead of a single {@code OR} query. With {@code mimickComposite}
+ * turned on the joiner builds one full {@code JoinQuery} per child table; rather
+ * than having the engine evaluate them as one large {@code OR} tree, each branch
+ * is sent through the {@link JoinSearchExecutor} on its own thread. <br>
+ * <br>
+ * The results of the branches are merged by parent document id. A parent found
+ * by several branches is kept once, with the highest score it got from any
+ * branch and the children rolled up by all of them, and the merged parents are
+ * ranked by the request's sort, or by score if it has none. Parents that sort
+ * equally keep the order of the branches that found them, starting with the
+ * initial join. Scores from the separate branch searches are assumed to be
+ * comparable, which holds as long as the branches are scored by the same index
+ * and relevancy model; if they aren't, the merged ranking is only approximate.
+ * <br>
+ * <br>
+ * Any branch may hold the parents of the requested page, so each branch is
+ * searched from the first row up to the end of the page (offset plus rows), and
+ * the page is cut from the merged results. The branches are searched with a copy
+ * of the request, so the caller's request is never modified. The branches count
+ * their facets over overlapping sets of parents, which can't be added up, so no
+ * facets are returned; the total number of merged parents is only known within
+ * the bounds of the {@link Result}.
+ */
+public class ScatterGatherJoinSearcher {
+
+	private static final Logger log = LoggerFactory.getLogger(ScatterGatherJoinSearcher.class);
+
+	private static final Comparator<SearchDocument> BY_SCORE = new Comparator<SearchDocument>() {
+		@Override
+		public int compare(SearchDocument a, SearchDocument b) {
+			return Float.compare(b.getScore(), a.getScore());
+		}
+	};
+
+	private static final ExecutorService SHARED_POOL = Executors
+			.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "GenericQTJ-scatter-gather-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final MultiFieldJoiner joiner;
+	private final JoinSearchExecutor searchExecutor;
+	private final ExecutorService pool;
+	private final long timeoutMillis;
+
+	/**
+	 * Creates a searcher that runs its branches on a pool shared by all
+	 * searchers, with one thread per core.
+	 */
+	public ScatterGatherJoinSearcher(MultiFieldJoiner joiner, JoinSearchExecutor searchExecutor,
+			long timeoutMillis) {
+		this(joiner, searchExecutor, SHARED_POOL, timeoutMillis);
+	}
+
+	/**
+	 * @param joiner         The joiner to build the branches with
+	 * @param searchExecutor Runs the branch searches
+	 * @param pool           The pool to run the branch searches on
+	 * @param timeoutMillis  How long to wait for all the branches of a search
+	 */
+	public ScatterGatherJoinSearcher(MultiFieldJoiner joiner, JoinSearchExecutor searchExecutor,
+			ExecutorService pool, long timeoutMillis) {
+		this.joiner = joiner;
+		this.searchExecutor = searchExecutor;
+		this.pool = pool;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Transforms the request with the joiner, runs its join branches concurrently
+	 * and merges their results.
+	 *
+	 * @param qr The request to search. Like {@code processQuery}, this strips the
+	 *           filters on child table fields from the request.
+	 * @return the requested page of merged parent documents, ranked by the
+	 *         request's sort
+	 * @throws AttivioException     if any branch search fails
+	 * @throws TimeoutException     if the branches don't all finish in time, in
+	 *                              which case the unfinished ones are cancelled
+	 * @throws InterruptedException if interrupted while waiting for the branches
+	 */
+	public Result search(QueryRequest qr) throws AttivioException, TimeoutException, InterruptedException {
+		List<Query> branches = this.joiner.buildJoinBranches(qr);
+		if (branches.size() == 1) {
+			QueryResponse response = this.searchExecutor.search(qr, branches.get(0));
+			return new Result(response.getDocuments(), response.getTotalHits(), response.getTotalHits());
+		}
+		long offset = qr.getOffset();
+		long rows = qr.getRows();
+		// Saturates instead of overflowing for requests asking for all the rows
+		long end = rows > Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + rows;
+		QueryRequest branchRequest = copy(qr);
+		branchRequest.setOffset(0);
+		branchRequest.setRows(end);
+		List<QueryResponse> responses = this.searchBranches(branchRequest, branches);
+
+		List<SearchDocumentList> results = new ArrayList<SearchDocumentList>(responses.size());
+		long minTotalHits = 0;
+		long maxTotalHits = 0;
+		for (QueryResponse response : responses) {
+			results.add(response.getDocuments());
+			minTotalHits = Math.max(minTotalHits, response.getTotalHits());
+			maxTotalHits = maxTotalHits > Long.MAX_VALUE - response.getTotalHits() ? Long.MAX_VALUE
+					: maxTotalHits + response.getTotalHits();
+		}
+		List<SearchDocument> merged = merge(results, comparator(qr.getSort()));
+		SearchDocumentList page = new SearchDocumentList();
+		long pageEnd = Math.min(merged.size(), end);
+		for (long i = offset; i < pageEnd; i++) {
+			page.add(merged.get((int) i));
+		}
+		return new Result(page, Math.max(minTotalHits, merged.size()), Math.max(maxTotalHits, merged.size()));
+	}
+
+	private List<QueryResponse> searchBranches(final QueryRequest qr, List<Query> branches)
+			throws AttivioException, TimeoutException, InterruptedException {
+		List<Future<QueryResponse>> futures = new ArrayList<Future<QueryResponse>>(branches.size());
+		for (final Query branch : branches) {
+			futures.add(this.pool.submit(new Callable<QueryResponse>() {
+				@Override
+				public QueryResponse call() throws AttivioException {
+					return searchExecutor.search(qr, branch);
+				}
+			}));
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeoutMillis);
+		List<QueryResponse> responses = new ArrayList<QueryResponse>(futures.size());
+		try {
+			for (Future<QueryResponse> future : futures) {
+				responses.add(future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof AttivioException) {
+				throw (AttivioException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Join branch search failed", cause);
+		} finally {
+			if (responses.size() < futures.size()) {
+				log.debug("Cancelling {} unfinished join branch searches", futures.size() - responses.size());
+				for (Future<QueryResponse> future : futures) {
+					future.cancel(true);
+				}
+			}
+		}
+		return responses;
+	}
+
+	/**
+	 * @return a copy of the request for the branch searches, which are searched
+	 *         from the first row while the caller's request keeps its page
+	 */
+	private static QueryRequest copy(QueryRequest qr) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(qr);
+		} catch (IOException e) {
+			throw new IllegalStateException("Request can't be copied for the join branch searches", e);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			return (QueryRequest) in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			throw new IllegalStateException("Request can't be copied for the join branch searches", e);
+		}
+	}
+
+	/**
+	 * Merges the results of the branches by parent document id, keeping each
+	 * parent's highest score along with the children every branch rolled up for
+	 * it, and ranks the merged parents.
+	 *
+	 * @param results The results of each branch from the first row, in branch
+	 *                order
+	 * @param order   The order to rank the merged parents in
+	 * @return all the merged parents, ranked
+	 */
+	static List<SearchDocument> merge(List<SearchDocumentList> results, Comparator<SearchDocument> order) {
+		Map<String, SearchDocument> parents = new LinkedHashMap<String, SearchDocument>();
+		for (SearchDocumentList branchResults : results) {
+			if (branchResults == null) {
+				continue;
+			}
+			for (SearchDocument document : branchResults) {
+				SearchDocument found = parents.get(document.getId());
+				if (found == null) {
+					parents.put(document.getId(), document);
+				} else if (document.getScore() > found.getScore()) {
+					mergeChildren(document, found);
+					parents.put(document.getId(), document);
+				} else {
+					mergeChildren(found, document);
+				}
+			}
+		}
+		List<SearchDocument> ranked = new ArrayList<SearchDocument>(parents.values());
+		// The sort is stable, so parents that sort equally keep their branch order
+		Collections.sort(ranked, order);
+		return ranked;
+	}
+
+	/**
+	 * Adds the children another branch rolled up for a parent to the copy of the
+	 * parent that is kept, after its own children.
+	 */
+	private static void mergeChildren(SearchDocument kept, SearchDocument other) {
+		SearchDocumentList keptChildren = kept.getChildren();
+		SearchDocumentList otherChildren = other.getChildren();
+		if (keptChildren == null || otherChildren == null || otherChildren.isEmpty()) {
+			return;
+		}
+		Set<String> ids = new HashSet<String>();
+		for (SearchDocument child : keptChildren) {
+			ids.add(child.getId());
+		}
+		for (SearchDocument child : otherChildren) {
+			if (ids.add(child.getId())) {
+				keptChildren.add(child);
+			}
+		}
+	}
+
+	/**
+	 * @param sort The request's sort, which may be {@code null}
+	 * @return the order of the sort fields, ranking by score where the sort is on
+	 *         the score or where there is no sort
+	 */
+	static Comparator<SearchDocument> comparator(List<SortField> sort) {
+		if (sort == null || sort.isEmpty()) {
+			return BY_SCORE;
+		}
+		final List<SortField> fields = new ArrayList<SortField>(sort);
+		return new Comparator<SearchDocument>() {
+			@Override
+			public int compare(SearchDocument a, SearchDocument b) {
+				for (SortField field : fields) {
+					boolean ascending = field.getSortOrder() == SortField.SortOrder.ASC;
+					int compared;
+					if (FieldNames.SCORE.equals(field.getName())) {
+						compared = Float.compare(a.getScore(), b.getScore());
+					} else {
+						Object aValue = a.getFirstValue(field.getName());
+						Object bValue = b.getFirstValue(field.getName());
+						if (aValue == null || bValue == null) {
+							// Documents without the field sort last either way
+							compared = aValue == null ? (bValue == null ? 0 : 1) : -1;
+							if (compared != 0) {
+								return compared;
+							}
+							continue;
+						}
+						compared = compareValues(aValue, bValue);
+					}
+					if (compared != 0) {
+						return ascending ? compared : -compared;
+					}
+				}
+				return 0;
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compareValues(Object a, Object b) {
+		if (a instanceof Number && b instanceof Number) {
+			return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		}
+		if (a instanceof Comparable && a.getClass() == b.getClass()) {
+			return ((Comparable<Object>) a).compareTo(b);
+		}
+		return a.toString().compareTo(b.toString());
+	}
+
+	/**
+	 * A page of merged parents, and the bounds on the total number of parents the
+	 * branches found between them.
+	 */
+	public static final class Result {
+		private final SearchDocumentList documents;
+		private final long minTotalHits;
+		private final long maxTotalHits;
+
+		Result(SearchDocumentList documents, long minTotalHits, long maxTotalHits) {
+			this.documents = documents;
+			this.minTotalHits = minTotalHits;
+			this.maxTotalHits = maxTotalHits;
+		}
+
+		/**
+		 * @return the requested page of merged parents
+		 */
+		public SearchDocumentList getDocuments() {
+			return documents;
+		}
+
+		/**
+		 * @return the least number of parents found: the most any single branch
+		 *         found, when every other branch only found the same parents
+		 */
+		public long getMinTotalHits() {
+			return minTotalHits;
+		}
+
+		/**
+		 * @return the most parents found: the sum of what the branches found, when
+		 *         no two branches found the same parent
+		 */
+		public long getMaxTotalHits() {
+			return maxTotalHits;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.SortField;
+import com.attivio.sdk.search.query.Query;
+
+/**
+ * A {@link JoinSearchExecutor} that runs identical searches only once while
+ * they are in flight. Dashboards send bursts of the same joined search; the
+ * first one is passed on to the wrapped executor, and duplicates that come in
+ * before it finishes wait for it and get their own copy of its response,
+ * documents, facets and all, instead of having the engine evaluate the join
+ * again. <br>
+ * <br>
+ * Searches are identical when they have the same {@link QueryFingerprint} (the
+ * query searched, the filters and the facet filters) and the same settings that
+ * change what the response holds: the facets, the offset and rows, the sort,
+ * the fields, and the request's principal. Request properties aren't part of
+ * the key, so per-request bookkeeping doesn't keep duplicates apart; don't
+ * coalesce searches whose results depend on a request property. Searches with
+ * an access control query (see {@link AccessControls}) are never coalesced. A
+ * duplicate waits at most the configured timeout, then runs its search itself.
+ * If the first search fails, its duplicates fail with the same exception. Responses are never kept once the first search
+ * finishes, so this doesn't change what a search finds. <br>
+ * <br>
+ * The first search's response is serialized once if any duplicate is waiting
+ * for it, and each duplicate reads its own copy back, so callers may modify the
+ * responses they get.
+ */
+public class SingleFlightSearchExecutor implements JoinSearchExecutor {
+
+	private static final Logger log = LoggerFactory.getLogger(SingleFlightSearchExecutor.class);
+
+	private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+	private final LongAdder coalesced = new LongAdder();
+	private final JoinSearchExecutor searchExecutor;
+	private final long timeoutMillis;
+
+	/**
+	 * @param searchExecutor Runs the searches
+	 * @param timeoutMillis  How long a duplicate waits for the search in flight
+	 *                       before running its own
+	 */
+	public SingleFlightSearchExecutor(JoinSearchExecutor searchExecutor, long timeoutMillis) {
+		this.searchExecutor = searchExecutor;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	@Override
+	public QueryResponse search(QueryRequest request, Query query) throws AttivioException {
+		if (AccessControls.isAccessControlled(request) || AccessControls.isAccessControlled(query)) {
+			log.trace("Not coalescing an access controlled search");
+			return this.searchExecutor.search(request, query);
+		}
+		String key = key(request, query);
+		Flight flight = new Flight();
+		Flight leader = inFlight.putIfAbsent(key, flight);
+		if (leader == null) {
+			return this.lead(key, flight, request, query);
+		}
+		if (!leader.follow()) {
+			// The search in flight just finished without waiting for anyone
+			return this.searchExecutor.search(request, query);
+		}
+		coalesced.increment();
+		try {
+			QueryResponse copy = deserialize(leader.response.get(this.timeoutMillis, TimeUnit.MILLISECONDS));
+			if (copy != null) {
+				return copy;
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof AttivioException) {
+				throw (AttivioException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Coalesced join search failed", cause);
+		} catch (TimeoutException e) {
+			log.debug("Search in flight took longer than {}ms, running the duplicate on its own", this.timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return this.searchExecutor.search(request, query);
+	}
+
+	private QueryResponse lead(String key, Flight flight, QueryRequest request, Query query)
+			throws AttivioException {
+		QueryResponse response;
+		try {
+			response = this.searchExecutor.search(request, query);
+		} catch (AttivioException | RuntimeException e) {
+			inFlight.remove(key, flight);
+			flight.close();
+			flight.response.completeExceptionally(e);
+			throw e;
+		}
+		inFlight.remove(key, flight);
+		if (flight.close()) {
+			// Copied before the caller gets the response, since it may modify it
+			flight.response.complete(serialize(response));
+		}
+		return response;
+	}
+
+	/**
+	 * @return the number of searches that were handed the response of an
+	 *         identical search in flight, including those that gave up waiting
+	 */
+	public long getCoalescedSearches() {
+		return coalesced.sum();
+	}
+
+	int inFlightSearches() {
+		return inFlight.size();
+	}
+
+	/**
+	 * @return the key identifying a search: the fingerprint of the query, filters
+	 *         and facet filters, followed by the settings that change the
+	 *         response
+	 */
+	static String key(QueryRequest request, Query query) {
+		StringBuilder key = new StringBuilder(
+				QueryFingerprint.of(query, request.getFilters(), request.getFacetFilters()).toString());
+		key.append('\u0000').append(request.getOffset()).append('\u0000').append(request.getRows());
+		key.append('\u0000').append(AccessControls.principalKey(request));
+		key.append('\u0001');
+		appendAll(key, request.getFacets());
+		key.append('\u0001');
+		if (request.getSort() != null) {
+			for (SortField sortField : request.getSort()) {
+				key.append('\u0000').append(sortField.getName()).append(' ').append(sortField.getSortOrder());
+			}
+		}
+		key.append('\u0001');
+		appendAll(key, request.getFields());
+		return key.toString();
+	}
+
+	private static void appendAll(StringBuilder key, List<?> values) {
+		if (values != null) {
+			for (Object value : values) {
+				key.append('\u0000').append(value);
+			}
+		}
+	}
+
+	/**
+	 * @return the serialized response, or {@code null} if it can't be
+	 *         serialized, in which case the duplicates run their own searches
+	 */
+	private static byte[] serialize(QueryResponse response) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(response);
+		} catch (IOException e) {
+			log.warn("Response can't be copied for the coalesced searches", e);
+			return null;
+		}
+		return bytes.toByteArray();
+	}
+
+	private static QueryResponse deserialize(byte[] serialized) {
+		if (serialized == null) {
+			return null;
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+			return (QueryResponse) in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			log.warn("Copied response can't be read back", e);
+			return null;
+		}
+	}
+
+	/**
+	 * A search in flight, and the duplicates waiting for its response.
+	 */
+	private static final class Flight {
+		private final CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
+		private int followers;
+		private boolean closed;
+
+		/**
+		 * @return whether the duplicate will be handed the response, which it isn't
+		 *         once the search has finished
+		 */
+		synchronized boolean follow() {
+			if (closed) {
+				return false;
+			}
+			followers++;
+			return true;
+		}
+
+		/**
+		 * @return whether any duplicate is waiting for the response
+		 */
+		synchronized boolean close() {
+			closed = true;
+			return followers > 0;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.Locale;
+
+/**
+ * Statistics about a table that the {@link JoinPlanner} uses to estimate the cost
+ * of a join. They are written as a comma separated list of
+ * {@code name=value} pairs, for example
+ * {@code documents=250000, childrenPerParent=3.5, filterSelectivity=0.2}:
+ * <ul>
+ * <li>{@code documents}: the number of documents in the table (required)</li>
+ * <li>{@code childrenPerParent}: for child tables, the average number of
+ * documents per join key. Defaults to 1.</li>
+ * <li>{@code filterSelectivity}: for child tables, the average fraction of the
+ * table's documents that a filter on its fields matches. Defaults to 1.</li>
+ * </ul>
+ */
+public final class TableStatistics {
+
+	private final long documents;
+	private final double childrenPerParent;
+	private final double filterSelectivity;
+
+	public TableStatistics(long documents, double childrenPerParent, double filterSelectivity) {
+		if (documents < 0) {
+			throw new IllegalArgumentException("documents can't be negative but was " + documents);
+		}
+		if (childrenPerParent < 0) {
+			throw new IllegalArgumentException("childrenPerParent can't be negative but was " + childrenPerParent);
+		}
+		if (filterSelectivity < 0 || filterSelectivity > 1) {
+			throw new IllegalArgumentException("filterSelectivity must be between 0 and 1 but was " + filterSelectivity);
+		}
+		this.documents = documents;
+		this.childrenPerParent = childrenPerParent;
+		this.filterSelectivity = filterSelectivity;
+	}
+
+	/**
+	 * Parses statistics written as {@code name=value} pairs.
+	 *
+	 * @throws IllegalArgumentException if the statistics are malformed
+	 */
+	public static TableStatistics valueOf(String value) {
+		Long documents = null;
+		double childrenPerParent = 1;
+		double filterSelectivity = 1;
+		for (String pair : value.split(",")) {
+			String[] nameValue = pair.split("=");
+			if (nameValue.length != 2) {
+				throw new IllegalArgumentException("Expected name=value in table statistics but got: " + pair);
+			}
+			String name = nameValue[0].trim();
+			String number = nameValue[1].trim();
+			try {
+				if (name.equals("documents")) {
+					documents = Long.parseLong(number);
+				} else if (name.equals("childrenPerParent")) {
+					childrenPerParent = Double.parseDouble(number);
+				} else if (name.equals("filterSelectivity")) {
+					filterSelectivity = Double.parseDouble(number);
+				} else {
+					throw new IllegalArgumentException("Unknown table statistic: " + name);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Table statistic " + name + " isn't a number: " + number, e);
+			}
+		}
+		if (documents == null) {
+			throw new IllegalArgumentException("Table statistics must include documents: " + value);
+		}
+		return new TableStatistics(documents, childrenPerParent, filterSelectivity);
+	}
+
+	public long getDocuments() {
+		return documents;
+	}
+
+	public double getChildrenPerParent() {
+		return childrenPerParent;
+	}
+
+	public double getFilterSelectivity() {
+		return filterSelectivity;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "documents=%d, childrenPerParent=%s, filterSelectivity=%s", documents,
+				childrenPerParent, filterSelectivity);
+	}
+}
@@ -0,0 +1,432 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Statistics about the tables of a join, observed from real responses by the
+ * {@code TableStatisticsCollector} response component. For each table it keeps
+ * the number of documents returned, the distribution of children per parent,
+ * how often a parent's children were cut off by the clause's rollup limit, and
+ * how much a facet filter on the table reduced its children. Memory use is
+ * bounded: each table uses a fixed number of counters, and only the first
+ * {@link #DEFAULT_MAX_TABLES} tables seen are tracked. <br>
+ * <br>
+ * The joiners describe each request's clauses for the collector in the
+ * {@link #ROLLUP_LIMITS_PROPERTY_NAME} and {@link #FILTERED_TABLES_PROPERTY_NAME}
+ * request properties. The {@link JoinPlanner} overlays the observed children per
+ * parent and filter selectivity on the configured {@link TableStatistics} once
+ * enough parents have been sampled.
+ */
+public final class TableStatisticsRegistry {
+
+	private static final Logger log = LoggerFactory.getLogger(TableStatisticsRegistry.class);
+
+	/** Name of the request property listing each child table's rollup limit */
+	public static final String ROLLUP_LIMITS_PROPERTY_NAME = "genericqtj.rollupLimits";
+
+	/** Name of the request property listing the child tables with facet filters */
+	public static final String FILTERED_TABLES_PROPERTY_NAME = "genericqtj.filteredTables";
+
+	static final int DEFAULT_MAX_TABLES = 256;
+
+	/** The number of sampled parents needed before observations are trusted */
+	static final long MIN_SAMPLED_PARENTS = 100;
+
+	/** Roughly how many of the latest sampled parents the truncation rate follows */
+	static final long TRUNCATION_WINDOW = 1000;
+
+	private static final String FILE_HEADER = "# GenericQTJ table statistics v1";
+
+	private static final TableStatisticsRegistry INSTANCE = new TableStatisticsRegistry(DEFAULT_MAX_TABLES);
+
+	private final ConcurrentMap<String, TableCounters> tables = new ConcurrentHashMap<String, TableCounters>();
+	private final int maxTables;
+
+	public TableStatisticsRegistry(int maxTables) {
+		this.maxTables = maxTables;
+	}
+
+	public static TableStatisticsRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Observations for a single table.
+	 */
+	public static final class TableCounters {
+		private final LongAdder hits = new LongAdder();
+		private final Log2Histogram children = new Log2Histogram();
+		private final LongAdder truncated = new LongAdder();
+		// Exponentially decaying average of whether a parent's children were cut off,
+		// held as the bits of a double
+		private final AtomicLong truncationRate = new AtomicLong(Double.doubleToLongBits(0));
+		private final LongAdder filteredParents = new LongAdder();
+		private final LongAdder filteredChildren = new LongAdder();
+		private final LongAdder unfilteredParents = new LongAdder();
+		private final LongAdder unfilteredChildren = new LongAdder();
+
+		/**
+		 * @return the number of the table's documents seen in sampled responses
+		 */
+		public long getHits() {
+			return hits.sum();
+		}
+
+		/**
+		 * @return the number of parents whose children from this table were counted
+		 */
+		public long getSampledParents() {
+			return children.getCount();
+		}
+
+		/**
+		 * @return the average number of children per parent, which is an
+		 *         underestimate when the rollup limit often truncates them
+		 */
+		public double getMeanChildrenPerParent() {
+			return children.getMean();
+		}
+
+		/**
+		 * @param percentile The percentile to return, between 0 and 100
+		 * @return the children per parent at that percentile, rounded up to the next
+		 *         power of two less one
+		 */
+		public long getChildrenPerParentPercentile(double percentile) {
+			return children.getPercentile(percentile);
+		}
+
+		/**
+		 * @return the fraction of recently sampled parents whose children were cut off
+		 *         at the rollup limit. Each parent's weight decays as later parents
+		 *         are sampled, so the rate follows roughly the last
+		 *         {@link TableStatisticsRegistry#TRUNCATION_WINDOW} parents, and drops
+		 *         again once a raised rollup limit stops cutting the children off.
+		 */
+		public double getTruncationRate() {
+			return Double.longBitsToDouble(truncationRate.get());
+		}
+
+		/**
+		 * Moves the truncation rate towards the fraction of truncated parents in a
+		 * sample.
+		 *
+		 * @param truncatedParents The parents in the sample whose children were cut
+		 *                         off
+		 * @param parents          The parents in the sample
+		 * @param weight           How much the sample counts towards the rate,
+		 *                         between 0 and 1
+		 */
+		private void updateTruncationRate(long truncatedParents, long parents, double weight) {
+			double sampleRate = (double) truncatedParents / parents;
+			long current;
+			long updated;
+			do {
+				current = truncationRate.get();
+				double rate = Double.longBitsToDouble(current);
+				updated = Double.doubleToLongBits(rate + (sampleRate - rate) * weight);
+			} while (!truncationRate.compareAndSet(current, updated));
+		}
+
+		/**
+		 * @return the children per parent with a facet filter on the table, relative
+		 *         to the children per parent without one, or {@code NaN} if too few
+		 *         of either have been sampled
+		 */
+		public double getFilterSelectivity() {
+			long filtered = filteredParents.sum();
+			long unfiltered = unfilteredParents.sum();
+			if (filtered < MIN_SAMPLED_PARENTS || unfiltered < MIN_SAMPLED_PARENTS) {
+				return Double.NaN;
+			}
+			double unfilteredMean = (double) unfilteredChildren.sum() / unfiltered;
+			if (unfilteredMean == 0) {
+				return Double.NaN;
+			}
+			return Math.min(1, ((double) filteredChildren.sum() / filtered) / unfilteredMean);
+		}
+	}
+
+	/**
+	 * @return the observations for a table, or {@code null} if none were made
+	 */
+	public TableCounters get(String table) {
+		return tables.get(table);
+	}
+
+	/**
+	 * @return the names of the tables with observations
+	 */
+	public Set<String> getTables() {
+		return Collections.unmodifiableSet(tables.keySet());
+	}
+
+	private TableCounters counters(String table) {
+		TableCounters counters = tables.get(table);
+		if (counters == null && tables.size() < maxTables) {
+			counters = tables.computeIfAbsent(table, t -> new TableCounters());
+		}
+		return counters;
+	}
+
+	/**
+	 * Records the number of a table's documents in a sampled response.
+	 */
+	public void recordHits(String table, long count) {
+		TableCounters counters = this.counters(table);
+		if (counters != null) {
+			counters.hits.add(count);
+		}
+	}
+
+	/**
+	 * Records the children a parent was returned with from a child table.
+	 *
+	 * @param table       The child table
+	 * @param children    The number of children returned
+	 * @param rollupLimit The clause's rollup limit, or 0 or a negative number if
+	 *                    it had none, in which case no parent is truncated
+	 * @param filtered    Whether the clause had a facet filter
+	 */
+	public void recordChildren(String table, int children, int rollupLimit, boolean filtered) {
+		TableCounters counters = this.counters(table);
+		if (counters == null) {
+			return;
+		}
+		counters.children.record(children);
+		boolean truncated = rollupLimit > 0 && children >= rollupLimit;
+		if (truncated) {
+			counters.truncated.increment();
+		}
+		// A plain average until the window fills up, then a decaying one
+		counters.updateTruncationRate(truncated ? 1 : 0, 1,
+				1.0 / Math.min(Math.max(1, counters.children.getCount()), TRUNCATION_WINDOW));
+		if (filtered) {
+			counters.filteredParents.increment();
+			counters.filteredChildren.add(children);
+		} else {
+			counters.unfilteredParents.increment();
+			counters.unfilteredChildren.add(children);
+		}
+	}
+
+	/**
+	 * Replaces the children per parent and filter selectivity of configured
+	 * statistics with observed ones, where enough parents have been sampled.
+	 *
+	 * @param table      The table
+	 * @param configured The configured statistics, or {@code null}
+	 * @return the overlaid statistics, or {@code null} if none were configured
+	 */
+	TableStatistics overlay(String table, TableStatistics configured) {
+		TableCounters counters = tables.get(table);
+		if (configured == null || counters == null) {
+			return configured;
+		}
+		double childrenPerParent = configured.getChildrenPerParent();
+		if (counters.unfilteredParents.sum() >= MIN_SAMPLED_PARENTS) {
+			childrenPerParent = (double) counters.unfilteredChildren.sum() / counters.unfilteredParents.sum();
+		}
+		double filterSelectivity = counters.getFilterSelectivity();
+		if (Double.isNaN(filterSelectivity)) {
+			filterSelectivity = configured.getFilterSelectivity();
+		}
+		return new TableStatistics(configured.getDocuments(), childrenPerParent, filterSelectivity);
+	}
+
+	public void clear() {
+		tables.clear();
+	}
+
+	/**
+	 * Writes the observations to a file, replacing it atomically where the file
+	 * system allows.
+	 */
+	public void save(Path file) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			writer.write(FILE_HEADER);
+			writer.newLine();
+			for (Map.Entry<String, TableCounters> entry : new TreeMap<String, TableCounters>(tables).entrySet()) {
+				TableCounters counters = entry.getValue();
+				StringBuilder line = new StringBuilder(encode(entry.getKey()));
+				line.append('\t').append(counters.hits.sum()).append('\t').append(counters.truncated.sum())
+						.append('\t').append(counters.filteredParents.sum()).append('\t')
+						.append(counters.filteredChildren.sum()).append('\t').append(counters.unfilteredParents.sum())
+						.append('\t').append(counters.unfilteredChildren.sum()).append('\t')
+						.append(counters.children.getSum()).append('\t').append(counters.children.getMax());
+				long[] buckets = counters.children.getBucketCounts();
+				int used = buckets.length;
+				while (used > 0 && buckets[used - 1] == 0) {
+					used--;
+				}
+				for (int i = 0; i < used; i++) {
+					line.append('\t').append(buckets[i]);
+				}
+				writer.write(line.toString());
+				writer.newLine();
+			}
+		}
+		try {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Adds the observations saved in a file to the ones made since startup.
+	 * Malformed lines are skipped.
+	 */
+	public void load(Path file) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] values = line.split("\t");
+				if (values.length < 9) {
+					log.warn("Skipping malformed table statistics line in {}: {}", file, line);
+					continue;
+				}
+				try {
+					long[] numbers = new long[values.length - 1];
+					for (int i = 1; i < values.length; i++) {
+						numbers[i - 1] = Long.parseLong(values[i]);
+					}
+					TableCounters counters = this.counters(decode(values[0]));
+					if (counters == null) {
+						continue;
+					}
+					long sampledParents = counters.children.getCount();
+					long loadedParents = 0;
+					for (int i = 8; i < numbers.length; i++) {
+						loadedParents += numbers[i];
+					}
+					if (loadedParents > 0) {
+						// The saved file only has totals, which count as one sample of up to
+						// a window of parents
+						double loadedWeight = Math.min(loadedParents, TRUNCATION_WINDOW);
+						counters.updateTruncationRate(numbers[1], loadedParents,
+								loadedWeight / (loadedWeight + Math.min(sampledParents, TRUNCATION_WINDOW)));
+					}
+					counters.hits.add(numbers[0]);
+					counters.truncated.add(numbers[1]);
+					counters.filteredParents.add(numbers[2]);
+					counters.filteredChildren.add(numbers[3]);
+					counters.unfilteredParents.add(numbers[4]);
+					counters.unfilteredChildren.add(numbers[5]);
+					long[] buckets = new long[numbers.length - 8];
+					System.arraycopy(numbers, 8, buckets, 0, buckets.length);
+					counters.children.add(buckets, numbers[6], numbers[7]);
+				} catch (IllegalArgumentException e) {
+					log.warn("Skipping malformed table statistics line in {}: {}", file, line);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the rollup limits in the form stored in
+	 *         {@link #ROLLUP_LIMITS_PROPERTY_NAME}
+	 */
+	static String encodeRollupLimits(Map<String, Integer> rollupLimits) {
+		StringBuilder encoded = new StringBuilder();
+		for (Map.Entry<String, Integer> entry : rollupLimits.entrySet()) {
+			if (encoded.length() > 0) {
+				encoded.append(',');
+			}
+			encoded.append(encode(entry.getKey())).append('=').append(entry.getValue());
+		}
+		return encoded.toString();
+	}
+
+	/**
+	 * @return the rollup limits stored in {@link #ROLLUP_LIMITS_PROPERTY_NAME},
+	 *         with malformed entries left out
+	 */
+	public static Map<String, Integer> decodeRollupLimits(String encoded) {
+		Map<String, Integer> rollupLimits = new LinkedHashMap<String, Integer>();
+		for (String entry : encoded.split(",")) {
+			int separator = entry.lastIndexOf('=');
+			if (separator > 0) {
+				try {
+					rollupLimits.put(decode(entry.substring(0, separator)),
+							Integer.parseInt(entry.substring(separator + 1)));
+				} catch (IllegalArgumentException e) {
+					log.debug("Ignoring malformed rollup limit {}", entry);
+				}
+			}
+		}
+		return rollupLimits;
+	}
+
+	/**
+	 * @return the table names in the form stored in
+	 *         {@link #FILTERED_TABLES_PROPERTY_NAME}
+	 */
+	static String encodeTableNames(Collection<String> tableNames) {
+		StringBuilder encoded = new StringBuilder();
+		for (String table : tableNames) {
+			if (encoded.length() > 0) {
+				encoded.append(',');
+			}
+			encoded.append(encode(table));
+		}
+		return encoded.toString();
+	}
+
+	/**
+	 * @return the table names stored in {@link #FILTERED_TABLES_PROPERTY_NAME}
+	 */
+	public static Set<String> decodeTableNames(String encoded) {
+		Set<String> tableNames = new LinkedHashSet<String>();
+		for (String table : encoded.split(",")) {
+			if (!table.isEmpty()) {
+				tableNames.add(decode(table));
+			}
+		}
+		return tableNames;
+	}
+
+	private static String encode(String table) {
+		try {
+			return URLEncoder.encode(table, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String table) {
+		try {
+			return URLDecoder.decode(table, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
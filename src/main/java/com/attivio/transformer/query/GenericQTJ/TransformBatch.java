@@ -0,0 +1,57 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.transformer.query.GenericQTJ.FacetFilterCompiler.CompiledFacetFilter;
+
+/**
+ * The work shared by the requests of one
+ * {@link GenericCompositeJoiner#processQueries(List)} call. The batch routes
+ * each distinct filter to its child tables and compiles each distinct facet
+ * filter only once. Lookups go to plain maps owned by the batch, not to the
+ * template's shared cache. A batch is used by one thread and is thrown away
+ * when the call returns.
+ */
+final class TransformBatch {
+
+	private final JoinPlanTemplate plan;
+	private final Map<String, Set<String>> routes = new HashMap<String, Set<String>>();
+	private final Map<String, List<CompiledFacetFilter>> compiled = new HashMap<String, List<CompiledFacetFilter>>();
+
+	TransformBatch(JoinPlanTemplate plan) {
+		this.plan = plan;
+	}
+
+	JoinPlanTemplate getPlan() {
+		return plan;
+	}
+
+	/**
+	 * @see FieldTableIndex#route(String)
+	 */
+	Set<String> route(String queryString) {
+		Set<String> tables = routes.get(queryString);
+		if (tables == null) {
+			tables = plan.getFieldTableIndex().route(queryString);
+			routes.put(queryString, tables);
+		}
+		return tables;
+	}
+
+	/**
+	 * @see FacetFilterCompiler#compile(FacetFilter)
+	 */
+	List<CompiledFacetFilter> compile(FacetFilter facetFilter) {
+		String facetFilterString = facetFilter.toString();
+		List<CompiledFacetFilter> compiledFilters = compiled.get(facetFilterString);
+		if (compiledFilters == null) {
+			compiledFilters = plan.getFacetFilterCompiler().compile(facetFilter);
+			compiled.put(facetFilterString, compiledFilters);
+		}
+		return compiledFilters;
+	}
+}
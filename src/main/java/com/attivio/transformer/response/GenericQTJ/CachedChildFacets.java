@@ -0,0 +1,43 @@
+package com.attivio.transformer.response.GenericQTJ;
+
+import java.util.List;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.FacetResponse;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.server.annotation.ConfigurationOptionInfo;
+import com.attivio.sdk.server.component.query.ResponseTransformer;
+import com.attivio.transformer.query.GenericQTJ.ChildFacetCache;
+
+/**
+ * Fills in the child table facet counts the joiner found in the
+ * {@link ChildFacetCache}, in place of the facets the engine counted without the
+ * child tables, and stores the child table counts of the requests it didn't.
+ * Only does anything when a joiner has a Facet Cache TTL, and must be in the
+ * response workflow of every joiner that has one, since the joiner relies on it
+ * to put the cached counts back.
+ */
+@ConfigurationOptionInfo(displayName = "Cached Child Facets", description = "Reuses the facet counts of composite joins cached by the joiner", groups = {
+		@ConfigurationOptionInfo.Group(path = ConfigurationOptionInfo.PLATFORM_COMPONENT, propertyNames = {}), })
+public class CachedChildFacets implements ResponseTransformer {
+
+	@Override
+	public void processResponse(QueryResponse response) throws AttivioException {
+		QueryRequest request = response.getQueryRequest();
+		if (request == null || !request.hasProperty(ChildFacetCache.KEY_PROPERTY_NAME)) {
+			return;
+		}
+		ChildFacetCache cache = ChildFacetCache.getInstance();
+		if (request.hasProperty(ChildFacetCache.HIT_PROPERTY_NAME)) {
+			// The joiner pinned the facets on the request, so they are there even if
+			// the entry was evicted since
+			List<FacetResponse> cached = cache.get(request);
+			if (cached != null) {
+				response.setFacets(ChildFacetCache.splice(response.getFacets(), cached));
+			}
+		} else {
+			cache.put(request, response.getFacets());
+		}
+	}
+}
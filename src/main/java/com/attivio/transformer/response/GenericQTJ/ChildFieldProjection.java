@@ -0,0 +1,161 @@
+package com.attivio.transformer.response.GenericQTJ;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.schema.FieldNames;
+import com.attivio.sdk.search.QueryFeedback;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.SearchDocument;
+import com.attivio.sdk.search.SearchDocumentList;
+import com.attivio.sdk.server.annotation.ConfigurationOption;
+import com.attivio.sdk.server.annotation.ConfigurationOptionInfo;
+import com.attivio.sdk.server.component.query.QueryTransformer;
+import com.attivio.sdk.server.component.query.ResponseTransformer;
+
+/**
+ * Trims the child documents rolled up by the joiners to the fields each child
+ * table needs. Add it to the response workflow to strip every field that isn't
+ * in its table's list from the joined children before the response is
+ * serialized. Children of tables without a list, and parent documents, are left
+ * alone. <br>
+ * <br>
+ * The engine returns children with the same fields as their parents, so the
+ * projection can only be pushed into the search when the parents' fields are
+ * configured too: added to the query workflow after the joiner, a request that
+ * asks for all fields gets the parent fields plus every child table's fields as
+ * its field list. Requests with their own field list are left as they are.
+ */
+@ConfigurationOptionInfo(displayName = "Child Field Projection", description = "Strips the fields child tables don't need from the child documents of joins", groups = {
+		@ConfigurationOptionInfo.Group(path = ConfigurationOptionInfo.PLATFORM_COMPONENT, propertyNames = {
+				"childTableFields", "parentFields", "tableFieldName" }), })
+public class ChildFieldProjection implements QueryTransformer, ResponseTransformer {
+
+	/** The field list entry requesting all fields */
+	static final String ALL_FIELDS = "*";
+
+	// Replaced as a whole by the setters, so requests never see a partial update
+	private volatile Map<String, Set<String>> childTableFields = Collections.emptyMap();
+	private volatile List<String> parentFields = Collections.emptyList();
+	private volatile String tableFieldName = FieldNames.TABLE;
+
+	@ConfigurationOption(displayName = "Child Table Fields", description = "Map of child table to a comma separated list of the fields to return for its documents", formEntryClass = ConfigurationOption.STRING_TO_STRING_MAP)
+	public Map<String, String> getChildTableFields() {
+		Map<String, String> response = new HashMap<String, String>();
+		for (Map.Entry<String, Set<String>> entry : this.childTableFields.entrySet()) {
+			response.put(entry.getKey(), String.join(",", entry.getValue()));
+		}
+		return response;
+	}
+
+	public void setChildTableFields(Map<String, String> childTableFields) {
+		Map<String, Set<String>> tableFields = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, String> entry : childTableFields.entrySet()) {
+			Set<String> fields = new LinkedHashSet<String>();
+			for (String field : entry.getValue().split(",")) {
+				if (!field.trim().isEmpty()) {
+					fields.add(field.trim());
+				}
+			}
+			tableFields.put(entry.getKey().trim(), Collections.unmodifiableSet(fields));
+		}
+		this.childTableFields = Collections.unmodifiableMap(tableFields);
+	}
+
+	@ConfigurationOption(displayName = "Parent Fields", description = "The fields to return for parent documents when a request asks for all fields. If set, the child table fields are pushed into the request's field list so the engine doesn't load the other fields at all", formEntryClass = ConfigurationOption.STRING_LIST)
+	public List<String> getParentFields() {
+		return parentFields;
+	}
+
+	public void setParentFields(List<String> parentFields) {
+		this.parentFields = parentFields == null ? Collections.<String>emptyList()
+				: Collections.unmodifiableList(new ArrayList<String>(parentFields));
+	}
+
+	@ConfigurationOption(displayName = "Table Field Name", description = "The field holding the table of each document")
+	public String getTableFieldName() {
+		return tableFieldName;
+	}
+
+	public void setTableFieldName(String tableFieldName) {
+		this.tableFieldName = tableFieldName;
+	}
+
+	@Override
+	public List<QueryFeedback> processQuery(QueryRequest qr) throws AttivioException {
+		List<String> parentFields = this.parentFields;
+		if (!parentFields.isEmpty() && !this.childTableFields.isEmpty() && requestsAllFields(qr.getFields())) {
+			qr.setFields(this.projectedFields(parentFields));
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @return whether a request's field list asks for all fields
+	 */
+	static boolean requestsAllFields(List<String> fields) {
+		return fields == null || fields.isEmpty() || fields.contains(ALL_FIELDS);
+	}
+
+	/**
+	 * @return the parent fields, the table field and the fields of every child
+	 *         table
+	 */
+	List<String> projectedFields(List<String> parentFields) {
+		Set<String> fields = new LinkedHashSet<String>(parentFields);
+		fields.add(this.tableFieldName);
+		for (Set<String> tableFields : this.childTableFields.values()) {
+			fields.addAll(tableFields);
+		}
+		return new ArrayList<String>(fields);
+	}
+
+	@Override
+	public void processResponse(QueryResponse response) throws AttivioException {
+		Map<String, Set<String>> childTableFields = this.childTableFields;
+		SearchDocumentList documents = response.getDocuments();
+		if (childTableFields.isEmpty() || documents == null) {
+			return;
+		}
+		String tableFieldName = this.tableFieldName;
+		List<String> removed = new ArrayList<String>();
+		for (SearchDocument parent : documents) {
+			SearchDocumentList children = parent.getChildren();
+			if (children == null) {
+				continue;
+			}
+			for (SearchDocument child : children) {
+				Object table = child.getFirstValue(tableFieldName);
+				Set<String> keep = table != null ? childTableFields.get(table.toString()) : null;
+				if (keep != null) {
+					this.strip(child, keep, tableFieldName, removed);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the fields of a document that aren't kept.
+	 *
+	 * @param removed Scratch list, reused between documents
+	 */
+	private void strip(SearchDocument document, Set<String> keep, String tableFieldName, List<String> removed) {
+		removed.clear();
+		for (String field : document.getFieldNames()) {
+			if (!keep.contains(field) && !field.equals(tableFieldName)) {
+				removed.add(field);
+			}
+		}
+		// Removed after iterating, since the field names are a view of the document
+		for (String field : removed) {
+			document.removeField(field);
+		}
+	}
+}
@@ -1,28 +1,31 @@
 package com.attivio.transformer.response.GenericQTJ;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.attivio.sdk.esb.PlatformMessage;
+import com.attivio.sdk.search.QueryFeedback;
 import com.attivio.sdk.search.QueryLanguages;
 import com.attivio.sdk.search.QueryRequest;
 import com.attivio.sdk.search.QueryResponse;
-import com.attivio.sdk.search.query.AccessControlQuery;
-import com.attivio.sdk.search.query.BooleanAndQuery;
 import com.attivio.sdk.search.query.BooleanOrQuery;
-import com.attivio.sdk.search.query.BoostQuery;
-import com.attivio.sdk.search.query.CompositeJoinQuery;
-import com.attivio.sdk.search.query.JoinQuery;
-import com.attivio.sdk.search.query.Query;
-import com.attivio.sdk.search.query.QueryString;
-import com.attivio.sdk.search.query.SubQuery;
 import com.attivio.sdk.server.annotation.ConfigurationOption;
 import com.attivio.sdk.server.annotation.ConfigurationOptionInfo;
 import com.attivio.sdk.server.annotation.ConfigurationOption.OptionLevel;
 import com.attivio.sdk.server.component.routing.MessageRoutingComponent;
+import com.attivio.transformer.query.GenericQTJ.GenericCompositeJoiner;
+import com.attivio.transformer.query.GenericQTJ.NegativeResultCache;
+import com.attivio.transformer.query.GenericQTJ.NegativeResultCache.EmptyPass;
+import com.attivio.transformer.query.GenericQTJ.QueryRelaxation;
+import com.attivio.transformer.query.GenericQTJ.ResubmitState;
 
 @ConfigurationOptionInfo(displayName = "Relax Join Query", description = "Resubmit a join query, switching from AND to OR", groups = {
 		@ConfigurationOptionInfo.Group(path = ConfigurationOptionInfo.PLATFORM_COMPONENT, propertyNames = {
 				"resubmitWorkflow" }), })
 public class ResubmitRelaxedJoin implements MessageRoutingComponent {
 
+	private static final Logger log = LoggerFactory.getLogger(ResubmitRelaxedJoin.class);
+
 	private String resubmitWorkflow;
 
 	@ConfigurationOption(displayName = "Resubmit Workflow", description = "Get the name of the workflow to re-submit queries to.", optionLevel = OptionLevel.Required)
@@ -41,72 +44,40 @@ public class ResubmitRelaxedJoin implements MessageRoutingComponent {
 		}
 		QueryResponse response = (QueryResponse) message;
 		QueryRequest request = response.getQueryRequest();
+		if (request.hasProperty(QueryRelaxation.TIER_BOOST_PROPERTY_NAME)) {
+			// The relaxed form was already searched, so only report the tier of the top hit
+			if (response.getDocuments().size() > 0) {
+				String tier = QueryRelaxation.tierOf(response.getDocuments().get(0).getScore(),
+						request.getProperty(QueryRelaxation.TIER_BOOST_PROPERTY_NAME, 0),
+						request.getProperty(QueryRelaxation.MAX_UNBOOSTED_SCORE_PROPERTY_NAME,
+								QueryRelaxation.DEFAULT_MAX_UNBOOSTED_SCORE));
+				if (tier != null) {
+					response.addFeedback(new QueryFeedback(GenericCompositeJoiner.class.getCanonicalName(),
+							QueryRelaxation.TIER_MESSAGE_NAME, tier));
+				} else {
+					log.debug("The top hit's score is outside the bounds of both tiers, not reporting its tier");
+				}
+			}
+			return null;
+		}
+		// Nothing to relax if the joiner already relaxed the query up front
 		boolean shouldResubmitQuery = response.getDocuments().size() < 1
-				&& request.getResubmits() < request.getMaxResubmits();
+				&& request.getResubmits() < request.getMaxResubmits()
+				&& !request.getProperty(NegativeResultCache.RELAXED_PROPERTY_NAME, false);
 		if (shouldResubmitQuery) {
 
-			BooleanOrQuery orQuery = this.generateBooleanOrQuery(request);
+			BooleanOrQuery orQuery = QueryRelaxation.relax(request.getQuery());
 			if (orQuery != null) {
+				if (request.getResubmits() == 0) {
+					NegativeResultCache.getInstance().recordEmpty(request, EmptyPass.UNRELAXED);
+				}
 				request.incrementResubmits();
 				request.setQuery(orQuery.toString(), QueryLanguages.ADVANCED);
+				// The joiner restores its stored state on resubmit, so relax the query there
+				ResubmitState.replaceQuery(request, orQuery.toString(), QueryLanguages.ADVANCED);
 				return resubmitWorkflow;
 			}
 		}
 		return null;
 	}
-
-	private BooleanOrQuery generateBooleanOrQuery(QueryRequest qr) {
-		BooleanOrQuery orQuery = new BooleanOrQuery();
-		Query originalQuery = qr.getQuery();
-		if (originalQuery instanceof AccessControlQuery) {
-			originalQuery = ((AccessControlQuery) originalQuery).getQuery();
-		}
-		if (originalQuery instanceof BoostQuery) {
-			originalQuery = ((BoostQuery) originalQuery).getQuery();
-		}
-		if (originalQuery instanceof CompositeJoinQuery) {
-			CompositeJoinQuery joinQuery = (CompositeJoinQuery) originalQuery;
-			originalQuery = joinQuery.getQuery();
-		}
-		if (originalQuery instanceof JoinQuery) {
-			JoinQuery join = (JoinQuery) originalQuery;
-			originalQuery = join.getQuery();
-		}
-		if (originalQuery instanceof AccessControlQuery) {
-			originalQuery = ((AccessControlQuery) originalQuery).getQuery();
-		}
-		if (originalQuery instanceof BoostQuery) {
-			originalQuery = ((BoostQuery) originalQuery).getQuery();
-		}
-		if (originalQuery instanceof BooleanAndQuery) {
-			BooleanAndQuery andQuery = (BooleanAndQuery) originalQuery;
-			for (Query clause : andQuery) {
-				orQuery.add(clause);
-			}
-			return orQuery;
-		} else if (originalQuery instanceof SubQuery) {
-			SubQuery sq = (SubQuery) originalQuery;
-			if (sq.getQuery() instanceof BooleanAndQuery) {
-				BooleanAndQuery andQuery = (BooleanAndQuery) sq.getQuery();
-				for (Query clause : andQuery) {
-					orQuery.add(clause);
-				}
-				return orQuery;
-			} else if (sq.getQuery() instanceof BooleanOrQuery) {
-				return orQuery;
-			}
-		} else if (originalQuery instanceof QueryString) {
-			QueryString qs = (QueryString) originalQuery;
-			String queryString = qs.getQueryString();
-			if (!queryString.contains("\"")) {
-				String[] terms = queryString.split(" ");
-				for (String t : terms) {
-					orQuery.add(t);
-				}
-			}
-			return orQuery;
-		}
-		return null;
-	}
-
 }
@@ -1,6 +1,7 @@
 package com.attivio.transformer.response.GenericQTJ;
 
 import com.attivio.sdk.esb.PlatformMessage;
+import com.attivio.sdk.search.QueryFeedback;
 import com.attivio.sdk.search.QueryRequest;
 import com.attivio.sdk.search.QueryResponse;
 import com.attivio.sdk.server.annotation.ConfigurationOption;
@@ -8,6 +9,9 @@ import com.attivio.sdk.server.annotation.ConfigurationOptionInfo;
 import com.attivio.sdk.server.annotation.ConfigurationOption.OptionLevel;
 import com.attivio.sdk.server.component.routing.MessageRoutingComponent;
 import com.attivio.transformer.query.GenericQTJ.GenericCompositeJoiner;
+import com.attivio.transformer.query.GenericQTJ.NegativeResultCache;
+import com.attivio.transformer.query.GenericQTJ.NegativeResultCache.EmptyPass;
+import com.attivio.transformer.query.GenericQTJ.QueryRelaxation;
 
 @ConfigurationOptionInfo(displayName = "Resubmit Strict Join Query", description = "Resubmit a join query that was a strict join", groups = {
 		@ConfigurationOptionInfo.Group(path = ConfigurationOptionInfo.PLATFORM_COMPONENT, propertyNames = {
@@ -35,6 +39,14 @@ public class ResubmitStrictJoin implements MessageRoutingComponent {
 		QueryResponse response = (QueryResponse) message;
 		QueryRequest request = response.getQueryRequest();
 
+		if (request.hasProperty(GenericCompositeJoiner.PARENT_TIER_BOOST_PROPERTY_NAME)) {
+			// A single pass strict join already searched the children
+			if (isChildTierMatch(response, request)) {
+				response.addFeedback(new QueryFeedback(GenericCompositeJoiner.class.getCanonicalName(),
+						GenericCompositeJoiner.CHILD_DOC_MATCH_MESSAGE_NAME, "The match is in the child documents"));
+			}
+			return null;
+		}
 		if (request.getResubmits() < request.getMaxResubmits()) {
 			boolean shouldResubmitQuery = false;
 			shouldResubmitQuery = this.processQuery(response, request);
@@ -53,9 +65,28 @@ public class ResubmitStrictJoin implements MessageRoutingComponent {
 			// if it wasn't.
 			if (request.hasProperty(GenericCompositeJoiner.STRICT_QUERY_PROPERTY_NAME)
 					&& request.getProperty(GenericCompositeJoiner.STRICT_QUERY_PROPERTY_NAME, false)) {
+				NegativeResultCache.getInstance().recordEmpty(request, EmptyPass.PARENT_ONLY);
 				return true;
 			}
 		}
 		return false;
 	}
+
+	/**
+	 * @return whether the top hit of a single pass strict join is from the child
+	 *         tier, which isn't boosted. The tier is told from the top hit's score
+	 *         (see {@link QueryRelaxation#isBoostedTier(float, int, int)}), so a
+	 *         score outside the bounds of both tiers isn't reported as a child
+	 *         match.
+	 */
+	static boolean isChildTierMatch(QueryResponse response, QueryRequest request) {
+		if (response.getDocuments().size() < 1) {
+			return false;
+		}
+		Boolean boosted = QueryRelaxation.isBoostedTier(response.getDocuments().get(0).getScore(),
+				request.getProperty(GenericCompositeJoiner.PARENT_TIER_BOOST_PROPERTY_NAME, 0),
+				request.getProperty(QueryRelaxation.MAX_UNBOOSTED_SCORE_PROPERTY_NAME,
+						QueryRelaxation.DEFAULT_MAX_UNBOOSTED_SCORE));
+		return Boolean.FALSE.equals(boosted);
+	}
 }
@@ -0,0 +1,208 @@
+package com.attivio.transformer.response.GenericQTJ;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.attivio.sdk.esb.PlatformMessage;
+import com.attivio.sdk.schema.FieldNames;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.SearchDocument;
+import com.attivio.sdk.search.SearchDocumentList;
+import com.attivio.sdk.server.annotation.ConfigurationOption;
+import com.attivio.sdk.server.annotation.ConfigurationOptionInfo;
+import com.attivio.sdk.server.component.routing.MessageRoutingComponent;
+import com.attivio.transformer.query.GenericQTJ.TableStatisticsRegistry;
+
+/**
+ * Samples the responses to joins built by the joiners and records what they
+ * contain in the {@link TableStatisticsRegistry}: how many documents of each
+ * table came back, how many children each parent had per child table, how often
+ * the rollup limit cut them off, and how much facet filters reduced them. It
+ * never routes a response anywhere, so it can sit next to the resubmit routers
+ * in the response workflow. <br>
+ * <br>
+ * If a statistics file is configured, the observations are loaded from it when
+ * the first response comes in and saved to it periodically, so they survive
+ * restarts.
+ */
+@ConfigurationOptionInfo(displayName = "Table Statistics Collector", description = "Samples join responses to learn the fan-out and filter selectivity of the child tables", groups = {
+		@ConfigurationOptionInfo.Group(path = ConfigurationOptionInfo.PLATFORM_COMPONENT, propertyNames = {
+				"sampleEvery", "tableFieldName", "statisticsFile", "saveIntervalSeconds" }), })
+public class TableStatisticsCollector implements MessageRoutingComponent {
+
+	private static final Logger log = LoggerFactory.getLogger(TableStatisticsCollector.class);
+
+	private final TableStatisticsRegistry registry;
+	private final AtomicLong responses = new AtomicLong();
+	private final AtomicBoolean loaded = new AtomicBoolean();
+	private final AtomicLong nextSave = new AtomicLong(System.nanoTime());
+
+	private int sampleEvery = 10;
+	private String tableFieldName = FieldNames.TABLE;
+	private String statisticsFile;
+	private int saveIntervalSeconds = 300;
+
+	public TableStatisticsCollector() {
+		this(TableStatisticsRegistry.getInstance());
+	}
+
+	TableStatisticsCollector(TableStatisticsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@ConfigurationOption(displayName = "Sample Every", description = "Record the statistics of one in this many join responses")
+	public int getSampleEvery() {
+		return sampleEvery;
+	}
+
+	public void setSampleEvery(int sampleEvery) {
+		this.sampleEvery = Math.max(1, sampleEvery);
+	}
+
+	@ConfigurationOption(displayName = "Table Field Name", description = "The field holding the table of each document")
+	public String getTableFieldName() {
+		return tableFieldName;
+	}
+
+	public void setTableFieldName(String tableFieldName) {
+		this.tableFieldName = tableFieldName;
+	}
+
+	@ConfigurationOption(displayName = "Statistics File", description = "Local file to load the statistics from at startup and save them to. Leave empty to keep them in memory only.")
+	public String getStatisticsFile() {
+		return statisticsFile;
+	}
+
+	public void setStatisticsFile(String statisticsFile) {
+		this.statisticsFile = statisticsFile;
+	}
+
+	@ConfigurationOption(displayName = "Save Interval (seconds)", description = "How often to save the statistics to the statistics file")
+	public int getSaveIntervalSeconds() {
+		return saveIntervalSeconds;
+	}
+
+	public void setSaveIntervalSeconds(int saveIntervalSeconds) {
+		this.saveIntervalSeconds = saveIntervalSeconds;
+	}
+
+	@Override
+	public String getRoutingKey(PlatformMessage message) {
+		if (!(message instanceof QueryResponse)) {
+			return null;
+		}
+		QueryResponse response = (QueryResponse) message;
+		QueryRequest request = response.getQueryRequest();
+		if (request == null || !request.hasProperty(TableStatisticsRegistry.ROLLUP_LIMITS_PROPERTY_NAME)) {
+			return null;
+		}
+		Path file = this.statisticsPath();
+		if (file != null && this.loaded.compareAndSet(false, true)) {
+			this.load(file);
+		}
+		if (this.responses.getAndIncrement() % this.sampleEvery == 0) {
+			this.collect(response, request);
+			if (file != null) {
+				this.saveIfDue(file);
+			}
+		}
+		return null;
+	}
+
+	void collect(QueryResponse response, QueryRequest request) {
+		Map<String, Integer> rollupLimits = TableStatisticsRegistry
+				.decodeRollupLimits(request.getProperty(TableStatisticsRegistry.ROLLUP_LIMITS_PROPERTY_NAME, ""));
+		Set<String> filteredTables = request.hasProperty(TableStatisticsRegistry.FILTERED_TABLES_PROPERTY_NAME)
+				? TableStatisticsRegistry.decodeTableNames(
+						request.getProperty(TableStatisticsRegistry.FILTERED_TABLES_PROPERTY_NAME, ""))
+				: Collections.<String>emptySet();
+		SearchDocumentList documents = response.getDocuments();
+		if (documents == null) {
+			return;
+		}
+
+		Map<String, Long> hits = new HashMap<String, Long>();
+		Map<String, Integer> children = new HashMap<String, Integer>();
+		for (SearchDocument parent : documents) {
+			this.count(hits, parent);
+			children.clear();
+			SearchDocumentList childDocuments = parent.getChildren();
+			if (childDocuments != null) {
+				for (SearchDocument child : childDocuments) {
+					String table = this.count(hits, child);
+					if (table != null) {
+						Integer count = children.get(table);
+						children.put(table, count == null ? 1 : count + 1);
+					}
+				}
+			}
+			for (Map.Entry<String, Integer> rollupLimit : rollupLimits.entrySet()) {
+				Integer count = children.get(rollupLimit.getKey());
+				this.registry.recordChildren(rollupLimit.getKey(), count == null ? 0 : count, rollupLimit.getValue(),
+						filteredTables.contains(rollupLimit.getKey()));
+			}
+		}
+		for (Map.Entry<String, Long> entry : hits.entrySet()) {
+			this.registry.recordHits(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Counts a document towards its table's hits.
+	 *
+	 * @return the document's table, or {@code null} if it has none
+	 */
+	private String count(Map<String, Long> hits, SearchDocument document) {
+		Object table = document.getFirstValue(this.tableFieldName);
+		if (table == null) {
+			return null;
+		}
+		String tableName = table.toString();
+		Long count = hits.get(tableName);
+		hits.put(tableName, count == null ? 1 : count + 1);
+		return tableName;
+	}
+
+	private Path statisticsPath() {
+		return this.statisticsFile == null || this.statisticsFile.trim().isEmpty() ? null
+				: Paths.get(this.statisticsFile.trim());
+	}
+
+	private void load(Path file) {
+		if (!Files.exists(file)) {
+			return;
+		}
+		try {
+			this.registry.load(file);
+			log.info("Loaded table statistics from {}", file);
+		} catch (IOException e) {
+			log.warn("Could not load table statistics from {}", file, e);
+		}
+	}
+
+	private void saveIfDue(Path file) {
+		long now = System.nanoTime();
+		long due = this.nextSave.get();
+		// Only one thread saves once the interval is up
+		if (now - due >= 0 && this.nextSave.compareAndSet(due, now + TimeUnit.SECONDS.toNanos(this.saveIntervalSeconds))) {
+			try {
+				this.registry.save(file);
+			} catch (IOException e) {
+				log.warn("Could not save table statistics to {}", file, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.sdk.search.query.BooleanAndQuery;
+import com.attivio.sdk.search.query.CompositeJoinQuery;
+import com.attivio.sdk.search.query.FacetQuery;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
+import com.attivio.sdk.search.query.SubQuery;
+import com.attivio.transformer.query.GenericQTJ.JoinPlanTemplate.TableClause;
+import com.attivio.util.ObjectUtils;
+
+/**
+ * Fails the build if the bytes allocated by the Generic Composite Joiner per
+ * transformed request grow past a budget. The budget is measured, not fixed: the
+ * baseline is the allocation of building the same join tree straight from the
+ * plan template and setting it on the request, measured in the same JVM the
+ * same way, which is what the joiner can't avoid allocating. The joiner may only
+ * allocate a small, fixed overhead on top of it for its own bookkeeping
+ * (diagnostics, the filter map, the ordered tables and the request
+ * properties), so the test catches a hot path that starts copying filters or
+ * wrapping clauses again, while following the size of the SDK's query classes.
+ * The benchmarks module reports the exact numbers. <br>
+ * <br>
+ * Skipped on JVMs that can't measure the memory allocated by a thread.
+ */
+public class AllocationBudgetTest {
+
+	private static final int WARMUP_REQUESTS = 5000;
+	private static final int MEASURED_REQUESTS = 2000;
+
+	/** Overhead allowed over the baseline for a join without filters on the child tables */
+	private static final long UNFILTERED_OVERHEAD_BYTES = 1024;
+	/**
+	 * Overhead allowed over the baseline for a join with a facet filter on a child
+	 * table, which also pays for extracting the filter from the request
+	 */
+	private static final long FILTERED_OVERHEAD_BYTES = 2048;
+
+	private com.sun.management.ThreadMXBean threads;
+
+	@Before
+	public void checkAllocationMeasurement() {
+		Assume.assumeTrue("The JVM can't measure thread allocation",
+				ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue("The JVM can't measure thread allocation", threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	private GenericCompositeJoiner setup() {
+		GenericCompositeJoiner joiner = new GenericCompositeJoiner();
+		joiner.setJoinField("metadataLink");
+		joiner.setPrimaryTables(ObjectUtils.newList("dataTable"));
+		Map<String, String> tables = new HashMap<String, String>();
+		tables.put("metadata", "INNER");
+		tables.put("anotherMetadata Table", "OUTER");
+		tables.put("thirdTable", "OUTER");
+		joiner.setChildTables(tables);
+		Map<String, String> facetFields = new HashMap<String, String>();
+		facetFields.put("metadata", "topic, company");
+		facetFields.put("anotherMetadata Table", "people");
+		joiner.setChildTableFacetFields(facetFields);
+		return joiner;
+	}
+
+	@Test
+	public void testUnfilteredRequestWithinBudget() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		long baseline = this.baselineBytesPerRequest(joiner, false);
+		long bytes = this.bytesPerRequest(joiner, false);
+		assertTrue("Allocated " + bytes + " bytes per request over a baseline of " + baseline,
+				bytes <= baseline + UNFILTERED_OVERHEAD_BYTES);
+	}
+
+	@Test
+	public void testFilteredRequestWithinBudget() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		long baseline = this.baselineBytesPerRequest(joiner, true);
+		long bytes = this.bytesPerRequest(joiner, true);
+		assertTrue("Allocated " + bytes + " bytes per request over a baseline of " + baseline,
+				bytes <= baseline + FILTERED_OVERHEAD_BYTES);
+	}
+
+	/**
+	 * @return the average bytes allocated by {@code processQuery}, leaving out the
+	 *         allocation of the requests themselves
+	 */
+	private long bytesPerRequest(GenericCompositeJoiner joiner, boolean filtered) throws AttivioException {
+		long threadId = Thread.currentThread().getId();
+		for (int i = 0; i < WARMUP_REQUESTS; i++) {
+			joiner.processQuery(this.request(filtered));
+		}
+		long allocated = 0;
+		for (int i = 0; i < MEASURED_REQUESTS; i++) {
+			QueryRequest qr = this.request(filtered);
+			long before = threads.getThreadAllocatedBytes(threadId);
+			joiner.processQuery(qr);
+			allocated += threads.getThreadAllocatedBytes(threadId) - before;
+		}
+		return allocated / MEASURED_REQUESTS;
+	}
+
+	/**
+	 * @return the average bytes allocated by building the join that
+	 *         {@code processQuery} builds for the request directly from the plan
+	 *         template, and setting it on the request
+	 */
+	private long baselineBytesPerRequest(GenericCompositeJoiner joiner, boolean filtered) {
+		JoinPlanTemplate plan = joiner.getPlanTemplate();
+		long threadId = Thread.currentThread().getId();
+		for (int i = 0; i < WARMUP_REQUESTS; i++) {
+			QueryRequest qr = this.request(filtered);
+			qr.setQuery(this.join(plan, qr, filtered));
+		}
+		long allocated = 0;
+		for (int i = 0; i < MEASURED_REQUESTS; i++) {
+			QueryRequest qr = this.request(filtered);
+			long before = threads.getThreadAllocatedBytes(threadId);
+			qr.setQuery(this.join(plan, qr, filtered));
+			allocated += threads.getThreadAllocatedBytes(threadId) - before;
+		}
+		return allocated / MEASURED_REQUESTS;
+	}
+
+	private CompositeJoinQuery join(JoinPlanTemplate plan, QueryRequest qr, boolean filtered) {
+		CompositeJoinQuery join = new CompositeJoinQuery(qr.getQuery());
+		join.setFromQuery(plan.newFromQuery());
+		join.setField(plan.getConfiguration().getJoinField());
+		for (TableClause table : plan.getTables()) {
+			Query clauseQuery = table.newTableQuery();
+			if (filtered && table.getTable().equals("metadata")) {
+				BooleanAndQuery andQuery = new BooleanAndQuery(clauseQuery);
+				andQuery.add(new SubQuery(new QueryString("topic:Management")));
+				clauseQuery = andQuery;
+			}
+			join.addClause(table.getMode(), clauseQuery).setRollupLimit(JoinPlanTemplate.DEFAULT_ROLLUP_LIMIT);
+		}
+		return join;
+	}
+
+	private QueryRequest request(boolean filtered) {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		if (filtered) {
+			FacetFilter facetFilter = new FacetFilter();
+			facetFilter.setFilter(new FacetQuery("topic", "Management"));
+			qr.addFacetFilter(facetFilter);
+		}
+		return qr;
+	}
+}
@@ -0,0 +1,65 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.attivio.transformer.query.GenericQTJ.BranchPruner.QueryFields;
+
+public class BranchPrunerTest {
+
+	private BranchPruner pruner() {
+		Map<String, List<String>> tableFields = new HashMap<String, List<String>>();
+		tableFields.put("metadata", Arrays.asList("topic", "company"));
+		tableFields.put("notes", Arrays.asList("author", "*"));
+		return new BranchPruner(tableFields);
+	}
+
+	@Test
+	public void testFieldedQuery() {
+		QueryFields fields = BranchPruner.analyze("topic:management AND company:\"Attivio Inc\"");
+		assertEquals(2, fields.fields.size());
+		assertFalse(fields.unfielded);
+		BranchPruner pruner = this.pruner();
+		assertTrue(pruner.canMatch("metadata", fields));
+		assertFalse(pruner.canMatch("notes", fields));
+		// Tables without a list of fields can always match
+		assertTrue(pruner.canMatch("anotherMetadata Table", fields));
+	}
+
+	@Test
+	public void testUnfieldedTermsMatchTextTables() {
+		QueryFields fields = BranchPruner.analyze("topic:management electronic");
+		assertTrue(fields.unfielded);
+		BranchPruner pruner = this.pruner();
+		assertTrue(pruner.canMatch("metadata", fields));
+		assertTrue(pruner.canMatch("notes", fields));
+		assertFalse(pruner.canMatch("metadata", BranchPruner.analyze("\"electronic invoice\"")));
+		assertTrue(pruner.canMatch("notes", BranchPruner.analyze("*:*")));
+	}
+
+	@Test
+	public void testAdvancedSyntax() {
+		QueryFields fields = BranchPruner
+				.analyze("AND(author:smith, date:RANGE(2007-01-01T00:00:00, 2008-01-01T00:00:00))");
+		assertEquals(Arrays.asList("author", "date"), Arrays.asList(fields.fields.toArray()));
+		assertFalse(fields.unfielded);
+		assertEquals(1, BranchPruner.analyze("topic:(management OR sales)").fields.size());
+		assertEquals(1, BranchPruner.analyze("amount:[10 TO 20]").fields.size());
+	}
+
+	@Test
+	public void testUnsafeQueriesMatchEverywhere() {
+		assertNull(BranchPruner.analyze("NOT topic:management"));
+		assertNull(BranchPruner.analyze("-topic:management"));
+		assertNull(BranchPruner.analyze("topic:(management OR author:smith)"));
+		assertNull(BranchPruner.analyze("JOIN(topic:management)"));
+		assertNull(BranchPruner.analyze("topic:a\\:b"));
+		assertTrue(this.pruner().canMatch("notes", null));
+	}
+}
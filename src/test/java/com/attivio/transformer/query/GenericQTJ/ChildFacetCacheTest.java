@@ -0,0 +1,107 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.attivio.sdk.search.FacetResponse;
+import com.attivio.sdk.search.QueryRequest;
+
+public class ChildFacetCacheTest {
+
+	private QueryRequest request(String fingerprint) {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		qr.setProperty(QueryFingerprint.PROPERTY_NAME, fingerprint);
+		return qr;
+	}
+
+	@Test
+	public void testKey() {
+		String key = ChildFacetCache.key("config", this.request("abc"));
+		assertEquals(key, ChildFacetCache.key("config", this.request("abc")));
+		assertFalse(key.equals(ChildFacetCache.key("other", this.request("abc"))));
+		assertFalse(key.equals(ChildFacetCache.key("config", this.request("abd"))));
+	}
+
+	@Test
+	public void testTtl() {
+		AtomicLong now = new AtomicLong();
+		ChildFacetCache cache = new ChildFacetCache(10, now::get);
+		cache.put("key", new ArrayList<FacetResponse>());
+		assertNotNull(cache.getIfFresh("key", 60));
+		assertNull(cache.getIfFresh("other", 60));
+
+		now.addAndGet(TimeUnit.SECONDS.toNanos(61));
+		assertNull(cache.getIfFresh("key", 60));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testBounded() {
+		ChildFacetCache cache = new ChildFacetCache(2);
+		cache.put("a", new ArrayList<FacetResponse>());
+		cache.put("b", new ArrayList<FacetResponse>());
+		cache.put("c", new ArrayList<FacetResponse>());
+		assertEquals(2, cache.size());
+		assertNull(cache.getIfFresh("a", 60));
+	}
+
+	@Test
+	public void testPutAndGetByRequest() {
+		ChildFacetCache cache = new ChildFacetCache(2);
+		QueryRequest qr = this.request("abc");
+		cache.put(qr, new ArrayList<FacetResponse>());
+		assertEquals(0, cache.size());
+		assertNull(cache.get(qr));
+
+		String key = ChildFacetCache.key("config", qr);
+		qr.setProperty(ChildFacetCache.KEY_PROPERTY_NAME, key);
+		cache.put(qr, new ArrayList<FacetResponse>());
+		assertEquals(1, cache.size());
+		// Only the facets the joiner pinned on the request are returned
+		assertNull(cache.get(qr));
+		qr.setProperty(ChildFacetCache.HIT_PROPERTY_NAME, cache.getIfFresh(key, 60));
+		assertNotNull(cache.get(qr));
+	}
+
+	@Test
+	public void testPinnedFacetsOutliveTheEntry() {
+		ChildFacetCache cache = new ChildFacetCache(1);
+		QueryRequest qr = this.request("abc");
+		cache.put("key", new ArrayList<FacetResponse>());
+		qr.setProperty(ChildFacetCache.HIT_PROPERTY_NAME, cache.getIfFresh("key", 60));
+		cache.put("other", new ArrayList<FacetResponse>());
+		assertNull(cache.getIfFresh("key", 60));
+		assertNotNull(cache.get(qr));
+	}
+
+	@Test
+	public void testEveryRequestGetsItsOwnCopy() {
+		ChildFacetCache cache = new ChildFacetCache(2);
+		QueryRequest qr = this.request("abc");
+		String key = ChildFacetCache.key("config", qr);
+		qr.setProperty(ChildFacetCache.KEY_PROPERTY_NAME, key);
+		cache.put(qr, new ArrayList<FacetResponse>());
+		qr.setProperty(ChildFacetCache.HIT_PROPERTY_NAME, cache.getIfFresh(key, 60));
+		List<FacetResponse> first = cache.get(qr);
+		first.add(new FacetResponse());
+		assertNotSame(first, cache.get(qr));
+		assertEquals(0, cache.get(qr).size());
+	}
+
+	@Test
+	public void testFacetNames() {
+		String encoded = ChildFacetCache.encodeFacetNames(Arrays.asList("topic", "company"));
+		assertEquals(new LinkedHashSet<String>(Arrays.asList("topic", "company")),
+				ChildFacetCache.decodeFacetNames(encoded));
+		assertTrue(ChildFacetCache.decodeFacetNames("").isEmpty());
+	}
+}
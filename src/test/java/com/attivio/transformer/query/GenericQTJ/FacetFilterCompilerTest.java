@@ -0,0 +1,77 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.sdk.search.query.FacetQuery;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
+import com.attivio.sdk.search.query.SubQuery;
+import com.attivio.transformer.query.GenericQTJ.FacetFilterCompiler.CompiledFacetFilter;
+import com.attivio.util.ObjectUtils;
+
+public class FacetFilterCompilerTest {
+
+	private FacetFilter facetFilter(String field, String value) {
+		FacetFilter filter = new FacetFilter();
+		filter.setFilter(new FacetQuery(field, value));
+		return filter;
+	}
+
+	private String compiledQueryString(CompiledFacetFilter compiled) {
+		Query subQuery = compiled.newQuery();
+		assertTrue(subQuery instanceof SubQuery);
+		Query query = ((SubQuery) subQuery).getQuery();
+		assertTrue(query instanceof QueryString);
+		return query.getQueryString();
+	}
+
+	@Test
+	public void testCompilesConfiguredField() {
+		FacetFilterCompiler compiler = new FacetFilterCompiler(ObjectUtils.newList("topic", "people"), 10);
+		List<CompiledFacetFilter> compiled = compiler.compile(this.facetFilter("topic", "management"));
+		assertEquals(1, compiled.size());
+		assertEquals("topic", compiled.get(0).getField());
+		String queryString = this.compiledQueryString(compiled.get(0));
+		assertTrue(queryString, queryString.startsWith("topic:"));
+		assertTrue(queryString, queryString.contains("management"));
+	}
+
+	@Test
+	public void testCompilesRangeFilter() {
+		FacetFilterCompiler compiler = new FacetFilterCompiler(ObjectUtils.newList("transaction_amount"), 10);
+		List<CompiledFacetFilter> compiled = compiler
+				.compile(this.facetFilter("transaction_amount", "RANGE(10000, 12000, upper=exclusive)"));
+		assertEquals(1, compiled.size());
+		assertEquals("transaction_amount", compiled.get(0).getField());
+		assertEquals("transaction_amount:[10000 TO 12000}", this.compiledQueryString(compiled.get(0)));
+	}
+
+	@Test
+	public void testIgnoresUnconfiguredField() {
+		FacetFilterCompiler compiler = new FacetFilterCompiler(ObjectUtils.newList("topic"), 10);
+		assertTrue(compiler.compile(this.facetFilter("company", "Attivio")).isEmpty());
+	}
+
+	@Test
+	public void testIdenticalFiltersShareCompiledText() {
+		FacetFilterCompiler compiler = new FacetFilterCompiler(ObjectUtils.newList("topic"), 10);
+		List<CompiledFacetFilter> first = compiler.compile(this.facetFilter("topic", "management"));
+		List<CompiledFacetFilter> second = compiler.compile(this.facetFilter("topic", "management"));
+		assertSame(first.get(0), second.get(0));
+		// But every request gets its own query nodes
+		assertNotSame(first.get(0).newQuery(), second.get(0).newQuery());
+	}
+
+	@Test
+	public void testRangeRewrite() {
+		assertEquals("[10000 TO 12000}",
+				FacetFilterCompiler.handleRangeFacetFilters("RANGE(10000, 12000, upper=exclusive)"));
+		assertEquals("[1 TO 2]", FacetFilterCompiler.handleRangeFacetFilters("RANGE(1, 2, upper=inclusive)"));
+		assertEquals("\"management\"", FacetFilterCompiler.handleRangeFacetFilters("\"management\""));
+	}
+}
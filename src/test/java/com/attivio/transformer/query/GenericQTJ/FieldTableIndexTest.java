@@ -0,0 +1,62 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FieldTableIndexTest {
+
+	private FieldTableIndex setup() {
+		Map<String, List<String>> tableFields = new HashMap<String, List<String>>();
+		tableFields.put("metadata", Arrays.asList("topic", "date"));
+		tableFields.put("audit", Arrays.asList("update_date", "topic"));
+		return new FieldTableIndex(tableFields);
+	}
+
+	@Test
+	public void testExactFieldTokenMatch() {
+		FieldTableIndex index = this.setup();
+		Set<String> tables = index.route("update_date:[2007 TO 2008]");
+		assertEquals(1, tables.size());
+		assertTrue(tables.contains("audit"));
+	}
+
+	@Test
+	public void testFieldInSeveralTables() {
+		FieldTableIndex index = this.setup();
+		Set<String> tables = index.route("topic:management");
+		assertEquals(2, tables.size());
+		assertEquals(2, index.getTables("topic").size());
+	}
+
+	@Test
+	public void testNoMatch() {
+		FieldTableIndex index = this.setup();
+		assertTrue(index.route("table:dataTable").isEmpty());
+		assertTrue(index.route("mydate:today").isEmpty());
+		assertTrue(index.getTables("company").isEmpty());
+	}
+
+	@Test
+	public void testHyphenatedFieldNotMistakenForSuffix() {
+		FieldTableIndex index = this.setup();
+		assertTrue(index.route("my-date:today").isEmpty());
+		assertTrue(index.route("content:invoice AND my-date:[2007 TO 2008]").isEmpty());
+	}
+
+	@Test
+	public void testFieldInsideQuotedPhraseIgnored() {
+		FieldTableIndex index = this.setup();
+		assertTrue(index.route("content:\"topic: management\"").isEmpty());
+		assertTrue(index.route("content:\"say \\\"date: today\\\" again\"").isEmpty());
+		Set<String> tables = index.route("content:\"topic: management\" AND date:today");
+		assertEquals(1, tables.size());
+		assertTrue(tables.contains("metadata"));
+	}
+}
@@ -2,25 +2,33 @@ package com.attivio.transformer.query.GenericQTJ;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
 import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.FacetResponse;
 import com.attivio.sdk.search.QueryFeedback;
 import com.attivio.sdk.search.QueryRequest;
 import com.attivio.sdk.search.facet.FacetFilter;
 import com.attivio.sdk.search.query.BooleanAndQuery;
 import com.attivio.sdk.search.query.BooleanOrQuery;
+import com.attivio.sdk.search.query.BoostQuery;
 import com.attivio.sdk.search.query.CompositeJoinQuery;
+import com.attivio.sdk.search.query.CompositeJoinQuery.Clause;
 import com.attivio.sdk.search.query.FacetQuery;
 import com.attivio.sdk.search.query.JoinClause;
 import com.attivio.sdk.search.query.JoinMode;
 import com.attivio.sdk.search.query.JoinQuery;
 import com.attivio.sdk.search.query.PhraseQuery;
 import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
 import com.attivio.util.ObjectUtils;
 
 public class GenericCompositeJoinerTest {
@@ -301,6 +309,65 @@ public class GenericCompositeJoinerTest {
 		}
 	}
 
+	@Test
+	public void testStrictJoinSharesUnsearchedClauses() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setStrictChildMatching(true);
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		joiner.processQuery(qr);
+
+		Query[] branches = ((BooleanOrQuery) qr.getQuery()).getClauses();
+		JoinQuery metadataBranch = (JoinQuery) branches[0];
+		JoinQuery otherBranch = (JoinQuery) branches[1];
+		JoinQuery parentBranch = (JoinQuery) branches[2];
+		// Each branch builds its own clause for the table it searches, and shares the others
+		assertNotSame(metadataBranch.getClauses().get(0), otherBranch.getClauses().get(0));
+		assertSame(otherBranch.getClauses().get(0), parentBranch.getClauses().get(0));
+		assertSame(metadataBranch.getClauses().get(1), parentBranch.getClauses().get(1));
+		assertSame(metadataBranch.getQuery(), otherBranch.getQuery());
+	}
+
+	@Test
+	public void testSingleStrictBranchNotWrapped() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setChildTables(ObjectUtils.newMap("metadata", "INNER"));
+		joiner.setStrictChildMatching(true);
+		joiner.setAllowChildDocOnlySearch(true);
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		qr.setProperty(STRICT_QUERY_PROPERTY_NAME, true);
+		joiner.processQuery(qr);
+		assertTrue(qr.getQuery() instanceof JoinQuery);
+		assertEquals(1, ((JoinQuery) qr.getQuery()).getClauses().size());
+	}
+
+	@Test
+	public void testStrictJoinPrunesTablesWithoutQueryFields() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setStrictChildMatching(true);
+		Map<String, String> schemaFields = new HashMap<String, String>();
+		schemaFields.put("metadata", "topic, company, *");
+		schemaFields.put("anotherMetadata Table", "people");
+		joiner.setTableSchemaFields(schemaFields);
+
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("topic:management", "SIMPLE");
+		joiner.processQuery(qr);
+		// The metadata branch and the parent only join
+		assertEquals(2, ((BooleanOrQuery) qr.getQuery()).getClauses().length);
+
+		qr = new QueryRequest();
+		qr.setQuery("electronic", "SIMPLE");
+		joiner.processQuery(qr);
+		assertEquals(2, ((BooleanOrQuery) qr.getQuery()).getClauses().length);
+
+		qr = new QueryRequest();
+		qr.setQuery("topic:management OR people:smith", "SIMPLE");
+		joiner.processQuery(qr);
+		assertEquals(3, ((BooleanOrQuery) qr.getQuery()).getClauses().length);
+	}
+
 	@Test
 	public void testStrictJoinThatWasResubmitted() {
 		QueryRequest qr = new QueryRequest();
@@ -356,4 +423,570 @@ public class GenericCompositeJoinerTest {
 		}
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testRequestWithoutChildFiltersKeepsItsFilters() {
+		GenericCompositeJoiner joiner = this.setup();
+		JoinPlanTemplate plan = joiner.getPlanTemplate();
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		qr.addFacetFilter(this.facetFilter("unrelated", "value"));
+		List<FacetFilter> facetFilters = qr.getFacetFilters();
+		Map<String, List<Query>> extracted = joiner.extractMetadataFacetFilterQueries(plan, qr,
+				joiner.newDiagnostics(plan.getConfiguration()));
+		assertTrue(extracted.isEmpty());
+		assertSame(extracted, joiner.extractMetadataFacetFilterQueries(plan, qr,
+				joiner.newDiagnostics(plan.getConfiguration())));
+		assertEquals(facetFilters, qr.getFacetFilters());
+
+		qr.addFacetFilter(this.facetFilter("topic", "Management"));
+		extracted = joiner.extractMetadataFacetFilterQueries(plan, qr, joiner.newDiagnostics(plan.getConfiguration()));
+		assertEquals(1, extracted.size());
+		assertEquals(1, extracted.get("metadata").size());
+		assertEquals(1, qr.getFacetFilters().size());
+	}
+
+	@Test
+	public void testPlanTemplateReusedUntilReconfigured() {
+		GenericCompositeJoiner joiner = this.setup();
+		JoinPlanTemplate template = joiner.getPlanTemplate();
+		assertSame(template, joiner.getPlanTemplate());
+		assertEquals(joiner.getChildTables().size(), template.getTables().size());
+
+		Map<String, Integer> maxDocs = new HashMap<String, Integer>();
+		maxDocs.put("metadata", 20);
+		joiner.setMaxChildDocs(maxDocs);
+		JoinPlanTemplate rebuilt = joiner.getPlanTemplate();
+		assertNotSame(template, rebuilt);
+		for (JoinPlanTemplate.TableClause table : rebuilt.getTables()) {
+			if (table.getTable().equals("metadata")) {
+				assertEquals(20, table.getRollupLimit());
+			} else {
+				assertEquals(JoinPlanTemplate.DEFAULT_ROLLUP_LIMIT, table.getRollupLimit());
+			}
+		}
+	}
+
+	@Test
+	public void testRequestsDontShareTemplateQueries() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		QueryRequest first = new QueryRequest();
+		first.setQuery("content:electronic", "SIMPLE");
+		joiner.processQuery(first);
+		QueryRequest second = new QueryRequest();
+		second.setQuery("content:electronic", "SIMPLE");
+		joiner.processQuery(second);
+
+		CompositeJoinQuery firstJoin = (CompositeJoinQuery) first.getQuery();
+		CompositeJoinQuery secondJoin = (CompositeJoinQuery) second.getQuery();
+		assertEquals(firstJoin.toString(), secondJoin.toString());
+		assertNotSame(firstJoin.getFromQuery(), secondJoin.getFromQuery());
+		for (int i = 0; i < firstJoin.getClauses().size(); i++) {
+			assertNotSame(firstJoin.getClauses().get(i).getQuery(), secondJoin.getClauses().get(i).getQuery());
+		}
+	}
+
+	@Test
+	public void testMetricsRecordPlanShape() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		JoinerMetrics metrics = joiner.getMetrics();
+		long requests = metrics.getRequests();
+		long composites = metrics.getCompositePlans();
+
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		joiner.processQuery(qr);
+
+		assertEquals(requests + 1, metrics.getRequests());
+		assertEquals(composites + 1, metrics.getCompositePlans());
+		assertTrue(metrics.getMaxClauseCount() >= joiner.getChildTables().size());
+	}
+
+	@Test
+	public void testFeedbackNotSampled() {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		qr.setProperty(STRICT_QUERY_PROPERTY_NAME, true);
+		qr.incrementResubmits();
+
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setStrictChildMatching(true);
+		joiner.setAllowChildDocOnlySearch(true);
+		joiner.setFeedbackSamplePercent(0);
+		try {
+			List<QueryFeedback> feedback = joiner.processQuery(qr);
+			// Only the feedback that downstream components rely on is provided
+			assertEquals(1, feedback.size());
+			assertEquals(GenericCompositeJoiner.CHILD_DOC_MATCH_MESSAGE_NAME, feedback.get(0).getMessageName());
+		} catch (AttivioException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void testFeedbackLimited() {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setMaxFeedbackEvents(1);
+		try {
+			List<QueryFeedback> feedback = joiner.processQuery(qr);
+			// The first event, plus the message noting that the rest were dropped
+			assertEquals(2, feedback.size());
+		} catch (AttivioException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void testKnownEmptyParentOnlyJoinSkipped() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setStrictChildMatching(true);
+		joiner.setAllowChildDocOnlySearch(true);
+		joiner.setNegativeCacheTtlSeconds(60);
+
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:unknownTerm", "SIMPLE");
+		joiner.processQuery(qr);
+		assertTrue(qr.getQuery() instanceof JoinQuery);
+		assertTrue(qr.hasProperty(NegativeResultCache.KEY_PROPERTY_NAME));
+		// What ResubmitStrictJoin does when the parent only join finds nothing
+		NegativeResultCache.getInstance().recordEmpty(qr, NegativeResultCache.EmptyPass.PARENT_ONLY);
+
+		QueryRequest repeat = new QueryRequest();
+		repeat.setQuery("content:unknownTerm", "SIMPLE");
+		List<QueryFeedback> feedback = joiner.processQuery(repeat);
+		assertTrue(repeat.getQuery() instanceof BooleanOrQuery);
+		assertFalse(repeat.getProperty(STRICT_QUERY_PROPERTY_NAME, true));
+		boolean childDocMatch = false;
+		for (QueryFeedback feedbackItem : feedback) {
+			childDocMatch |= GenericCompositeJoiner.CHILD_DOC_MATCH_MESSAGE_NAME.equals(feedbackItem.getMessageName());
+		}
+		assertTrue(childDocMatch);
+	}
+
+	@Test
+	public void testCachedChildFacetsNotCountedAgain() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setTablesToIncludeInFacetCounts(ObjectUtils.newList("metadata"));
+		joiner.setFacetCacheTtlSeconds(60);
+		try {
+			QueryRequest qr = new QueryRequest();
+			qr.setQuery("*:*", "SIMPLE");
+			joiner.processQuery(qr);
+			assertTrue(qr.getQuery() instanceof CompositeJoinQuery);
+			assertTrue(qr.hasProperty(ChildFacetCache.KEY_PROPERTY_NAME));
+			assertFalse(qr.hasProperty(ChildFacetCache.HIT_PROPERTY_NAME));
+			// Only the facets of the tables included in the counts are cached
+			assertEquals(ObjectUtils.newList("topic", "company", "transaction_amount", "date"),
+					new ArrayList<String>(ChildFacetCache
+							.decodeFacetNames(qr.getProperty(ChildFacetCache.FACET_NAMES_PROPERTY_NAME, ""))));
+			// What CachedChildFacets does with the response of the first request
+			ChildFacetCache.getInstance().put(qr, new ArrayList<FacetResponse>());
+
+			QueryRequest repeat = new QueryRequest();
+			repeat.setQuery("*:*", "SIMPLE");
+			joiner.processQuery(repeat);
+			assertTrue(repeat.hasProperty(ChildFacetCache.HIT_PROPERTY_NAME));
+			// The facets stay pinned on the request once the entry is gone
+			ChildFacetCache.getInstance().clear();
+			assertNotNull(ChildFacetCache.getInstance().get(repeat));
+			for (CompositeJoinQuery.Clause clause : ((CompositeJoinQuery) repeat.getQuery()).getClauses()) {
+				assertFalse(clause.isFacet());
+			}
+		} finally {
+			ChildFacetCache.getInstance().clear();
+		}
+	}
+
+	@Test
+	public void testPlannerChoosesJoinForMatchAll() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("*:*", "SIMPLE");
+		joiner.processQuery(qr);
+		assertTrue(qr.getQuery() instanceof CompositeJoinQuery);
+
+		Map<String, String> statistics = new HashMap<String, String>();
+		statistics.put("dataTable", "documents=1000");
+		statistics.put("metadata", "documents=1000");
+		statistics.put("anotherMetadata Table", "documents=1000");
+		joiner.setTableStatistics(statistics);
+		long parentOnlyPlans = joiner.getMetrics().getParentOnlyPlans();
+		qr = new QueryRequest();
+		qr.setQuery("*:*", "SIMPLE");
+		joiner.processQuery(qr);
+		assertTrue(qr.getQuery() instanceof JoinQuery);
+		assertEquals(parentOnlyPlans + 1, joiner.getMetrics().getParentOnlyPlans());
+
+		// A query that can match children keeps the composite join
+		qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		joiner.processQuery(qr);
+		assertTrue(qr.getQuery() instanceof CompositeJoinQuery);
+	}
+
+	@Test
+	public void testParentOnlyPlanKeepsClauseSettings() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("*:*", "SIMPLE");
+		joiner.processQuery(qr);
+		CompositeJoinQuery composite = (CompositeJoinQuery) qr.getQuery();
+
+		Map<String, String> statistics = new HashMap<String, String>();
+		statistics.put("dataTable", "documents=1000");
+		statistics.put("metadata", "documents=1000");
+		statistics.put("anotherMetadata Table", "documents=1000");
+		joiner.setTableStatistics(statistics);
+		qr = new QueryRequest();
+		qr.setQuery("*:*", "SIMPLE");
+		joiner.processQuery(qr);
+		JoinQuery parentOnly = (JoinQuery) qr.getQuery();
+		assertEquals(composite.getClauses().size(), parentOnly.getClauses().size());
+		for (int i = 0; i < composite.getClauses().size(); i++) {
+			Clause compositeClause = composite.getClauses().get(i);
+			JoinClause joinClause = parentOnly.getClauses().get(i);
+			assertFalse(compositeClause.isFacet());
+			assertEquals(compositeClause.getMode(), joinClause.getMode());
+			assertEquals(compositeClause.getBoost(), joinClause.getBoost());
+			assertEquals(compositeClause.getRollupLimit(), joinClause.getRollupLimit());
+		}
+
+		// A plain join can't count child facets, so the composite join is kept
+		joiner.setTablesToIncludeInFacetCounts(ObjectUtils.newList("metadata"));
+		qr = new QueryRequest();
+		qr.setQuery("*:*", "SIMPLE");
+		joiner.processQuery(qr);
+		assertTrue(qr.getQuery() instanceof CompositeJoinQuery);
+		int facetClauses = 0;
+		for (Clause clause : ((CompositeJoinQuery) qr.getQuery()).getClauses()) {
+			facetClauses += clause.isFacet() ? 1 : 0;
+		}
+		assertEquals(1, facetClauses);
+	}
+
+	@Test
+	public void testAdaptiveRollup() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setAdaptiveRollup(true);
+		joiner.setAdaptiveRollupCeiling(50);
+		TableStatisticsRegistry registry = TableStatisticsRegistry.getInstance();
+		try {
+			// Too few samples: the default, which the requested rows don't cap
+			QueryRequest qr = new QueryRequest();
+			qr.setQuery("content:electronic", "SIMPLE");
+			qr.setRows(4);
+			joiner.processQuery(qr);
+			CompositeJoinQuery join = (CompositeJoinQuery) qr.getQuery();
+			assertEquals(5, join.getClauses().get(0).getRollupLimit());
+			assertEquals(JoinPlanTemplate.DEFAULT_ROLLUP_LIMIT, join.getClauses().get(1).getRollupLimit());
+
+			for (int i = 0; i < TableStatisticsRegistry.MIN_SAMPLED_PARENTS; i++) {
+				registry.recordChildren("anotherMetadata Table", 3, 10, false);
+			}
+			qr = new QueryRequest();
+			qr.setQuery("content:electronic", "SIMPLE");
+			qr.setRows(20);
+			joiner.processQuery(qr);
+			join = (CompositeJoinQuery) qr.getQuery();
+			assertEquals(5, join.getClauses().get(0).getRollupLimit());
+			assertEquals(3, join.getClauses().get(1).getRollupLimit());
+
+			// Mostly truncated: the observed counts are cut off, so the limit grows
+			for (int i = 0; i < TableStatisticsRegistry.MIN_SAMPLED_PARENTS; i++) {
+				registry.recordChildren("anotherMetadata Table", 10, 10, false);
+			}
+			qr = new QueryRequest();
+			qr.setQuery("content:electronic", "SIMPLE");
+			qr.setRows(100);
+			joiner.processQuery(qr);
+			join = (CompositeJoinQuery) qr.getQuery();
+			assertEquals(20, join.getClauses().get(1).getRollupLimit());
+		} finally {
+			registry.clear();
+		}
+	}
+
+	@Test
+	public void testConfigurationCopiedOnSet() {
+		GenericCompositeJoiner joiner = this.setup();
+		Map<String, Integer> boosts = new HashMap<String, Integer>();
+		boosts.put("metadata", 7);
+		joiner.setTableBoosts(boosts);
+		boosts.put("anotherMetadata Table", 3);
+		assertEquals(1, joiner.getTableBoosts().size());
+		try {
+			joiner.getTableBoosts().put("anotherMetadata Table", 3);
+			fail("The configuration can only be changed through its setters");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testInvalidReconfigurationKeepsConfiguration() {
+		GenericCompositeJoiner joiner = this.setup();
+		JoinPlanTemplate template = joiner.getPlanTemplate();
+		Map<String, String> tables = new HashMap<String, String>();
+		tables.put("metadata", "SIDEWAYS");
+		try {
+			joiner.setChildTables(tables);
+			fail("Unknown join modes must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			joiner.setFeedbackSamplePercent(150);
+			fail("Sample percentages above 100 must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(2, joiner.getChildTables().size());
+		assertEquals(100, joiner.getFeedbackSamplePercent());
+		assertSame(template, joiner.getPlanTemplate());
+	}
+
+	@Test
+	public void testReconfigurationDuringRequests() throws Exception {
+		GenericCompositeJoiner joiner = this.setup();
+		AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread[] workers = new Thread[4];
+		for (int t = 0; t < workers.length; t++) {
+			workers[t] = new Thread(() -> {
+				while (running.get() && failure.get() == null) {
+					try {
+						QueryRequest qr = new QueryRequest();
+						qr.setQuery("content:electronic", "SIMPLE");
+						qr.addFacetFilter(this.facetFilter("topic", "Management"));
+						joiner.processQuery(qr);
+						CompositeJoinQuery join = (CompositeJoinQuery) qr.getQuery();
+						// Both clauses of a join come from the same configuration
+						assertEquals(join.getClauses().get(0).getRollupLimit(),
+								join.getClauses().get(1).getRollupLimit());
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			workers[t].start();
+		}
+		try {
+			for (int i = 1; i <= 500 && failure.get() == null; i++) {
+				Map<String, Integer> maxDocs = new HashMap<String, Integer>();
+				maxDocs.put("metadata", i);
+				maxDocs.put("anotherMetadata Table", i);
+				joiner.setMaxChildDocs(maxDocs);
+				Map<String, String> facetFields = new HashMap<String, String>();
+				facetFields.put("metadata", i % 2 == 0 ? "topic, company" : "topic");
+				joiner.setChildTableFacetFields(facetFields);
+			}
+		} finally {
+			running.set(false);
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		}
+		assertNull(failure.get());
+	}
+
+	@Test
+	public void testEquivalentRequestsHaveSameFingerprint() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setStoreFingerprint(true);
+		Map<String, String> reversed = new LinkedHashMap<String, String>();
+		reversed.put("anotherMetadata Table", "OUTER");
+		reversed.put("metadata", "INNER");
+		GenericCompositeJoiner reversedJoiner = this.setup();
+		reversedJoiner.setStoreFingerprint(true);
+		reversedJoiner.setChildTables(reversed);
+
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		qr.addFacetFilter(this.facetFilter("topic", "Management"));
+		qr.addFacetFilter(this.facetFilter("company", "Attivio"));
+		qr.addFacetFilter(this.facetFilter("topic", "Management"));
+		joiner.processQuery(qr);
+
+		QueryRequest reorderedQr = new QueryRequest();
+		reorderedQr.setQuery("content:electronic", "SIMPLE");
+		reorderedQr.addFacetFilter(this.facetFilter("company", "Attivio"));
+		reorderedQr.addFacetFilter(this.facetFilter("topic", "Management"));
+		reversedJoiner.processQuery(reorderedQr);
+
+		assertEquals(qr.getQuery().toString(), reorderedQr.getQuery().toString());
+		assertEquals(qr.getProperty(QueryFingerprint.PROPERTY_NAME, ""),
+				reorderedQr.getProperty(QueryFingerprint.PROPERTY_NAME, "other"));
+		CompositeJoinQuery join = (CompositeJoinQuery) qr.getQuery();
+		// The duplicate topic facet filter is only applied once
+		assertEquals(3, ((BooleanAndQuery) join.getClauses().get(0).getQuery()).getClauses().length);
+	}
+
+	@Test
+	public void testFingerprintOnlyStoredWhenNeeded() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		joiner.processQuery(qr);
+		assertFalse(qr.hasProperty(QueryFingerprint.PROPERTY_NAME));
+
+		joiner.setFacetCacheTtlSeconds(60);
+		qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		joiner.processQuery(qr);
+		assertEquals(QueryFingerprint.of(qr).toString(), qr.getProperty(QueryFingerprint.PROPERTY_NAME, ""));
+	}
+
+	@Test
+	public void testPerRequestPropertiesOnlyStoredWhenRead() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		qr.addFacetFilter(this.facetFilter("topic", "Management"));
+		joiner.processQuery(qr);
+		assertFalse(qr.hasProperty(ResubmitState.PROPERTY_NAME));
+		assertFalse(qr.hasProperty(TableStatisticsRegistry.ROLLUP_LIMITS_PROPERTY_NAME));
+		assertFalse(qr.hasProperty(TableStatisticsRegistry.FILTERED_TABLES_PROPERTY_NAME));
+
+		// A resubmitting router and the planner read them back
+		Map<String, String> statistics = new HashMap<String, String>();
+		statistics.put("metadata", "documents=1000");
+		joiner.setTableStatistics(statistics);
+		qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		qr.addFacetFilter(this.facetFilter("topic", "Management"));
+		qr.setMaxResubmits(1);
+		joiner.processQuery(qr);
+		assertTrue(qr.hasProperty(ResubmitState.PROPERTY_NAME));
+		assertEquals(joiner.getPlanTemplate().getEncodedRollupLimits(),
+				qr.getProperty(TableStatisticsRegistry.ROLLUP_LIMITS_PROPERTY_NAME, ""));
+		assertEquals(TableStatisticsRegistry.encodeTableNames(ObjectUtils.newList("metadata")),
+				qr.getProperty(TableStatisticsRegistry.FILTERED_TABLES_PROPERTY_NAME, ""));
+	}
+
+	@Test
+	public void testBatchTransformedLikeSingleRequests() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		List<QueryRequest> batch = new ArrayList<QueryRequest>();
+		List<QueryRequest> single = new ArrayList<QueryRequest>();
+		for (String query : new String[] { "content:electronic", "content:invoice", "content:electronic" }) {
+			for (List<QueryRequest> requests : ObjectUtils.newList(batch, single)) {
+				QueryRequest qr = new QueryRequest();
+				qr.setQuery(query, "SIMPLE");
+				qr.addFacetFilter(this.facetFilter("topic", "Management"));
+				qr.addFacetFilter(this.facetFilter("people", "John Smith"));
+				requests.add(qr);
+			}
+		}
+
+		List<List<QueryFeedback>> feedback = joiner.processQueries(batch);
+		assertEquals(batch.size(), feedback.size());
+		for (int i = 0; i < batch.size(); i++) {
+			List<QueryFeedback> singleFeedback = joiner.processQuery(single.get(i));
+			assertEquals(single.get(i).getQuery().toString(), batch.get(i).getQuery().toString());
+			assertEquals(single.get(i).getProperty(QueryFingerprint.PROPERTY_NAME, ""),
+					batch.get(i).getProperty(QueryFingerprint.PROPERTY_NAME, "other"));
+			assertEquals(singleFeedback.size(), feedback.get(i).size());
+			assertTrue(batch.get(i).getFacetFilters().isEmpty());
+		}
+	}
+
+	@Test
+	public void testSinglePassStrictJoin() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setStrictChildMatching(true);
+		joiner.setAllowChildDocOnlySearch(true);
+		joiner.setSinglePassStrictJoin(true);
+		long strictPlans = joiner.getMetrics().getStrictOrOfJoinsPlans();
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		List<QueryFeedback> feedback = joiner.processQuery(qr);
+		// Reported as the strict join it is, not by the shape of the boosted query
+		assertEquals(strictPlans + 1, joiner.getMetrics().getStrictOrOfJoinsPlans());
+
+		// The child branches and the boosted parent only branch, in one query
+		assertTrue(qr.getQuery() instanceof BooleanOrQuery);
+		Query[] branches = ((BooleanOrQuery) qr.getQuery()).getClauses();
+		assertEquals(joiner.getChildTables().size() + 1, branches.length);
+		assertTrue(branches[branches.length - 1] instanceof BoostQuery);
+		assertFalse(qr.getProperty(STRICT_QUERY_PROPERTY_NAME, true));
+		assertEquals(joiner.getTierBoost(),
+				(int) qr.getProperty(GenericCompositeJoiner.PARENT_TIER_BOOST_PROPERTY_NAME, 0));
+		assertEquals(joiner.getMaxUnboostedScore(),
+				(int) qr.getProperty(QueryRelaxation.MAX_UNBOOSTED_SCORE_PROPERTY_NAME, 0));
+		for (QueryFeedback feedbackItem : feedback) {
+			assertFalse(GenericCompositeJoiner.CHILD_DOC_MATCH_MESSAGE_NAME.equals(feedbackItem.getMessageName()));
+		}
+	}
+
+	@Test
+	public void testTieredRelaxation() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setTieredRelaxation(true);
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("electronic invoice", "SIMPLE");
+		joiner.processQuery(qr);
+		CompositeJoinQuery join = (CompositeJoinQuery) qr.getQuery();
+		assertTrue(join.getQuery().toString().contains(QueryRelaxation
+				.tier(new QueryString("electronic invoice"), joiner.getTierBoost(), 1).toString()));
+		assertTrue(qr.hasProperty(QueryRelaxation.TIER_BOOST_PROPERTY_NAME));
+		assertEquals(joiner.getMaxUnboostedScore(),
+				(int) qr.getProperty(QueryRelaxation.MAX_UNBOOSTED_SCORE_PROPERTY_NAME, 0));
+
+		// A single term has nothing to relax
+		qr = new QueryRequest();
+		qr.setQuery("electronic", "SIMPLE");
+		joiner.processQuery(qr);
+		assertFalse(qr.hasProperty(QueryRelaxation.TIER_BOOST_PROPERTY_NAME));
+
+		// The relaxed tier needs the minimum number of terms
+		joiner.setRelaxedMinimumMatch(2);
+		qr = new QueryRequest();
+		qr.setQuery("electronic invoice payment", "SIMPLE");
+		joiner.processQuery(qr);
+		join = (CompositeJoinQuery) qr.getQuery();
+		assertTrue(join.getQuery().toString().contains(QueryRelaxation
+				.tier(new QueryString("electronic invoice payment"), joiner.getTierBoost(), 2).toString()));
+
+		// Matching every term is the strict tier
+		qr = new QueryRequest();
+		qr.setQuery("electronic invoice", "SIMPLE");
+		joiner.processQuery(qr);
+		assertFalse(qr.hasProperty(QueryRelaxation.TIER_BOOST_PROPERTY_NAME));
+		joiner.setRelaxedMinimumMatch(1);
+
+		try {
+			joiner.setTierBoost(1);
+			fail("A tier boost of 1 can't separate the tiers");
+		} catch (IllegalArgumentException e) {
+			assertEquals(QueryRelaxation.DEFAULT_TIER_BOOST, joiner.getTierBoost());
+		}
+		try {
+			joiner.setMaxUnboostedScore(0);
+			fail("Every match scores above 0");
+		} catch (IllegalArgumentException e) {
+			assertEquals(QueryRelaxation.DEFAULT_MAX_UNBOOSTED_SCORE, joiner.getMaxUnboostedScore());
+		}
+
+		// The two can be set in either order
+		joiner.setTierBoost(50);
+		joiner.setMaxUnboostedScore(20);
+		assertEquals(50, joiner.getTierBoost());
+		assertEquals(20, joiner.getMaxUnboostedScore());
+
+		// Scores that overlap the boosted tier leave the query alone
+		joiner.setMaxUnboostedScore(50);
+		qr = new QueryRequest();
+		qr.setQuery("electronic invoice", "SIMPLE");
+		joiner.processQuery(qr);
+		assertFalse(qr.hasProperty(QueryRelaxation.TIER_BOOST_PROPERTY_NAME));
+	}
+
+	private FacetFilter facetFilter(String field, String value) {
+		FacetFilter facetFilter = new FacetFilter();
+		facetFilter.setFilter(new FacetQuery(field, value));
+		return facetFilter;
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.SearchDocument;
+import com.attivio.sdk.search.SearchDocumentList;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.transformer.query.GenericQTJ.HedgedJoinSearcher.Result;
+import com.attivio.transformer.query.GenericQTJ.HedgedJoinSearcher.Variant;
+import com.attivio.util.ObjectUtils;
+
+public class HedgedJoinSearcherTest {
+
+	private GenericCompositeJoiner setup() {
+		GenericCompositeJoiner joiner = new GenericCompositeJoiner();
+		joiner.setJoinField("metadataLink");
+		joiner.setPrimaryTables(ObjectUtils.newList("dataTable"));
+		Map<String, String> tables = new HashMap<String, String>();
+		tables.put("metadata", "INNER");
+		tables.put("anotherMetadata Table", "OUTER");
+		joiner.setChildTables(tables);
+		Map<String, String> metadataFacetFields = new HashMap<String, String>();
+		metadataFacetFields.put("metadata", "topic, company");
+		metadataFacetFields.put("anotherMetadata Table", "people");
+		joiner.setChildTableFacetFields(metadataFacetFields);
+		joiner.setStrictChildMatching(true);
+		joiner.setAllowChildDocOnlySearch(true);
+		return joiner;
+	}
+
+	private QueryRequest request() {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("electronic invoice", "SIMPLE");
+		return qr;
+	}
+
+	@Test
+	public void testVariantsInPriorityOrder() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		QueryRequest qr = this.request();
+		Map<Variant, Query> variants = joiner.buildHedgedVariants(qr);
+		assertEquals(ObjectUtils.newList(Variant.JOIN, Variant.CHILD_DOC_ONLY, Variant.RELAXED),
+				new ArrayList<Variant>(variants.keySet()));
+		assertEquals("electronic invoice", qr.getQueryString());
+		assertFalse(qr.getProperty(GenericCompositeJoiner.STRICT_QUERY_PROPERTY_NAME, true));
+
+		// Without strict matching there's no child document search
+		joiner.setStrictChildMatching(false);
+		variants = joiner.buildHedgedVariants(this.request());
+		assertEquals(ObjectUtils.newList(Variant.JOIN, Variant.RELAXED), new ArrayList<Variant>(variants.keySet()));
+	}
+
+	@Test
+	public void testFirstNonEmptyVariantInPriorityOrderWins() throws Exception {
+		GenericCompositeJoiner joiner = this.setup();
+		Map<Variant, Query> variants = joiner.buildHedgedVariants(this.request());
+		InMemorySearchExecutor executor = new InMemorySearchExecutor();
+		executor.addDocuments(variants.get(Variant.CHILD_DOC_ONLY), new SearchDocument("child"));
+		executor.addDocuments(variants.get(Variant.RELAXED), new SearchDocument("relaxed"));
+		HedgedJoinSearcher searcher = new HedgedJoinSearcher(joiner, executor, 5000);
+
+		Result result = searcher.search(this.request());
+		assertEquals(Variant.CHILD_DOC_ONLY, result.getVariant());
+		assertEquals("child", result.getDocuments().get(0).getId());
+		assertEquals(variants.get(Variant.CHILD_DOC_ONLY).toString(), result.getQuery().toString());
+	}
+
+	@Test
+	public void testLastVariantReturnedWhenAllEmpty() throws Exception {
+		GenericCompositeJoiner joiner = this.setup();
+		InMemorySearchExecutor executor = new InMemorySearchExecutor();
+		HedgedJoinSearcher searcher = new HedgedJoinSearcher(joiner, executor, 5000);
+
+		Result result = searcher.search(this.request());
+		assertEquals(Variant.RELAXED, result.getVariant());
+		assertEquals(0, result.getDocuments().size());
+		assertEquals(3, executor.getSearchedQueries().size());
+	}
+
+	@Test
+	public void testLosingVariantsCancelled() throws Exception {
+		GenericCompositeJoiner joiner = this.setup();
+		final String winner = joiner.buildHedgedVariants(this.request()).get(Variant.JOIN).toString();
+		final CountDownLatch cancelled = new CountDownLatch(2);
+		JoinSearchExecutor searchExecutor = new JoinSearchExecutor() {
+			@Override
+			public QueryResponse search(QueryRequest request, Query query) {
+				SearchDocumentList results = new SearchDocumentList();
+				QueryResponse response = new QueryResponse(request);
+				response.setDocuments(results);
+				if (query.toString().equals(winner)) {
+					results.add(new SearchDocument("parent"));
+					return response;
+				}
+				// The losers only finish once they're cancelled
+				try {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+				} catch (InterruptedException e) {
+					cancelled.countDown();
+				}
+				return response;
+			}
+		};
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			HedgedJoinSearcher searcher = new HedgedJoinSearcher(joiner, searchExecutor, pool, 5000);
+			Result result = searcher.search(this.request());
+			assertEquals(Variant.JOIN, result.getVariant());
+			assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testDefaultExecutorRunsTasks() throws Exception {
+		ExecutorService executor = HedgedJoinSearcher.newDefaultExecutor();
+		try {
+			List<Integer> ran = new ArrayList<Integer>();
+			executor.submit(() -> ran.add(1)).get(5, TimeUnit.SECONDS);
+			assertEquals(1, ran.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
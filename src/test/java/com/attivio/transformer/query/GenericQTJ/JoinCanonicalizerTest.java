@@ -0,0 +1,79 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
+import com.attivio.transformer.query.GenericQTJ.JoinPlanTemplate.TableClause;
+import com.attivio.util.ObjectUtils;
+
+public class JoinCanonicalizerTest {
+
+	private static final Map<String, List<Query>> NO_FILTERS = Collections.<String, List<Query>>emptyMap();
+
+	private JoinPlanTemplate template(boolean withStatistics) {
+		GenericCompositeJoiner joiner = new GenericCompositeJoiner();
+		joiner.setJoinField("metadataLink");
+		joiner.setPrimaryTables(ObjectUtils.newList("dataTable"));
+		Map<String, String> tables = new HashMap<String, String>();
+		tables.put("common", "INNER");
+		tables.put("rare", "INNER");
+		tables.put("unknown", "INNER");
+		tables.put("optional", "OUTER");
+		joiner.setChildTables(tables);
+		if (withStatistics) {
+			Map<String, String> statistics = new HashMap<String, String>();
+			statistics.put("dataTable", "documents=1000");
+			statistics.put("common", "documents=3000, childrenPerParent=3");
+			statistics.put("rare", "documents=100");
+			statistics.put("optional", "documents=10");
+			joiner.setTableStatistics(statistics);
+		}
+		return joiner.getPlanTemplate();
+	}
+
+	private List<String> names(List<TableClause> tables) {
+		List<String> names = new ArrayList<String>();
+		for (TableClause table : tables) {
+			names.add(table.getTable());
+		}
+		return names;
+	}
+
+	@Test
+	public void testDefaultOrder() {
+		JoinPlanTemplate plan = this.template(false);
+		assertEquals(Arrays.asList("common", "rare", "unknown", "optional"), this.names(plan.getTables()));
+		assertSame(plan.getTables(),
+				JoinCanonicalizer.orderClauses(plan.getTables(), NO_FILTERS, true, plan.getPlanner()));
+	}
+
+	@Test
+	public void testMostSelectiveInnerClauseFirst() {
+		JoinPlanTemplate plan = this.template(true);
+		assertEquals(Arrays.asList("rare", "common", "unknown", "optional"), this.names(
+				JoinCanonicalizer.orderClauses(plan.getTables(), NO_FILTERS, true, plan.getPlanner())));
+	}
+
+	@Test
+	public void testFilteredClausesFirst() {
+		JoinPlanTemplate plan = this.template(true);
+		Map<String, List<Query>> filtered = new HashMap<String, List<Query>>();
+		filtered.put("optional", Arrays.<Query>asList(new QueryString("people:Joe")));
+		filtered.put("unknown", Arrays.<Query>asList(new QueryString("topic:Management")));
+		assertEquals(Arrays.asList("optional", "unknown", "rare", "common"), this.names(
+				JoinCanonicalizer.orderClauses(plan.getTables(), filtered, true, plan.getPlanner())));
+		// Without forcing INNER, the filtered OUTER clause stays with the OUTER ones
+		assertEquals(Arrays.asList("unknown", "rare", "common", "optional"), this.names(
+				JoinCanonicalizer.orderClauses(plan.getTables(), filtered, false, plan.getPlanner())));
+	}
+}
@@ -0,0 +1,128 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
+import com.attivio.util.ObjectUtils;
+
+public class JoinPlannerTest {
+
+	private static final Map<String, List<Query>> NO_FILTERS = Collections.<String, List<Query>>emptyMap();
+
+	private JoinPlanTemplate template(String... statistics) {
+		GenericCompositeJoiner joiner = new GenericCompositeJoiner();
+		joiner.setJoinField("metadataLink");
+		joiner.setPrimaryTables(ObjectUtils.newList("dataTable"));
+		Map<String, String> tables = new HashMap<String, String>();
+		tables.put("metadata", "INNER");
+		tables.put("anotherMetadata Table", "OUTER");
+		joiner.setChildTables(tables);
+		Map<String, String> tableStatistics = new HashMap<String, String>();
+		for (int i = 0; i < statistics.length; i += 2) {
+			tableStatistics.put(statistics[i], statistics[i + 1]);
+		}
+		joiner.setTableStatistics(tableStatistics);
+		return joiner.getPlanTemplate();
+	}
+
+	@Test
+	public void testParseStatistics() {
+		TableStatistics statistics = TableStatistics.valueOf(" documents=250000, childrenPerParent=3.5 ");
+		assertEquals(250000, statistics.getDocuments());
+		assertEquals(3.5, statistics.getChildrenPerParent(), 0);
+		assertEquals(1, statistics.getFilterSelectivity(), 0);
+		assertEquals(statistics.toString(), TableStatistics.valueOf(statistics.toString()).toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testStatisticsRequireDocuments() {
+		TableStatistics.valueOf("childrenPerParent=2");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testStatisticsRejectSelectivityAboveOne() {
+		TableStatistics.valueOf("documents=10, filterSelectivity=1.5");
+	}
+
+	@Test
+	public void testMatchAll() {
+		assertTrue(JoinPlanner.isMatchAll(new QueryString("*:*")));
+		assertTrue(JoinPlanner.isMatchAll(new QueryString("*")));
+		assertFalse(JoinPlanner.isMatchAll(new QueryString("content:* AND *:*")));
+	}
+
+	@Test
+	public void testNoStatisticsKeepsDefaultPlan() {
+		JoinPlanTemplate plan = this.template();
+		assertFalse(plan.getPlanner().isEnabled());
+		assertEquals(PlanShape.COMPOSITE, plan.getPlanner().choose(
+				Arrays.asList(PlanShape.COMPOSITE, PlanShape.PARENT_ONLY), plan.getTables(), NO_FILTERS, true));
+	}
+
+	@Test
+	public void testMissingTableStatisticsKeepsDefaultPlan() {
+		JoinPlanTemplate plan = this.template("dataTable", "documents=1000", "metadata", "documents=1000");
+		assertTrue(plan.getPlanner().isEnabled());
+		assertEquals(PlanShape.COMPOSITE, plan.getPlanner().choose(
+				Arrays.asList(PlanShape.COMPOSITE, PlanShape.PARENT_ONLY), plan.getTables(), NO_FILTERS, true));
+	}
+
+	@Test
+	public void testNonPrimaryTablesCountParents() {
+		Map<String, TableStatistics> statistics = new HashMap<String, TableStatistics>();
+		statistics.put("dataTable", TableStatistics.valueOf("documents=600"));
+		statistics.put("otherTable", TableStatistics.valueOf("documents=400"));
+		statistics.put("metadata", TableStatistics.valueOf("documents=100"));
+		JoinPlanner planner = new JoinPlanner(statistics, Collections.<String>emptyList(),
+				ObjectUtils.newList("metadata"), new TableStatisticsRegistry(16));
+		// The parents are the 1000 documents of the tables that aren't non-primary
+		assertEquals(0.1, planner.estimateSelectivity("metadata", false), 1e-9);
+	}
+
+	@Test
+	public void testMatchAllPrefersJoin() {
+		JoinPlanTemplate plan = this.template("dataTable", "documents=1000", "metadata", "documents=1000",
+				"anotherMetadata Table", "documents=1000");
+		assertEquals(PlanShape.PARENT_ONLY, plan.getPlanner().choose(
+				Arrays.asList(PlanShape.COMPOSITE, PlanShape.PARENT_ONLY), plan.getTables(), NO_FILTERS, true));
+	}
+
+	@Test
+	public void testLargeChildTablesPreferComposite() {
+		JoinPlanTemplate plan = this.template("dataTable", "documents=1000", "metadata", "documents=1000000",
+				"anotherMetadata Table", "documents=1000000");
+		assertEquals(PlanShape.COMPOSITE,
+				plan.getPlanner().choose(Arrays.asList(PlanShape.MIMICKED_COMPOSITE, PlanShape.COMPOSITE),
+						plan.getTables(), NO_FILTERS, false));
+	}
+
+	@Test
+	public void testSmallChildTablesPreferOrOfJoins() {
+		JoinPlanTemplate plan = this.template("dataTable", "documents=1000", "metadata", "documents=100",
+				"anotherMetadata Table", "documents=100");
+		assertEquals(PlanShape.MIMICKED_COMPOSITE,
+				plan.getPlanner().choose(Arrays.asList(PlanShape.MIMICKED_COMPOSITE, PlanShape.COMPOSITE),
+						plan.getTables(), NO_FILTERS, false));
+	}
+
+	@Test
+	public void testFilterSelectivityLowersFanOut() {
+		JoinPlanTemplate plan = this.template("dataTable", "documents=1000",
+				"metadata", "documents=5000, childrenPerParent=5, filterSelectivity=0.1",
+				"anotherMetadata Table", "documents=1000");
+		JoinPlanner planner = plan.getPlanner();
+		Map<String, List<Query>> filtered = new HashMap<String, List<Query>>();
+		filtered.put("metadata", Arrays.<Query>asList(new QueryString("topic:Management")));
+		assertTrue(planner.estimateCost(PlanShape.PARENT_ONLY, plan.getTables(), filtered, true) < planner
+				.estimateCost(PlanShape.PARENT_ONLY, plan.getTables(), NO_FILTERS, true));
+	}
+}
@@ -0,0 +1,49 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class Log2HistogramTest {
+
+	@Test
+	public void testPercentilesWithinBucket() {
+		Log2Histogram histogram = new Log2Histogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(50.5, histogram.getMean(), 0.001);
+		assertEquals(100, histogram.getMax());
+		// 50 falls in [32, 64) and 99 in [64, 128), capped by the max
+		assertEquals(63, histogram.getPercentile(50));
+		assertEquals(100, histogram.getPercentile(99));
+	}
+
+	@Test
+	public void testZeroAndNegativeValues() {
+		Log2Histogram histogram = new Log2Histogram();
+		assertEquals(0, histogram.getPercentile(50));
+		histogram.record(-5);
+		histogram.record(0);
+		assertEquals(2, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testLargeValues() {
+		Log2Histogram histogram = new Log2Histogram();
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+	}
+
+	@Test
+	public void testReset() {
+		Log2Histogram histogram = new Log2Histogram();
+		histogram.record(42);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(99));
+	}
+}
@@ -0,0 +1,67 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
+import com.attivio.transformer.query.GenericQTJ.NegativeResultCache.EmptyPass;
+
+public class NegativeResultCacheTest {
+
+	private QueryRequest request(String query, String... filters) {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery(query, "SIMPLE");
+		List<Query> filterQueries = new ArrayList<Query>();
+		for (String filter : filters) {
+			filterQueries.add(new QueryString(filter));
+		}
+		qr.setFilters(filterQueries);
+		return qr;
+	}
+
+	@Test
+	public void testKeyNormalization() {
+		String key = NegativeResultCache.key("config", this.request("electronic  invoice", "a:1", "b:2"));
+		assertEquals(key, NegativeResultCache.key("config", this.request(" electronic invoice ", "b:2", "a:1")));
+		assertFalse(key.equals(NegativeResultCache.key("other", this.request("electronic invoice", "a:1", "b:2"))));
+		assertFalse(key.equals(NegativeResultCache.key("config", this.request("electronic invoice", "a:1"))));
+	}
+
+	@Test
+	public void testTtl() {
+		AtomicLong now = new AtomicLong();
+		NegativeResultCache cache = new NegativeResultCache(10, now::get);
+		cache.recordEmpty("key", EmptyPass.PARENT_ONLY);
+		assertTrue(cache.isKnownEmpty("key", EmptyPass.PARENT_ONLY, 60));
+		assertFalse(cache.isKnownEmpty("key", EmptyPass.UNRELAXED, 60));
+
+		now.addAndGet(TimeUnit.SECONDS.toNanos(61));
+		assertFalse(cache.isKnownEmpty("key", EmptyPass.PARENT_ONLY, 60));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testBounded() {
+		NegativeResultCache cache = new NegativeResultCache(2);
+		cache.recordEmpty("a", EmptyPass.UNRELAXED);
+		cache.recordEmpty("b", EmptyPass.UNRELAXED);
+		cache.recordEmpty("c", EmptyPass.UNRELAXED);
+		assertEquals(2, cache.size());
+		assertFalse(cache.isKnownEmpty("a", EmptyPass.UNRELAXED, 60));
+	}
+
+	@Test
+	public void testRecordWithoutKey() {
+		NegativeResultCache cache = new NegativeResultCache(2);
+		cache.recordEmpty(new QueryRequest(), EmptyPass.UNRELAXED);
+		assertEquals(0, cache.size());
+	}
+}
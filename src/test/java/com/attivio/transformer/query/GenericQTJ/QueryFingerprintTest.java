@@ -0,0 +1,48 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
+
+public class QueryFingerprintTest {
+
+	@Test
+	public void testMurmur3ReferenceValues() {
+		// The MurmurHash3 x64 128 reference values, printed as two big endian longs
+		assertEquals("cbd8a7b341bd9b025b1e906a48ae1d19", QueryFingerprint.of("hello").toString());
+		assertEquals("e34bbc7bbc071b6c7a433ca9c49a9347",
+				QueryFingerprint.of("The quick brown fox jumps over the lazy dog").toString());
+	}
+
+	@Test
+	public void testFilterOrderIgnored() {
+		Query query = new QueryString("content:electronic");
+		Query a = new QueryString("topic:management");
+		Query b = new QueryString("company:attivio");
+		List<FacetFilter> noFacetFilters = new ArrayList<FacetFilter>();
+		QueryFingerprint first = QueryFingerprint.of(query, Arrays.asList(a, b), noFacetFilters);
+		QueryFingerprint second = QueryFingerprint.of(query, Arrays.asList(b, a), noFacetFilters);
+		assertEquals(first, second);
+		assertEquals(first.hashCode(), second.hashCode());
+		assertFalse(first.equals(QueryFingerprint.of(query, Arrays.asList(a), noFacetFilters)));
+	}
+
+	@Test
+	public void testValueOf() {
+		QueryFingerprint fingerprint = QueryFingerprint.of("content:electronic");
+		assertEquals(fingerprint, QueryFingerprint.valueOf(fingerprint.toString()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testValueOfMalformed() {
+		QueryFingerprint.valueOf("not a fingerprint");
+	}
+}
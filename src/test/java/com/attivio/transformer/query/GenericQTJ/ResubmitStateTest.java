@@ -0,0 +1,136 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.facet.FacetFilter;
+import com.attivio.sdk.search.query.FacetQuery;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
+
+public class ResubmitStateTest {
+
+	private QueryRequest setup() {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:\u00e9lectronique", "SIMPLE");
+		List<Query> filters = new ArrayList<Query>();
+		filters.add(new QueryString("topic:management", "SIMPLE"));
+		filters.add(new FacetQuery("language", "French"));
+		qr.setFilters(filters);
+		FacetFilter facetFilter = new FacetFilter();
+		facetFilter.setFilter(new FacetQuery("topic", "Management"));
+		qr.addFacetFilter(facetFilter);
+		return qr;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		QueryRequest qr = this.setup();
+		ResubmitState state = ResubmitState.decode(ResubmitState.capture(qr).encode());
+
+		assertEquals(qr.getQueryString(), state.getQuery());
+		assertEquals(qr.getQueryLanguage(), state.getQueryLanguage());
+		assertEquals(2, state.getFilters().size());
+		QueryString filter = (QueryString) state.getFilters().get(0);
+		assertEquals("topic:management", filter.getQueryString());
+		assertEquals("SIMPLE", filter.getQueryLanguage());
+		// Filters built as query objects come back as the same objects, not parsed
+		assertTrue(state.getFilters().get(1) instanceof FacetQuery);
+		assertEquals(1, state.getFacetFilters().size());
+		assertEquals(qr.getFacetFilters().get(0).toString(), state.getFacetFilters().get(0).toString());
+	}
+
+	@Test
+	public void testRestoreFacetFilters() {
+		QueryRequest qr = this.setup();
+		ResubmitState.store(qr);
+		String facetFilter = qr.getFacetFilters().get(0).toString();
+		qr.setQuery("joinQuery", "ADVANCED");
+		qr.setFilters(new ArrayList<Query>());
+		qr.setFacetFilters(new ArrayList<FacetFilter>());
+
+		ResubmitState.read(qr).restore(qr);
+		assertEquals("content:\u00e9lectronique", qr.getQueryString());
+		assertEquals(2, qr.getFilters().size());
+		assertEquals(1, qr.getFacetFilters().size());
+		assertEquals(facetFilter, qr.getFacetFilters().get(0).toString());
+	}
+
+	@Test
+	public void testReplaceQuery() {
+		QueryRequest qr = this.setup();
+		ResubmitState.store(qr);
+		ResubmitState.replaceQuery(qr, "content OR \u00e9lectronique", "ADVANCED");
+		ResubmitState state = ResubmitState.read(qr);
+		assertEquals("content OR \u00e9lectronique", state.getQuery());
+		assertEquals(1, state.getFacetFilters().size());
+	}
+
+	@Test
+	public void testLegacyProperties() {
+		QueryRequest qr = new QueryRequest();
+		qr.setProperty("original_query", "content:electronic");
+		ResubmitState state = ResubmitState.read(qr);
+		assertEquals("content:electronic", state.getQuery());
+		assertNull(state.getFilters());
+		assertNull(state.getFacetFilters());
+	}
+
+	@Test
+	public void testNothingStored() {
+		assertNull(ResubmitState.read(new QueryRequest()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedVersion() {
+		ResubmitState.decode(new byte[] { -84, -19, 0, 5, 119, 1, 3 });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMalformedListSize() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeByte(2);
+			out.writeObject("content:electronic");
+			out.writeObject("SIMPLE");
+			out.writeInt(Integer.MAX_VALUE);
+		}
+		// Rejected before allocating the list
+		ResubmitState.decode(bytes.toByteArray());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnexpectedClass() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeByte(2);
+			out.writeObject("content:electronic");
+			out.writeObject("SIMPLE");
+			out.writeInt(2);
+			out.writeObject(new java.io.File("filter"));
+		}
+		ResubmitState.decode(bytes.toByteArray());
+	}
+
+	@Test
+	public void testMalformedStateIgnored() {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		qr.setProperty(ResubmitState.PROPERTY_NAME, "not encoded");
+		assertNull(ResubmitState.read(qr));
+		byte[] truncated = new byte[] { -84, -19, 0, 5 };
+		qr.setProperty(ResubmitState.PROPERTY_NAME, truncated);
+		assertNull(ResubmitState.read(qr));
+
+		ResubmitState.replaceQuery(qr, "content:invoice", "SIMPLE");
+		assertSame(truncated, qr.getProperty(ResubmitState.PROPERTY_NAME));
+	}
+}
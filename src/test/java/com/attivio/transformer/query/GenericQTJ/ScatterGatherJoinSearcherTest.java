@@ -0,0 +1,211 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.schema.FieldNames;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.SearchDocument;
+import com.attivio.sdk.search.SearchDocumentList;
+import com.attivio.sdk.search.SortField;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.util.ObjectUtils;
+
+public class ScatterGatherJoinSearcherTest {
+
+	private MultiFieldJoiner setup() {
+		MultiFieldJoiner joiner = new MultiFieldJoiner();
+		joiner.setJoinField("metadataLink");
+		joiner.setPrimaryTables(ObjectUtils.newList("dataTable"));
+		Map<String, String> tables = new HashMap<String, String>();
+		tables.put("metadata", "INNER");
+		tables.put("anotherMetadata Table", "OUTER");
+		joiner.setChildTables(tables);
+		Map<String, String> metadataFacetFields = new HashMap<String, String>();
+		metadataFacetFields.put("metadata", "topic, company");
+		metadataFacetFields.put("anotherMetadata Table", "people");
+		joiner.setChildTableFacetFields(metadataFacetFields);
+		Map<String, String> overridingJoinFields = new HashMap<String, String>();
+		overridingJoinFields.put("anotherMetadata Table", "uniqueJoinField");
+		joiner.setJoinFields(overridingJoinFields);
+		joiner.setMimickComposite(true);
+		return joiner;
+	}
+
+	private QueryRequest request() {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		return qr;
+	}
+
+	private SearchDocument document(String id, float score) {
+		SearchDocument document = new SearchDocument(id);
+		document.setScore(score);
+		return document;
+	}
+
+	@Test
+	public void testBranchesSearchedAndMerged() throws Exception {
+		MultiFieldJoiner joiner = this.setup();
+		List<Query> branches = joiner.buildJoinBranches(this.request());
+		assertEquals(1 + joiner.getChildTables().size(), branches.size());
+
+		InMemorySearchExecutor executor = new InMemorySearchExecutor();
+		executor.addDocuments(branches.get(0), this.document("a", 1.0f), this.document("b", 0.5f));
+		executor.addDocuments(branches.get(1), this.document("b", 2.0f), this.document("c", 0.5f));
+		ScatterGatherJoinSearcher searcher = new ScatterGatherJoinSearcher(joiner, executor, 5000);
+
+		SearchDocumentList results = searcher.search(this.request()).getDocuments();
+		assertEquals(branches.size(), executor.getSearchedQueries().size());
+		assertEquals(3, results.size());
+		// b keeps the better of the scores it got from the two branches
+		assertEquals("b", results.get(0).getId());
+		assertEquals("a", results.get(1).getId());
+		assertEquals("c", results.get(2).getId());
+	}
+
+	@Test
+	public void testSingleBranchWithoutCompositeMode() throws Exception {
+		MultiFieldJoiner joiner = this.setup();
+		joiner.setMimickComposite(false);
+		InMemorySearchExecutor executor = new InMemorySearchExecutor();
+		ScatterGatherJoinSearcher searcher = new ScatterGatherJoinSearcher(joiner, executor, 5000);
+
+		assertEquals(0, searcher.search(this.request()).getDocuments().size());
+		assertEquals(1, executor.getSearchedQueries().size());
+	}
+
+	@Test
+	public void testMergeKeepsBranchOrderForEqualScores() {
+		SearchDocumentList first = new SearchDocumentList();
+		first.add(this.document("a", 1.0f));
+		SearchDocumentList second = new SearchDocumentList();
+		second.add(this.document("b", 1.0f));
+		second.add(this.document("a", 0.5f));
+		List<SearchDocumentList> results = new ArrayList<SearchDocumentList>();
+		results.add(first);
+		results.add(second);
+
+		List<SearchDocument> merged = ScatterGatherJoinSearcher.merge(results,
+				ScatterGatherJoinSearcher.comparator(null));
+		assertEquals(2, merged.size());
+		assertEquals("a", merged.get(0).getId());
+		assertEquals(1.0f, merged.get(0).getScore(), 0.0f);
+		assertEquals("b", merged.get(1).getId());
+	}
+
+	@Test
+	public void testBranchesSearchedToEndOfPage() throws Exception {
+		MultiFieldJoiner joiner = this.setup();
+		List<Query> branches = joiner.buildJoinBranches(this.request());
+		final InMemorySearchExecutor documents = new InMemorySearchExecutor();
+		documents.addDocuments(branches.get(0), this.document("a", 4.0f), this.document("b", 2.0f));
+		documents.addDocuments(branches.get(1), this.document("c", 3.0f), this.document("d", 1.0f));
+		final List<String> pages = new CopyOnWriteArrayList<String>();
+		JoinSearchExecutor executor = new JoinSearchExecutor() {
+			@Override
+			public QueryResponse search(QueryRequest request, Query query) throws AttivioException {
+				pages.add(request.getOffset() + "," + request.getRows());
+				return documents.search(request, query);
+			}
+		};
+		QueryRequest qr = this.request();
+		qr.setOffset(1);
+		qr.setRows(2);
+
+		ScatterGatherJoinSearcher.Result result = new ScatterGatherJoinSearcher(joiner, executor, 5000).search(qr);
+		SearchDocumentList results = result.getDocuments();
+		for (String page : pages) {
+			assertEquals("0,3", page);
+		}
+		// The second and third of a, c, b, d
+		assertEquals(2, results.size());
+		assertEquals("c", results.get(0).getId());
+		assertEquals("b", results.get(1).getId());
+		// The branches were searched with a copy of the request
+		assertEquals(1, qr.getOffset());
+		assertEquals(2, qr.getRows());
+		assertTrue(result.getMinTotalHits() >= 4);
+		assertTrue(result.getMaxTotalHits() >= result.getMinTotalHits());
+	}
+
+	@Test
+	public void testAllRowsDoesNotOverflow() throws Exception {
+		MultiFieldJoiner joiner = this.setup();
+		final List<Long> rows = new CopyOnWriteArrayList<Long>();
+		final InMemorySearchExecutor documents = new InMemorySearchExecutor();
+		JoinSearchExecutor executor = new JoinSearchExecutor() {
+			@Override
+			public QueryResponse search(QueryRequest request, Query query) throws AttivioException {
+				rows.add(request.getRows());
+				return documents.search(request, query);
+			}
+		};
+		QueryRequest qr = this.request();
+		qr.setOffset(10);
+		qr.setRows(Long.MAX_VALUE);
+
+		new ScatterGatherJoinSearcher(joiner, executor, 5000).search(qr);
+		for (long searched : rows) {
+			assertEquals(Long.MAX_VALUE, searched);
+		}
+	}
+
+	@Test
+	public void testMergeKeepsChildrenOfEveryBranch() {
+		SearchDocument first = this.document("a", 1.0f);
+		first.getChildren().add(this.document("a-1", 1.0f));
+		SearchDocument second = this.document("a", 2.0f);
+		second.getChildren().add(this.document("a-2", 1.0f));
+		second.getChildren().add(this.document("a-1", 1.0f));
+		List<SearchDocumentList> results = new ArrayList<SearchDocumentList>();
+		results.add(this.list(first));
+		results.add(this.list(second));
+
+		List<SearchDocument> merged = ScatterGatherJoinSearcher.merge(results,
+				ScatterGatherJoinSearcher.comparator(null));
+		assertEquals(1, merged.size());
+		assertEquals(2.0f, merged.get(0).getScore(), 0.0f);
+		// Each child once, whichever branch rolled it up
+		assertEquals(2, merged.get(0).getChildren().size());
+	}
+
+	@Test
+	public void testMergeRanksBySort() {
+		List<SearchDocumentList> results = new ArrayList<SearchDocumentList>();
+		results.add(this.list(this.document("a", 3.0f), this.document("b", 1.0f)));
+		results.add(this.list(this.document("c", 2.0f)));
+
+		List<SortField> ascendingScore = new ArrayList<SortField>();
+		ascendingScore.add(new SortField(FieldNames.SCORE, SortField.SortOrder.ASC));
+		List<SearchDocument> merged = ScatterGatherJoinSearcher.merge(results,
+				ScatterGatherJoinSearcher.comparator(ascendingScore));
+		assertEquals("b", merged.get(0).getId());
+		assertEquals("c", merged.get(1).getId());
+		assertEquals("a", merged.get(2).getId());
+	}
+
+	private SearchDocumentList list(SearchDocument... documents) {
+		SearchDocumentList list = new SearchDocumentList();
+		for (SearchDocument document : documents) {
+			list.add(document);
+		}
+		return list;
+	}
+
+	@Test(expected = java.util.concurrent.TimeoutException.class)
+	public void testTimeout() throws Exception {
+		InMemorySearchExecutor executor = new InMemorySearchExecutor();
+		executor.setLatencyMillis(1000);
+		new ScatterGatherJoinSearcher(this.setup(), executor, 10).search(this.request());
+	}
+}
@@ -0,0 +1,154 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.sdk.search.SortField;
+import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.SearchDocument;
+import com.attivio.sdk.search.query.Query;
+import com.attivio.sdk.search.query.QueryString;
+import com.attivio.util.ObjectUtils;
+
+public class SingleFlightSearchExecutorTest {
+
+	private static final Query QUERY = new QueryString("content:electronic");
+
+	/**
+	 * Holds every search at a gate until released, then answers it from memory.
+	 */
+	private static class GatedSearchExecutor implements JoinSearchExecutor {
+		private final InMemorySearchExecutor documents = new InMemorySearchExecutor();
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public QueryResponse search(QueryRequest request, Query query) throws AttivioException {
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return documents.search(request, query);
+		}
+	}
+
+	private QueryRequest request() {
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		return qr;
+	}
+
+	private void awaitCoalesced(SingleFlightSearchExecutor searcher, long searches) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (searcher.getCoalescedSearches() < searches && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void testDuplicatesShareOneSearch() throws Exception {
+		GatedSearchExecutor gated = new GatedSearchExecutor();
+		gated.documents.addDocuments(QUERY, new SearchDocument("a"), new SearchDocument("b"));
+		final SingleFlightSearchExecutor searcher = new SingleFlightSearchExecutor(gated, 5000);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<QueryResponse>> futures = new ArrayList<Future<QueryResponse>>();
+			for (int i = 0; i < 4; i++) {
+				futures.add(pool.submit(() -> searcher.search(this.request(), QUERY)));
+			}
+			this.awaitCoalesced(searcher, 3);
+			gated.release.countDown();
+
+			List<QueryResponse> results = new ArrayList<QueryResponse>();
+			for (Future<QueryResponse> future : futures) {
+				results.add(future.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals(1, gated.documents.getSearchedQueries().size());
+			assertEquals(3, searcher.getCoalescedSearches());
+			assertEquals(0, searcher.inFlightSearches());
+			for (QueryResponse result : results) {
+				assertEquals(2, result.getDocuments().size());
+				assertEquals("a", result.getDocuments().get(0).getId());
+			}
+			// Each search gets its own response and documents
+			for (int i = 1; i < results.size(); i++) {
+				assertNotSame(results.get(0), results.get(i));
+				assertNotSame(results.get(0).getDocuments().get(0), results.get(i).getDocuments().get(0));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testDuplicateRunsItselfAfterTimeout() throws Exception {
+		GatedSearchExecutor gated = new GatedSearchExecutor();
+		final SingleFlightSearchExecutor searcher = new SingleFlightSearchExecutor(gated, 50);
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			Future<QueryResponse> leader = pool.submit(() -> searcher.search(this.request(), QUERY));
+			while (searcher.inFlightSearches() == 0) {
+				Thread.sleep(1);
+			}
+			// Gives up on the held search, and is then held at the gate itself
+			Future<QueryResponse> duplicate = pool.submit(() -> searcher.search(this.request(), QUERY));
+			this.awaitCoalesced(searcher, 1);
+			Thread.sleep(200);
+			gated.release.countDown();
+			leader.get(5, TimeUnit.SECONDS);
+			duplicate.get(5, TimeUnit.SECONDS);
+			assertEquals(2, gated.documents.getSearchedQueries().size());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testResultsNotKeptAfterSearch() throws AttivioException {
+		InMemorySearchExecutor executor = new InMemorySearchExecutor();
+		SingleFlightSearchExecutor searcher = new SingleFlightSearchExecutor(executor, 5000);
+		searcher.search(this.request(), QUERY);
+		searcher.search(this.request(), QUERY);
+		assertEquals(2, executor.getSearchedQueries().size());
+		assertEquals(0, searcher.getCoalescedSearches());
+	}
+
+	@Test
+	public void testKey() {
+		String key = SingleFlightSearchExecutor.key(this.request(), QUERY);
+		assertEquals(key, SingleFlightSearchExecutor.key(this.request(), QUERY));
+		assertFalse(key.equals(SingleFlightSearchExecutor.key(this.request(), new QueryString("content:invoice"))));
+
+		QueryRequest filtered = this.request();
+		filtered.setFilters(ObjectUtils.<Query>newList(new QueryString("table:dataTable")));
+		assertFalse(key.equals(SingleFlightSearchExecutor.key(filtered, QUERY)));
+
+		QueryRequest nextPage = this.request();
+		nextPage.setOffset(10);
+		assertFalse(key.equals(SingleFlightSearchExecutor.key(nextPage, QUERY)));
+
+		QueryRequest sorted = this.request();
+		sorted.setSort(new SortField("date", SortField.SortOrder.DESC));
+		assertFalse(key.equals(SingleFlightSearchExecutor.key(sorted, QUERY)));
+
+		QueryRequest fields = this.request();
+		fields.setFields(ObjectUtils.newList("title"));
+		assertFalse(key.equals(SingleFlightSearchExecutor.key(fields, QUERY)));
+
+		// Per-request bookkeeping doesn't keep duplicates apart
+		QueryRequest withProperty = this.request();
+		withProperty.setProperty(QueryFingerprint.PROPERTY_NAME, "0123");
+		assertEquals(key, SingleFlightSearchExecutor.key(withProperty, QUERY));
+	}
+}
@@ -0,0 +1,123 @@
+package com.attivio.transformer.query.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.attivio.transformer.query.GenericQTJ.TableStatisticsRegistry.TableCounters;
+
+public class TableStatisticsRegistryTest {
+
+	private void recordParents(TableStatisticsRegistry registry, String table, int parents, int children,
+			boolean filtered) {
+		for (int i = 0; i < parents; i++) {
+			registry.recordChildren(table, children, 10, filtered);
+		}
+	}
+
+	@Test
+	public void testChildrenPerParent() {
+		TableStatisticsRegistry registry = new TableStatisticsRegistry(10);
+		registry.recordChildren("metadata", 2, 10, false);
+		registry.recordChildren("metadata", 10, 10, false);
+		registry.recordChildren("metadata", 0, 10, false);
+		registry.recordChildren("metadata", 4, 10, false);
+		TableCounters counters = registry.get("metadata");
+		assertEquals(4, counters.getSampledParents());
+		assertEquals(4, counters.getMeanChildrenPerParent(), 0);
+		assertEquals(0.25, counters.getTruncationRate(), 0);
+		assertEquals(10, counters.getChildrenPerParentPercentile(90));
+		assertTrue(Double.isNaN(counters.getFilterSelectivity()));
+	}
+
+	@Test
+	public void testUnlimitedRollupNeverTruncated() {
+		TableStatisticsRegistry registry = new TableStatisticsRegistry(10);
+		registry.recordChildren("metadata", 0, 0, false);
+		registry.recordChildren("metadata", 5, 0, false);
+		registry.recordChildren("metadata", 5, -1, false);
+		assertEquals(0, registry.get("metadata").getTruncationRate(), 0);
+	}
+
+	@Test
+	public void testTruncationRateFollowsRecentParents() {
+		TableStatisticsRegistry registry = new TableStatisticsRegistry(10);
+		this.recordParents(registry, "metadata", 1000, 10, false);
+		assertEquals(1, registry.get("metadata").getTruncationRate(), 1e-9);
+
+		// Once the raised limit stops cutting children off, the early truncation
+		// stops counting, even though a quarter of all parents were truncated
+		this.recordParents(registry, "metadata", 3000, 4, false);
+		assertTrue(registry.get("metadata").getTruncationRate() < 0.1);
+	}
+
+	@Test
+	public void testOverlay() {
+		TableStatisticsRegistry registry = new TableStatisticsRegistry(10);
+		TableStatistics configured = new TableStatistics(5000, 5, 1);
+		assertSame(configured, registry.overlay("metadata", configured));
+		assertNull(registry.overlay("metadata", null));
+
+		this.recordParents(registry, "metadata", 50, 8, false);
+		assertEquals(5, registry.overlay("metadata", configured).getChildrenPerParent(), 0);
+
+		this.recordParents(registry, "metadata", 50, 8, false);
+		this.recordParents(registry, "metadata", 100, 2, true);
+		TableStatistics overlaid = registry.overlay("metadata", configured);
+		assertEquals(5000, overlaid.getDocuments());
+		assertEquals(8, overlaid.getChildrenPerParent(), 0);
+		assertEquals(0.25, overlaid.getFilterSelectivity(), 1e-9);
+	}
+
+	@Test
+	public void testBoundedTables() {
+		TableStatisticsRegistry registry = new TableStatisticsRegistry(2);
+		registry.recordHits("a", 1);
+		registry.recordHits("b", 1);
+		registry.recordHits("c", 1);
+		assertEquals(2, registry.getTables().size());
+		assertNull(registry.get("c"));
+	}
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		TableStatisticsRegistry registry = new TableStatisticsRegistry(10);
+		registry.recordHits("anotherMetadata Table", 7);
+		this.recordParents(registry, "anotherMetadata Table", 3, 12, false);
+		registry.recordChildren("anotherMetadata Table", 1, 10, true);
+
+		Path file = Files.createTempFile("table-statistics", ".tsv");
+		try {
+			registry.save(file);
+			TableStatisticsRegistry loaded = new TableStatisticsRegistry(10);
+			loaded.load(file);
+			TableCounters counters = loaded.get("anotherMetadata Table");
+			assertEquals(7, counters.getHits());
+			assertEquals(4, counters.getSampledParents());
+			assertEquals(registry.get("anotherMetadata Table").getMeanChildrenPerParent(),
+					counters.getMeanChildrenPerParent(), 0);
+			assertEquals(0.75, counters.getTruncationRate(), 0);
+			assertEquals(12, counters.getChildrenPerParentPercentile(99));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void testPropertyEncoding() {
+		Map<String, Integer> rollupLimits = new LinkedHashMap<String, Integer>();
+		rollupLimits.put("metadata", 5);
+		rollupLimits.put("odd, table=name", 10);
+		assertEquals(rollupLimits,
+				TableStatisticsRegistry.decodeRollupLimits(TableStatisticsRegistry.encodeRollupLimits(rollupLimits)));
+		assertEquals(rollupLimits.keySet(), TableStatisticsRegistry
+				.decodeTableNames(TableStatisticsRegistry.encodeTableNames(Arrays.asList("metadata", "odd, table=name"))));
+	}
+}
@@ -0,0 +1,71 @@
+package com.attivio.transformer.response.GenericQTJ;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryRequest;
+import com.attivio.util.ObjectUtils;
+
+public class ChildFieldProjectionTest {
+
+	private ChildFieldProjection setup() {
+		ChildFieldProjection projection = new ChildFieldProjection();
+		Map<String, String> childTableFields = new HashMap<String, String>();
+		childTableFields.put("metadata", "topic, company");
+		childTableFields.put("people", "name");
+		projection.setChildTableFields(childTableFields);
+		return projection;
+	}
+
+	@Test
+	public void testConfigurationRoundTrip() {
+		ChildFieldProjection projection = this.setup();
+		assertEquals("topic,company", projection.getChildTableFields().get("metadata"));
+		assertEquals("name", projection.getChildTableFields().get("people"));
+	}
+
+	@Test
+	public void testProjectionPushedIntoRequestForAllFields() throws AttivioException {
+		ChildFieldProjection projection = this.setup();
+		projection.setParentFields(ObjectUtils.newList("title", "teaser"));
+
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		qr.setFields(ObjectUtils.newList(ChildFieldProjection.ALL_FIELDS));
+		projection.processQuery(qr);
+		List<String> fields = qr.getFields();
+		assertEquals(6, fields.size());
+		assertTrue(fields.contains("title"));
+		assertTrue(fields.contains("table"));
+		assertTrue(fields.contains("company"));
+		assertTrue(fields.contains("name"));
+		assertFalse(fields.contains(ChildFieldProjection.ALL_FIELDS));
+	}
+
+	@Test
+	public void testRequestFieldListKept() throws AttivioException {
+		ChildFieldProjection projection = this.setup();
+		projection.setParentFields(ObjectUtils.newList("title"));
+
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		qr.setFields(ObjectUtils.newList("title", "body"));
+		projection.processQuery(qr);
+		assertEquals(ObjectUtils.newList("title", "body"), qr.getFields());
+	}
+
+	@Test
+	public void testNothingPushedWithoutParentFields() throws AttivioException {
+		ChildFieldProjection projection = this.setup();
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("content:electronic", "SIMPLE");
+		projection.processQuery(qr);
+		assertTrue(ChildFieldProjection.requestsAllFields(qr.getFields()));
+	}
+}
@@ -6,12 +6,16 @@ import java.util.HashMap;
 import java.util.Map;
 import org.junit.Test;
 import com.attivio.sdk.AttivioException;
+import com.attivio.sdk.search.QueryFeedback;
 import com.attivio.sdk.search.QueryRequest;
 import com.attivio.sdk.search.QueryResponse;
+import com.attivio.sdk.search.SearchDocument;
+import com.attivio.sdk.search.SearchDocumentList;
 import com.attivio.sdk.search.query.BooleanOrQuery;
 import com.attivio.sdk.search.query.PhraseQuery;
 import com.attivio.sdk.search.query.Query;
 import com.attivio.transformer.query.GenericQTJ.GenericCompositeJoiner;
+import com.attivio.transformer.query.GenericQTJ.QueryRelaxation;
 import com.attivio.util.ObjectUtils;
 
 public class ResubmitRelaxedJoinTest {
@@ -66,4 +70,50 @@ public class ResubmitRelaxedJoinTest {
 			e.printStackTrace();
 		}
 	}
+
+	@Test
+	public void testTieredResponseNotResubmitted() throws AttivioException {
+		GenericCompositeJoiner joiner = this.setup();
+		joiner.setTieredRelaxation(true);
+		ResubmitRelaxedJoin resubmitter = new ResubmitRelaxedJoin();
+		resubmitter.setResubmitWorkflow("customSearch");
+
+		// Scores between the max unboosted score and the tier boost don't tell the tier
+		for (float topScore : new float[] { 2500f, 3f, 500f }) {
+			QueryRequest qr = new QueryRequest();
+			qr.setQuery("electronic invoice", "SIMPLE");
+			qr.setMaxResubmits(1);
+			joiner.processQuery(qr);
+			assertEquals(joiner.getTierBoost(), (int) qr.getProperty(QueryRelaxation.TIER_BOOST_PROPERTY_NAME, 0));
+
+			QueryResponse response = new QueryResponse(qr);
+			SearchDocumentList documents = new SearchDocumentList();
+			SearchDocument top = new SearchDocument("top");
+			top.setScore(topScore);
+			documents.add(top);
+			response.setDocuments(documents);
+			assertNull(resubmitter.getRoutingKey(response));
+			String tier = topScore >= joiner.getTierBoost() ? QueryRelaxation.STRICT_TIER
+					: topScore <= joiner.getMaxUnboostedScore() ? QueryRelaxation.RELAXED_TIER : "";
+			assertEquals(tier, this.tier(response));
+		}
+
+		// An empty tiered response found nothing in either tier
+		QueryRequest qr = new QueryRequest();
+		qr.setQuery("electronic invoice", "SIMPLE");
+		qr.setMaxResubmits(1);
+		joiner.processQuery(qr);
+		QueryResponse response = new QueryResponse(qr);
+		assertNull(resubmitter.getRoutingKey(response));
+		assertEquals("", this.tier(response));
+	}
+
+	private String tier(QueryResponse response) {
+		for (QueryFeedback feedback : response.getFeedback()) {
+			if (QueryRelaxation.TIER_MESSAGE_NAME.equals(feedback.getMessageName())) {
+				return feedback.getMessage();
+			}
+		}
+		return "";
+	}
 }
@@ -9,6 +9,7 @@ import com.attivio.sdk.search.QueryResponse;
 import com.attivio.sdk.search.SearchDocument;
 import com.attivio.sdk.search.SearchDocumentList;
 import com.attivio.transformer.query.GenericQTJ.GenericCompositeJoiner;
+import com.attivio.transformer.query.GenericQTJ.QueryRelaxation;
 
 public class ResubmitStrictJoinTest {
 
@@ -79,4 +80,38 @@ public class ResubmitStrictJoinTest {
 		String newWorkflow = resubmitter.getRoutingKey(response);
 		assertNull(newWorkflow);
 	}
+
+	@Test
+	public void testSinglePassTierOfTopHit() {
+		ResubmitStrictJoin resubmitter = new ResubmitStrictJoin();
+		resubmitter.setResubmitWorkflow(WORKFLOW);
+
+		QueryRequest request = new QueryRequest("*:*");
+		request.setResubmits(0);
+		request.setMaxResubmits(1);
+		request.setProperty(GenericCompositeJoiner.PARENT_TIER_BOOST_PROPERTY_NAME, 1000);
+		QueryResponse response = new QueryResponse(request);
+		SearchDocumentList docList = new SearchDocumentList();
+		SearchDocument top = new SearchDocument("doc1");
+		top.setScore(4f);
+		docList.add(top);
+		response.setDocuments(docList);
+		assertTrue(ResubmitStrictJoin.isChildTierMatch(response, request));
+		assertNull(resubmitter.getRoutingKey(response));
+
+		top.setScore(4000f);
+		assertFalse(ResubmitStrictJoin.isChildTierMatch(response, request));
+
+		// Between the max unboosted score and the boost, the tier isn't known
+		request.setProperty(QueryRelaxation.MAX_UNBOOSTED_SCORE_PROPERTY_NAME, 100);
+		top.setScore(500f);
+		assertFalse(ResubmitStrictJoin.isChildTierMatch(response, request));
+		top.setScore(100f);
+		assertTrue(ResubmitStrictJoin.isChildTierMatch(response, request));
+
+		// Nothing was found in either tier, and there's no second pass to resubmit to
+		response.setDocuments(new SearchDocumentList());
+		assertFalse(ResubmitStrictJoin.isChildTierMatch(response, request));
+		assertNull(resubmitter.getRoutingKey(response));
+	}
 }